@@ -0,0 +1,25 @@
+package dmillerw.asm.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Runs the generated override, default_ super call included, on an executor rather than the calling thread
+ * <p/>
+ * Void overrides return as soon as the call is handed off. Overrides that return something stay as they are, and
+ * the generated class gets a second method of the same name with Async appended, taking the same arguments and
+ * returning a ListenableFuture of the result. Declare it on an interface of the template to call it
+ *
+ * @see dmillerw.asm.core.AsyncExecutors
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface MAsync {
+
+    /**
+     * The executor registered under this name, or the default executor if empty or not registered
+     */
+    String executor() default "";
+}
@@ -0,0 +1,27 @@
+package dmillerw.asm.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Makes an int, long or reference {@link MField} safe to update from several threads, without a wrapper object
+ * per instance
+ * <p/>
+ * The field becomes volatile, so reads and writes are atomic. The += and -= (and ++ and --) that template code
+ * does on the field become atomic adds on a field updater. For anything else, template code calls the methods of
+ * {@link dmillerw.asm.core.Atomics} with the field as the first argument
+ */
+@Target(ElementType.FIELD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface MAtomic {
+
+    /**
+     * Long fields only. Stores the field in a striped counter, so adds from many threads at once don't fight over
+     * one memory location. Adds become cheap, but reads sum every stripe, and writes aren't atomic with respect to
+     * adds made at the same time. Each instance holds a counter of a few KB, so this is meant for a few heavily
+     * shared instances
+     */
+    boolean striped() default false;
+}
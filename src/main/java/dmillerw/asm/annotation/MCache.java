@@ -0,0 +1,50 @@
+package dmillerw.asm.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Remembers what the generated override returned for its arguments, and returns that instead of running the
+ * override again. A single primitive argument is used as the key as-is, without boxing; several arguments are
+ * boxed into a list
+ * <p/>
+ * An instance cache of a method without arguments is no more than the result and a flag, kept in fields of the
+ * instance
+ *
+ * @see dmillerw.asm.core.MethodCache
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface MCache {
+
+    public static enum Scope {
+        /**
+         * Each instance has a cache of its own
+         */
+        INSTANCE,
+        /**
+         * All instances of the generated class share one cache, so the result can't depend on the instance
+         */
+        CLASS
+    }
+
+    Scope scope() default Scope.INSTANCE;
+
+    /**
+     * Past this many entries, the least recently used entry is dropped
+     */
+    int maxSize() default 256;
+
+    /**
+     * How long an entry is kept after it's stored, in milliseconds. 0 keeps it until it's dropped for space
+     */
+    long expireAfter() default 0;
+
+    /**
+     * If set, the generated class gets a public void method of this name that empties the cache. Several cached
+     * methods can share one
+     */
+    String invalidate() default "";
+}
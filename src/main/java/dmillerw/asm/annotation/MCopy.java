@@ -0,0 +1,45 @@
+package dmillerw.asm.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * On a template, makes the generated class implement {@link dmillerw.asm.core.Copyable}: a copy constructor taking
+ * an instance of the generated class, and a copy method returning one. Both copy every {@link MField} straight
+ * from field to field
+ * <p/>
+ * The super class copies its own state if it has a public or protected constructor taking an instance of itself,
+ * which the copy constructor calls. Otherwise the copy constructor calls the no argument one. Template
+ * constructors don't run for copies
+ * <p/>
+ * A copy method the super class implements itself, returning the super class or one of its own super types, is
+ * only replaced with {@link #override()}. Otherwise the template is generated without copies
+ * <p/>
+ * On a field, picks how that field is copied. The template's mode applies to fields without one
+ */
+@Target({ElementType.TYPE, ElementType.FIELD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface MCopy {
+
+    public static enum Mode {
+        /**
+         * The copy shares the value with the original
+         */
+        SHALLOW,
+        /**
+         * Arrays are cloned, one level deep. Values that are {@link dmillerw.asm.core.Copyable} at runtime are
+         * copied, anything else is shared
+         */
+        DEEP
+    }
+
+    Mode value() default Mode.SHALLOW;
+
+    /**
+     * On a template, lets the generated copy method replace a copy method the super class implements, which then
+     * no longer runs. Abstract copy methods are always implemented
+     */
+    boolean override() default false;
+}
@@ -0,0 +1,46 @@
+package dmillerw.asm.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Takes a lock around the generated override, default_ super call included, so superclasses that aren't thread
+ * safe can be shared between threads
+ *
+ * @see dmillerw.asm.core.GuardLock
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface MGuarded {
+
+    public static enum Mode {
+        /**
+         * Holds the instance's lock exclusively
+         */
+        WRITE,
+        /**
+         * Runs without locking first, and again under the instance's read lock if a writer got in the way. The
+         * method may run twice, so it must only read
+         */
+        READ,
+        /**
+         * Holds one of a fixed set of locks exclusively, picked by the instance and one argument. Calls with
+         * different keys rarely wait on each other, so the method must only touch state belonging to its key
+         */
+        STRIPED
+    }
+
+    Mode value() default Mode.WRITE;
+
+    /**
+     * The index of the argument that picks the lock, for {@link Mode#STRIPED}
+     */
+    int key() default 0;
+
+    /**
+     * How many locks there are to pick from, for {@link Mode#STRIPED}. Rounded up to a power of two
+     */
+    int stripes() default 16;
+}
@@ -0,0 +1,30 @@
+package dmillerw.asm.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Creates the value of an {@link MField} the first time template code reads it, rather than up front. Every read of
+ * the field in template code becomes a call to a generated getter, which calls the initializer while the field is
+ * null
+ * <p/>
+ * Only template code goes through the getter. Accessors and serializers see the field as it is
+ */
+@Target(ElementType.FIELD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface MLazy {
+
+    /**
+     * The template method that creates the value. It takes no arguments, and returns the field's type. It's
+     * copied into the generated class whether it's annotated or not
+     */
+    String value();
+
+    /**
+     * Whether the instance is shared between threads. If so the field is volatile, and the initializer runs at
+     * most once, under a lock on the instance. Otherwise it's a plain null check
+     */
+    boolean shared() default false;
+}
@@ -0,0 +1,18 @@
+package dmillerw.asm.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Counts calls to, and time spent in, the generated method. For overrides the default_ super call is counted
+ * separately as well
+ *
+ * @see dmillerw.asm.core.MethodProfile
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface MProfile {
+
+}
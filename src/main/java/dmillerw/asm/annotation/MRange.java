@@ -0,0 +1,19 @@
+package dmillerw.asm.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares every value an integral {@link MField} will hold. With {@link dmillerw.asm.core.FieldLayout#PACKED}, the
+ * field is stored in the narrowest primitive covering the range. Values outside of it are truncated
+ */
+@Target(ElementType.FIELD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface MRange {
+
+    long min();
+
+    long max();
+}
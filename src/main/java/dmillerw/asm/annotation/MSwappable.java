@@ -0,0 +1,26 @@
+package dmillerw.asm.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Lets the generated override switch between its own body and other template methods at runtime, for every
+ * instance of the generated class at once, without generating another class
+ * <p/>
+ * The override calls its body through an invokedynamic call site, which the JIT treats as a direct call until
+ * {@link dmillerw.asm.core.HotSwap#retarget} points it somewhere else. Calls made after that run the new body,
+ * once the compiled code depending on the old one is thrown away. Needs Java 7 or later: on older runtimes the
+ * override always runs its own body
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface MSwappable {
+
+    /**
+     * Names of the template methods the override can switch to. They take the same arguments and return the same
+     * type as the override, and are copied into the generated class whether they're annotated or not
+     */
+    String[] value();
+}
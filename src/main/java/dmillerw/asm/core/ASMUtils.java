@@ -3,14 +3,19 @@ package dmillerw.asm.core;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import dmillerw.asm.annotation.MCastParam;
+import dmillerw.asm.annotation.MCastParamList;
 import org.apache.commons.io.IOUtils;
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.*;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static org.objectweb.asm.Opcodes.*;
 
@@ -224,6 +229,8 @@ public class ASMUtils {
             return Opcodes.ILOAD;
         } else if (clazz == int.class) {
             return Opcodes.ILOAD;
+        } else if (clazz == char.class) {
+            return Opcodes.ILOAD;
         } else if (clazz == long.class) {
             return Opcodes.LLOAD;
         } else if (clazz == float.class) {
@@ -248,6 +255,8 @@ public class ASMUtils {
             return Opcodes.IRETURN;
         } else if (clazz == int.class) {
             return Opcodes.IRETURN;
+        } else if (clazz == char.class) {
+            return Opcodes.IRETURN;
         } else if (clazz == long.class) {
             return Opcodes.LRETURN;
         } else if (clazz == float.class) {
@@ -259,18 +268,78 @@ public class ASMUtils {
         }
     }
 
+    private static final List<BytecodeSource> bytecodeSources = new CopyOnWriteArrayList<BytecodeSource>();
+
+    /**
+     * Registers a source that getClassNode checks, in registration order, before falling back to the class' resource
+     */
+    public static void addBytecodeSource(BytecodeSource source) {
+        bytecodeSources.add(source);
+    }
+
+    public static byte[] getBytes(Class<?> clazz) throws IOException {
+        return getBytes(clazz.getName().replace(".", "/"), clazz.getClassLoader());
+    }
+
+    /**
+     * Same as {@link #getBytes(Class)}, for a class that shouldn't or can't be loaded yet
+     */
+    public static byte[] getBytes(String internalName, ClassLoader classLoader) throws IOException {
+        for (BytecodeSource source : bytecodeSources) {
+            byte[] data = source.getBytes(internalName);
+            if (data != null) {
+                return data;
+            }
+        }
+
+        InputStream inputStream = classLoader == null ? ClassLoader.getSystemResourceAsStream(internalName + ".class") : classLoader.getResourceAsStream(internalName + ".class");
+        if (inputStream == null) {
+            throw new IOException("No bytecode available for " + internalName.replace("/", ".") + ". Register a BytecodeSource that has it");
+        }
+
+        try {
+            return IOUtils.toByteArray(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException If the bytecode of the class can't be read, wrapping the reason
+     */
     public static ClassNode getClassNode(Class<?> clazz) {
+        String resource = clazz.getName().replace(".", "/") + ".class";
         try {
-            String name = "/" + clazz.getName().replace(".", "/") + ".class";
-            byte[] data = IOUtils.toByteArray(clazz.getResourceAsStream(name));
+            return getClassNode(getBytes(clazz));
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Failed to read the bytecode of " + clazz.getName() + " from " + resource, ex);
+        }
+    }
 
-            ClassNode cnode = new ClassNode();
-            ClassReader reader = new ClassReader(data);
-            reader.accept(cnode, 0);
+    public static ClassNode getClassNode(byte[] data) {
+        ClassNode cnode = new ClassNode();
+        ClassReader reader = new ClassReader(data);
+        reader.accept(cnode, 0);
 
-            return cnode;
-        } catch (IOException ignore) {
-            return null;
+        return cnode;
+    }
+
+    /**
+     * @return The class of a type, primitives included. Nothing is initialized
+     */
+    public static Class<?> getClass(Type type, ClassLoader classLoader) throws ClassNotFoundException {
+        switch (type.getSort()) {
+            case Type.BOOLEAN: return boolean.class;
+            case Type.CHAR: return char.class;
+            case Type.BYTE: return byte.class;
+            case Type.SHORT: return short.class;
+            case Type.INT: return int.class;
+            case Type.FLOAT: return float.class;
+            case Type.LONG: return long.class;
+            case Type.DOUBLE: return double.class;
+            case Type.VOID: return void.class;
+            case Type.ARRAY: return Class.forName(type.getDescriptor().replace('/', '.'), false, classLoader);
+            default: return Class.forName(type.getClassName(), false, classLoader);
         }
     }
 
@@ -284,8 +353,10 @@ public class ASMUtils {
                 return "S";
             } else if (clazz == int.class) {
                 return "I";
+            } else if (clazz == char.class) {
+                return "C";
             } else if (clazz == long.class) {
-                return "L";
+                return "J";
             } else if (clazz == float.class) {
                 return "F";
             } else if (clazz == double.class) {
@@ -386,15 +457,19 @@ public class ASMUtils {
     }
 
     public static String castSignature(String signature, MCastParam annotation) {
+        return castSignature(signature, annotation.index(), annotation.cast());
+    }
+
+    public static String castSignature(String signature, int index, String cast) {
         String[] array = splitSignature(signature);
 
         boolean isArray = false;
         String sig = "";
 
-        if (annotation.index() == -1) {
+        if (index == -1) {
             sig = array[array.length - 1];
         } else {
-            sig = array[annotation.index()];
+            sig = array[index];
         }
 
         if (sig.length() > 1) {
@@ -402,7 +477,7 @@ public class ASMUtils {
                 isArray = true;
             }
 
-            sig = annotation.cast().replace(".", "/");
+            sig = cast.replace(".", "/");
 
             if (isArray) {
                 sig = "[L" + sig + ";";
@@ -411,10 +486,10 @@ public class ASMUtils {
             }
         }
 
-        if (annotation.index() == -1) {
+        if (index == -1) {
             array[array.length - 1] = sig;
         } else {
-            array[annotation.index()] = sig;
+            array[index] = sig;
         }
 
         return joinSignatureArray(array);
@@ -440,6 +515,133 @@ public class ASMUtils {
         }
     }
 
+    /**
+     * @return The wrapper class of a primitive type, or null for anything else
+     */
+    public static Type getBoxedType(Type type) {
+        switch (type.getSort()) {
+            case Type.BOOLEAN: return Type.getType(Boolean.class);
+            case Type.CHAR: return Type.getType(Character.class);
+            case Type.BYTE: return Type.getType(Byte.class);
+            case Type.SHORT: return Type.getType(Short.class);
+            case Type.INT: return Type.getType(Integer.class);
+            case Type.FLOAT: return Type.getType(Float.class);
+            case Type.LONG: return Type.getType(Long.class);
+            case Type.DOUBLE: return Type.getType(Double.class);
+            default: return null;
+        }
+    }
+
+    /**
+     * Boxes the value of the given type on top of the stack. References are left alone
+     */
+    public static void box(MethodVisitor methodVisitor, Type type) {
+        Type boxed = getBoxedType(type);
+        if (boxed != null) {
+            methodVisitor.visitMethodInsn(INVOKESTATIC, boxed.getInternalName(), "valueOf", "(" + type.getDescriptor() + ")" + boxed.getDescriptor(), false);
+        }
+    }
+
+    /**
+     * Casts the object on top of the stack to the given type, unboxing it if the type is primitive
+     */
+    public static void unbox(MethodVisitor methodVisitor, Type type) {
+        Type boxed = getBoxedType(type);
+        if (boxed != null) {
+            methodVisitor.visitTypeInsn(CHECKCAST, boxed.getInternalName());
+            methodVisitor.visitMethodInsn(INVOKEVIRTUAL, boxed.getInternalName(), type.getClassName() + "Value", "()" + type.getDescriptor(), false);
+        } else if (!type.getDescriptor().equals("Ljava/lang/Object;")) {
+            methodVisitor.visitTypeInsn(CHECKCAST, type.getInternalName());
+        }
+    }
+
+    /**
+     * Applies the MCastParam and MCastParamList annotations found on a method node to its descriptor
+     */
+    @SuppressWarnings("unchecked")
+    public static String castSignature(MethodNode methodNode) {
+        String signature = methodNode.desc;
+
+        AnnotationNode castParam = getAnnotation(methodNode.visibleAnnotations, MCastParam.class);
+        if (castParam != null) {
+            signature = castSignature(signature, (Integer) getValue(castParam, "index"), (String) getValue(castParam, "cast"));
+        }
+
+        AnnotationNode castParamList = getAnnotation(methodNode.visibleAnnotations, MCastParamList.class);
+        if (castParamList != null) {
+            for (AnnotationNode annotationNode : (List<AnnotationNode>) getValue(castParamList, "castParams")) {
+                signature = castSignature(signature, (Integer) getValue(annotationNode, "index"), (String) getValue(annotationNode, "cast"));
+            }
+        }
+
+        return signature;
+    }
+
+    /**
+     * @return The annotation of the given type out of a node's visibleAnnotations, without loading anything
+     */
+    public static AnnotationNode getAnnotation(List<AnnotationNode> annotations, Class<?> annotation) {
+        if (annotations == null)
+            return null;
+
+        String desc = Type.getDescriptor(annotation);
+        for (AnnotationNode annotationNode : annotations) {
+            if (annotationNode.desc.equals(desc)) {
+                return annotationNode;
+            }
+        }
+        return null;
+    }
+
+    public static Object getValue(AnnotationNode annotationNode, String name) {
+        if (annotationNode.values == null)
+            return null;
+
+        for (int i = 0; i < annotationNode.values.size(); i += 2) {
+            if (annotationNode.values.get(i).equals(name)) {
+                return annotationNode.values.get(i + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The value of a String array member, or null if it isn't set. Each element is checked as it's copied
+     */
+    public static List<String> getStrings(AnnotationNode annotationNode, String name) {
+        List<?> values = (List<?>) getValue(annotationNode, name);
+        if (values == null)
+            return null;
+
+        List<String> strings = Lists.newArrayListWithCapacity(values.size());
+        for (Object value : values) {
+            strings.add((String) value);
+        }
+        return strings;
+    }
+
+    /**
+     * Matches the instructions javac writes for a no-argument call on a template's _super field:
+     * GETFIELD _super, CHECKCAST, then the call
+     *
+     * @return The call, or null if the field instruction doesn't start that pattern
+     */
+    public static MethodInsnNode getSuperCall(FieldInsnNode fieldNode) {
+        if (!fieldNode.name.equals("_super") || fieldNode.getOpcode() != GETFIELD)
+            return null;
+
+        AbstractInsnNode nextNode = fieldNode.getNext();
+        if (nextNode == null || nextNode.getOpcode() != CHECKCAST)
+            return null;
+
+        nextNode = nextNode.getNext();
+        if (nextNode instanceof MethodInsnNode && ((MethodInsnNode) nextNode).desc.startsWith("()")) {
+            return (MethodInsnNode) nextNode;
+        }
+
+        return null;
+    }
+
     public static FieldInsnNode redirect(FieldInsnNode node, String owner) {
         return new FieldInsnNode(node.getOpcode(), owner, node.name, node.desc);
     }
@@ -0,0 +1,180 @@
+package dmillerw.asm.core;
+
+import com.google.common.collect.Lists;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.InsnList;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Generates the {@link FieldAccessor} for a class produced by a {@link SubclassGenerator}
+ * <p/>
+ * Each typed getter/setter is a single TABLESWITCH on the field index, with every case a direct GETFIELD or
+ * PUTFIELD (or slab column access) on the generated class
+ */
+class AccessorGenerator {
+
+    // Accessor method suffix for each primitive sort, indexed by Type.getSort(). Arrays and objects share "Object"
+    private static final String[] SUFFIXES = {
+            null, "Boolean", "Char", "Byte", "Short", "Int", "Float", "Long", "Double", "Object", "Object"
+    };
+
+    // Descriptor for each primitive sort, indexed by Type.getSort()
+    private static final String[] DESCRIPTORS = {
+            "V", "Z", "C", "B", "S", "I", "F", "J", "D"
+    };
+
+    private static final String ACCESSOR_TYPE = Type.getInternalName(FieldAccessor.class);
+
+    final SubclassGenerator<?> generator;
+
+    final String accessorName;
+    final String accessorType;
+
+    // Template fields in declaration order. A field's position in this list is its accessor index
+    final List<FieldMapping> fields = Lists.newArrayList();
+    final List<FieldNode> nodes = Lists.newArrayList();
+
+    AccessorGenerator(SubclassGenerator<?> generator) {
+        this.generator = generator;
+        this.accessorName = generator.subName + "_ACCESSOR";
+        this.accessorType = accessorName.replace(".", "/");
+
+        for (FieldNode fieldNode : generator.templateNode.fields) {
+            for (FieldMapping fieldMapping : generator.fieldNodes.keySet()) {
+                if (fieldMapping.name.equals(fieldNode.name) && fieldMapping.signature.equals(fieldNode.desc)) {
+                    fields.add(fieldMapping);
+                    nodes.add(fieldNode);
+                }
+            }
+        }
+    }
+
+    String[] getNames() {
+        String[] names = new String[fields.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = fields.get(i).name;
+        }
+        return names;
+    }
+
+    Class<?>[] getTypes() {
+        Class<?>[] types = new Class<?>[fields.size()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = fields.get(i).type;
+        }
+        return types;
+    }
+
+    byte[] generate() {
+        ClassWriter classWriter = new ClassWriter(0);
+
+        classWriter.visit(V1_6, ACC_PUBLIC | ACC_SUPER | ACC_FINAL, accessorType, null, ACCESSOR_TYPE, null);
+        classWriter.visitSource(".dynamic", null);
+
+        MethodVisitor methodVisitor = classWriter.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        methodVisitor.visitCode();
+        methodVisitor.visitVarInsn(ALOAD, 0);
+        methodVisitor.visitMethodInsn(INVOKESPECIAL, ACCESSOR_TYPE, "<init>", "()V", false);
+        methodVisitor.visitInsn(RETURN);
+        methodVisitor.visitMaxs(1, 1);
+        methodVisitor.visitEnd();
+
+        for (int sort = Type.BOOLEAN; sort <= Type.DOUBLE; sort++) {
+            addAccessors(classWriter, SUFFIXES[sort], Type.getType(DESCRIPTORS[sort]));
+        }
+        addAccessors(classWriter, "Object", Type.getType(Object.class));
+
+        classWriter.visitEnd();
+
+        return classWriter.toByteArray();
+    }
+
+    /**
+     * Writes the getter and setter for one field type, if the template declares any fields of it
+     */
+    private void addAccessors(ClassWriter classWriter, String suffix, Type type) {
+        List<Integer> getters = Lists.newArrayList();
+        List<Integer> setters = Lists.newArrayList();
+
+        for (int i = 0; i < fields.size(); i++) {
+            if (SUFFIXES[Type.getType(fields.get(i).signature).getSort()].equals(suffix)) {
+                getters.add(i);
+                if ((nodes.get(i).access & ACC_FINAL) == 0) {
+                    setters.add(i);
+                }
+            }
+        }
+
+        if (!getters.isEmpty()) {
+            addSwitch(classWriter, "get" + suffix, "(Ljava/lang/Object;I)" + type.getDescriptor(), getters, false, type);
+        }
+        if (!setters.isEmpty()) {
+            addSwitch(classWriter, "set" + suffix, "(Ljava/lang/Object;I" + type.getDescriptor() + ")V", setters, true, type);
+        }
+    }
+
+    private void addSwitch(ClassWriter classWriter, String name, String desc, List<Integer> indexes, boolean set, Type type) {
+        MethodVisitor methodVisitor = classWriter.visitMethod(ACC_PUBLIC | ACC_FINAL, name, desc, null, null);
+        methodVisitor.visitCode();
+
+        int min = indexes.get(0);
+        int max = indexes.get(indexes.size() - 1);
+
+        Label fallback = new Label();
+        Label[] labels = new Label[max - min + 1];
+        Arrays.fill(labels, fallback);
+        for (int index : indexes) {
+            labels[index - min] = new Label();
+        }
+
+        methodVisitor.visitVarInsn(ILOAD, 2);
+        methodVisitor.visitTableSwitchInsn(min, max, fallback, labels);
+
+        for (int index : indexes) {
+            FieldMapping fieldMapping = fields.get(index);
+
+            methodVisitor.visitLabel(labels[index - min]);
+            methodVisitor.visitVarInsn(ALOAD, 1);
+            methodVisitor.visitTypeInsn(CHECKCAST, generator.subType);
+
+            if (set) {
+                methodVisitor.visitVarInsn(type.getOpcode(ILOAD), 3);
+                if (type.getSort() == Type.OBJECT) {
+                    methodVisitor.visitTypeInsn(CHECKCAST, Type.getType(fieldMapping.signature).getInternalName());
+                }
+            }
+
+            int opcode = set ? PUTFIELD : GETFIELD;
+            InsnList insnList = generator.storedFieldAccess(opcode, fieldMapping);
+            if (insnList != null) {
+                insnList.accept(methodVisitor);
+            } else {
+                methodVisitor.visitFieldInsn(opcode, generator.subType, fieldMapping.name, fieldMapping.signature);
+            }
+
+            methodVisitor.visitInsn(set ? RETURN : type.getOpcode(IRETURN));
+        }
+
+        // Unknown index or wrong type. Let the base class throw
+        methodVisitor.visitLabel(fallback);
+        methodVisitor.visitVarInsn(ALOAD, 0);
+        methodVisitor.visitVarInsn(ALOAD, 1);
+        methodVisitor.visitVarInsn(ILOAD, 2);
+        if (set) {
+            methodVisitor.visitVarInsn(type.getOpcode(ILOAD), 3);
+        }
+        methodVisitor.visitMethodInsn(INVOKESPECIAL, ACCESSOR_TYPE, name, desc, false);
+        methodVisitor.visitInsn(set ? RETURN : type.getOpcode(IRETURN));
+
+        methodVisitor.visitMaxs(8, 3 + (set ? type.getSize() : 0));
+        methodVisitor.visitEnd();
+    }
+}
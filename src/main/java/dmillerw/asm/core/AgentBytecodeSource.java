@@ -0,0 +1,43 @@
+package dmillerw.asm.core;
+
+import com.google.common.collect.Maps;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.Map;
+
+/**
+ * Keeps the bytes of classes handed to it, either directly or by watching class loading through an agent
+ * <p/>
+ * Useful for classes without a readable resource, such as those defined at runtime or loaded from a module image
+ */
+public class AgentBytecodeSource implements BytecodeSource, ClassFileTransformer {
+
+    private final Map<String, byte[]> classes = Maps.newConcurrentMap();
+
+    /**
+     * Starts recording the bytes of every class loaded from now on
+     */
+    public AgentBytecodeSource install(Instrumentation instrumentation) {
+        instrumentation.addTransformer(this);
+        return this;
+    }
+
+    public void put(String internalName, byte[] data) {
+        classes.put(internalName, data);
+    }
+
+    @Override
+    public byte[] getBytes(String internalName) {
+        return classes.get(internalName);
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        if (className != null) {
+            classes.put(className, classfileBuffer);
+        }
+        return null;
+    }
+}
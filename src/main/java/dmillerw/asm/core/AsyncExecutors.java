@@ -0,0 +1,85 @@
+package dmillerw.asm.core;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Executors that methods marked with {@link dmillerw.asm.annotation.MAsync} hand their calls to, by name
+ * <p/>
+ * Executors are looked up on every call, so they can be registered or swapped after the class is generated.
+ * Without one registered, calls go to the default executor: a virtual thread per call when the runtime has
+ * virtual threads, otherwise a shared pool of daemon threads
+ */
+public class AsyncExecutors {
+
+    private static final ConcurrentMap<String, Executor> EXECUTORS = Maps.newConcurrentMap();
+
+    private static volatile Executor defaultExecutor;
+
+    public static void register(String name, Executor executor) {
+        EXECUTORS.put(name, executor);
+    }
+
+    public static void unregister(String name) {
+        EXECUTORS.remove(name);
+    }
+
+    public static void setDefault(Executor executor) {
+        defaultExecutor = executor;
+    }
+
+    public static Executor get(String name) {
+        Executor executor = name.isEmpty() ? null : EXECUTORS.get(name);
+        return executor != null ? executor : getDefault();
+    }
+
+    public static Executor getDefault() {
+        Executor executor = defaultExecutor;
+        if (executor == null) {
+            synchronized (AsyncExecutors.class) {
+                if (defaultExecutor == null) {
+                    defaultExecutor = createDefault();
+                }
+                executor = defaultExecutor;
+            }
+        }
+        return executor;
+    }
+
+    private static Executor createDefault() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            SubclassGenerator.debug("Running async methods on virtual threads");
+            return (ExecutorService) method.invoke(null);
+        } catch (NoSuchMethodException ex) {
+            return Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true).setNameFormat("asm-async-%d").build());
+        } catch (Exception ex) {
+            throw new RuntimeException("Failed to create the virtual thread executor", ex);
+        }
+    }
+
+    /**
+     * Called by generated void methods
+     */
+    public static void execute(String name, Runnable task) {
+        get(name).execute(task);
+    }
+
+    /**
+     * Called by the generated Async variants of methods that return something
+     */
+    public static <T> ListenableFuture<T> submit(String name, Callable<T> task) {
+        ListenableFutureTask<T> future = ListenableFutureTask.create(task);
+        get(name).execute(future);
+        return future;
+    }
+}
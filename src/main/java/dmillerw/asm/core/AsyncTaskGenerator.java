@@ -0,0 +1,97 @@
+package dmillerw.asm.core;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Generates the task class a method marked with {@link dmillerw.asm.annotation.MAsync} hands to its executor
+ * <p/>
+ * The task holds the instance and each argument in a final field of its own type, so nothing is boxed or put in
+ * an array on the way. Void methods get a Runnable, others a Callable that boxes the result. Tasks call the
+ * method on the generated class, so the method can't be private
+ */
+class AsyncTaskGenerator {
+
+    final String taskName;
+    final String taskType;
+
+    final String ownerType;
+    final String methodName;
+    final String desc;
+
+    AsyncTaskGenerator(String taskName, String ownerType, String methodName, String desc) {
+        this.taskName = taskName;
+        this.taskType = taskName.replace(".", "/");
+        this.ownerType = ownerType;
+        this.methodName = methodName;
+        this.desc = desc;
+    }
+
+    /**
+     * @return The descriptor of the task's constructor: the instance, followed by the method's arguments
+     */
+    String getConstructorDesc() {
+        return "(L" + ownerType + ";" + desc.substring(1, desc.indexOf(')')) + ")V";
+    }
+
+    byte[] generate() {
+        Type[] argumentTypes = Type.getArgumentTypes(desc);
+        Type returnType = Type.getReturnType(desc);
+        boolean callable = returnType.getSort() != Type.VOID;
+
+        ClassWriter classWriter = new ClassWriter(0);
+
+        classWriter.visit(V1_6, ACC_SUPER | ACC_FINAL | ACC_SYNTHETIC, taskType, null, "java/lang/Object", new String[]{callable ? "java/util/concurrent/Callable" : "java/lang/Runnable"});
+        classWriter.visitSource(".dynamic", null);
+
+        classWriter.visitField(ACC_PRIVATE | ACC_FINAL, "target", "L" + ownerType + ";", null, null);
+        for (int i = 0; i < argumentTypes.length; i++) {
+            classWriter.visitField(ACC_PRIVATE | ACC_FINAL, "arg" + i, argumentTypes[i].getDescriptor(), null, null);
+        }
+
+        MethodVisitor methodVisitor = classWriter.visitMethod(0, "<init>", getConstructorDesc(), null, null);
+        methodVisitor.visitCode();
+        methodVisitor.visitVarInsn(ALOAD, 0);
+        methodVisitor.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        methodVisitor.visitVarInsn(ALOAD, 0);
+        methodVisitor.visitVarInsn(ALOAD, 1);
+        methodVisitor.visitFieldInsn(PUTFIELD, taskType, "target", "L" + ownerType + ";");
+        int local = 2;
+        for (int i = 0; i < argumentTypes.length; i++) {
+            methodVisitor.visitVarInsn(ALOAD, 0);
+            methodVisitor.visitVarInsn(argumentTypes[i].getOpcode(ILOAD), local);
+            methodVisitor.visitFieldInsn(PUTFIELD, taskType, "arg" + i, argumentTypes[i].getDescriptor());
+            local += argumentTypes[i].getSize();
+        }
+        methodVisitor.visitInsn(RETURN);
+        methodVisitor.visitMaxs(3, local);
+        methodVisitor.visitEnd();
+
+        methodVisitor = classWriter.visitMethod(ACC_PUBLIC, callable ? "call" : "run", callable ? "()Ljava/lang/Object;" : "()V", null, null);
+        methodVisitor.visitCode();
+        methodVisitor.visitVarInsn(ALOAD, 0);
+        methodVisitor.visitFieldInsn(GETFIELD, taskType, "target", "L" + ownerType + ";");
+        int stack = 1;
+        for (int i = 0; i < argumentTypes.length; i++) {
+            methodVisitor.visitVarInsn(ALOAD, 0);
+            methodVisitor.visitFieldInsn(GETFIELD, taskType, "arg" + i, argumentTypes[i].getDescriptor());
+            stack += argumentTypes[i].getSize();
+        }
+        methodVisitor.visitMethodInsn(INVOKEVIRTUAL, ownerType, methodName, desc, false);
+        if (callable) {
+            ASMUtils.box(methodVisitor, returnType);
+            methodVisitor.visitInsn(ARETURN);
+        } else {
+            methodVisitor.visitInsn(RETURN);
+        }
+        methodVisitor.visitMaxs(Math.max(stack + 1, returnType.getSize()), 1);
+        methodVisitor.visitEnd();
+
+        classWriter.visitEnd();
+
+        return classWriter.toByteArray();
+    }
+}
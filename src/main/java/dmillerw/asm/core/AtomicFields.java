@@ -0,0 +1,340 @@
+package dmillerw.asm.core;
+
+import com.google.common.collect.Maps;
+import dmillerw.asm.annotation.MAtomic;
+import dmillerw.asm.annotation.MLazy;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * The template fields marked {@link MAtomic}
+ * <p/>
+ * Each field stays a plain field, made volatile, with a static final field updater named _updater_ next to it,
+ * created when the class initializes. Updates template code makes to the field are rewritten into calls on the
+ * updater. Striped fields are replaced by a {@link StripedCounter} named _counter_
+ */
+class AtomicFields {
+
+    static final String UPDATER_PREFIX = "_updater_";
+    static final String COUNTER_PREFIX = "_counter_";
+
+    private static final String ATOMICS_TYPE = Type.getInternalName(Atomics.class);
+    private static final String COUNTER_TYPE = Type.getInternalName(StripedCounter.class);
+
+    final String subType;
+
+    // Fields with an updater, mapped to the updater's class
+    final Map<FieldMapping, Class<?>> updaterFields = Maps.newLinkedHashMap();
+    final Map<FieldMapping, FieldNode> counterFields = Maps.newLinkedHashMap();
+
+    AtomicFields(String subType, Map<FieldMapping, FieldNode> fieldNodes) {
+        this.subType = subType;
+
+        for (Map.Entry<FieldMapping, FieldNode> entry : fieldNodes.entrySet()) {
+            FieldMapping fieldMapping = entry.getKey();
+            FieldNode fieldNode = entry.getValue();
+
+            AnnotationNode annotationNode = ASMUtils.getAnnotation(fieldNode.visibleAnnotations, MAtomic.class);
+            if (annotationNode == null)
+                continue;
+
+            if ((fieldNode.access & ACC_STATIC) != 0) {
+                SubclassGenerator.debug("Only instance fields can be atomic, ignoring MAtomic on " + fieldMapping);
+                continue;
+            }
+            if (ASMUtils.getAnnotation(fieldNode.visibleAnnotations, MLazy.class) != null) {
+                SubclassGenerator.debug("Field " + fieldMapping + " is lazy, ignoring MAtomic");
+                continue;
+            }
+
+            Type type = Type.getType(fieldNode.desc);
+            Object striped = ASMUtils.getValue(annotationNode, "striped");
+            if (striped != null && (Boolean) striped) {
+                if (type.getSort() == Type.LONG) {
+                    SubclassGenerator.debug("Storing field " + fieldMapping + " in a striped counter");
+                    counterFields.put(fieldMapping, fieldNode);
+                } else {
+                    SubclassGenerator.debug("Only long fields can be striped, ignoring MAtomic on " + fieldMapping);
+                }
+                continue;
+            }
+
+            Class<?> updater;
+            if (type.getSort() == Type.INT) {
+                updater = AtomicIntegerFieldUpdater.class;
+            } else if (type.getSort() == Type.LONG) {
+                updater = AtomicLongFieldUpdater.class;
+            } else if (type.getSort() >= Type.ARRAY) {
+                updater = AtomicReferenceFieldUpdater.class;
+            } else {
+                SubclassGenerator.debug("Only int, long and reference fields can be atomic, ignoring MAtomic on " + fieldMapping);
+                continue;
+            }
+
+            SubclassGenerator.debug("Updating field " + fieldMapping + " through " + updater.getSimpleName());
+            updaterFields.put(fieldMapping, updater);
+        }
+    }
+
+    boolean isEmpty() {
+        return updaterFields.isEmpty() && counterFields.isEmpty();
+    }
+
+    boolean isAtomic(FieldMapping fieldMapping) {
+        return updaterFields.containsKey(fieldMapping) || counterFields.containsKey(fieldMapping);
+    }
+
+    boolean isCounter(FieldMapping fieldMapping) {
+        return counterFields.containsKey(fieldMapping);
+    }
+
+    /**
+     * Writes the updaters and counters. The fields themselves are written by the generator, made volatile
+     */
+    void addFields(ClassWriter classWriter) {
+        for (Map.Entry<FieldMapping, Class<?>> entry : updaterFields.entrySet()) {
+            classWriter.visitField(ACC_PRIVATE | ACC_STATIC | ACC_FINAL, UPDATER_PREFIX + entry.getKey().name, Type.getDescriptor(entry.getValue()), null, null);
+        }
+
+        for (FieldNode fieldNode : counterFields.values()) {
+            classWriter.visitField(ACC_PRIVATE | ACC_FINAL, COUNTER_PREFIX + fieldNode.name, Type.getDescriptor(StripedCounter.class), null, null);
+        }
+    }
+
+    /**
+     * Writes the static initializer creating the updaters. They're created by the class itself, so they can reach
+     * private fields, and being static final the JIT treats them as constants
+     */
+    void addStaticInit(ClassWriter classWriter) {
+        if (updaterFields.isEmpty())
+            return;
+
+        MethodVisitor methodVisitor = classWriter.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
+        methodVisitor.visitCode();
+        for (Map.Entry<FieldMapping, Class<?>> entry : updaterFields.entrySet()) {
+            String updaterType = Type.getInternalName(entry.getValue());
+            Type fieldType = Type.getType(entry.getKey().signature);
+
+            methodVisitor.visitLdcInsn(Type.getObjectType(subType));
+            if (entry.getValue() == AtomicReferenceFieldUpdater.class) {
+                methodVisitor.visitLdcInsn(fieldType);
+                methodVisitor.visitLdcInsn(entry.getKey().name);
+                methodVisitor.visitMethodInsn(INVOKESTATIC, updaterType, "newUpdater", "(Ljava/lang/Class;Ljava/lang/Class;Ljava/lang/String;)L" + updaterType + ";", false);
+            } else {
+                methodVisitor.visitLdcInsn(entry.getKey().name);
+                methodVisitor.visitMethodInsn(INVOKESTATIC, updaterType, "newUpdater", "(Ljava/lang/Class;Ljava/lang/String;)L" + updaterType + ";", false);
+            }
+            methodVisitor.visitFieldInsn(PUTSTATIC, subType, UPDATER_PREFIX + entry.getKey().name, "L" + updaterType + ";");
+        }
+        methodVisitor.visitInsn(RETURN);
+        methodVisitor.visitMaxs(3, 0);
+        methodVisitor.visitEnd();
+    }
+
+    /**
+     * Creates the counters, in a constructor right after the super constructor returns. Needs a stack of 3
+     */
+    void addConstructorInit(MethodVisitor methodVisitor) {
+        for (FieldNode fieldNode : counterFields.values()) {
+            methodVisitor.visitVarInsn(ALOAD, 0);
+            methodVisitor.visitTypeInsn(NEW, COUNTER_TYPE);
+            methodVisitor.visitInsn(DUP);
+            methodVisitor.visitMethodInsn(INVOKESPECIAL, COUNTER_TYPE, "<init>", "()V", false);
+            methodVisitor.visitFieldInsn(PUTFIELD, subType, COUNTER_PREFIX + fieldNode.name, "L" + COUNTER_TYPE + ";");
+        }
+    }
+
+    /**
+     * Builds the instructions that stand in for a GETFIELD or PUTFIELD of a striped field. They see, and leave,
+     * the same operands the original instruction would have. Fields with an updater are read and written as they
+     * are
+     *
+     * @return The replacement instructions, or null if the field isn't striped or the opcode isn't an instance
+     * field access
+     */
+    InsnList access(int opcode, FieldMapping fieldMapping) {
+        if ((opcode != GETFIELD && opcode != PUTFIELD) || !counterFields.containsKey(fieldMapping))
+            return null;
+
+        InsnList insnList = new InsnList();
+        if (opcode == GETFIELD) {
+            // [this] -> [counter] -> [sum]
+            insnList.add(getCounter(fieldMapping));
+            insnList.add(new MethodInsnNode(INVOKEVIRTUAL, COUNTER_TYPE, "sum", "()J", false));
+        } else {
+            // [this, value] -> [value, this] -> [value, counter] -> [counter, value]
+            insnList.add(new InsnNode(DUP2_X1));
+            insnList.add(new InsnNode(POP2));
+            insnList.add(getCounter(fieldMapping));
+            insnList.add(new InsnNode(DUP_X2));
+            insnList.add(new InsnNode(POP));
+            insnList.add(new MethodInsnNode(INVOKEVIRTUAL, COUNTER_TYPE, "set", "(J)V", false));
+        }
+        return insnList;
+    }
+
+    /**
+     * Plans the rewrite of the atomic field updates in a template method: += and the like, and calls to
+     * {@link Atomics}. Every other access to the fields is left to {@link #access}
+     *
+     * @param templateType The class the template method is analyzed as part of
+     * @return The instructions standing in for each template instruction that changes. An empty list removes
+     * the instruction
+     */
+    Map<AbstractInsnNode, InsnList> plan(String templateType, MethodNode methodNode) {
+        Map<AbstractInsnNode, InsnList> plan = Maps.newHashMap();
+
+        for (FlowAnalysis.FieldUpdate update : FlowAnalysis.findFieldUpdates(templateType, methodNode).values()) {
+            if (!update.put.owner.equals(templateType))
+                continue;
+
+            FieldMapping fieldMapping = new FieldMapping(update.put.name, update.put.desc);
+            if (updaterFields.containsKey(fieldMapping)) {
+                planUpdaterAdd(plan, update, fieldMapping);
+            } else if (counterFields.containsKey(fieldMapping)) {
+                planCounterAdd(plan, update, fieldMapping);
+            }
+        }
+
+        for (Map.Entry<MethodInsnNode, FieldInsnNode> entry : FlowAnalysis.findFieldArguments(templateType, methodNode, ATOMICS_TYPE).entrySet()) {
+            FieldInsnNode fieldNode = entry.getValue();
+            if (!fieldNode.owner.equals(templateType))
+                continue;
+
+            FieldMapping fieldMapping = new FieldMapping(fieldNode.name, fieldNode.desc);
+            Class<?> updater = updaterFields.get(fieldMapping);
+            if (updater == null)
+                continue;
+
+            // [this] -> [updater, this], and the call takes the updater and the object in place of the value
+            MethodInsnNode call = entry.getKey();
+            InsnList read = new InsnList();
+            read.add(getUpdater(fieldMapping, updater));
+            read.add(new InsnNode(SWAP));
+            plan.put(fieldNode, read);
+
+            Type[] argumentTypes = Type.getArgumentTypes(call.desc);
+            argumentTypes[0] = Type.getType(Object.class);
+            plan.put(call, single(new MethodInsnNode(INVOKEVIRTUAL, Type.getInternalName(updater), call.name, Type.getMethodDescriptor(Type.getReturnType(call.desc), argumentTypes), false)));
+            SubclassGenerator.debug("Redirected Atomics." + call.name + " on " + fieldMapping + " to its updater");
+        }
+
+        return plan;
+    }
+
+    /**
+     * Fails on any call to {@link Atomics} in a template method that the plan doesn't rewrite, as the call would
+     * reach the stub
+     *
+     * @param plan The plan of the method, empty when nothing in the class can be rewritten
+     * @throws IllegalStateException Naming the call, the method and the field the call was given, if any
+     */
+    static void checkRewritten(String templateType, MethodNode methodNode, Map<AbstractInsnNode, InsnList> plan) {
+        Map<MethodInsnNode, FieldInsnNode> arguments = null;
+
+        for (AbstractInsnNode insnNode = methodNode.instructions.getFirst(); insnNode != null; insnNode = insnNode.getNext()) {
+            if (insnNode.getOpcode() != INVOKESTATIC || !((MethodInsnNode) insnNode).owner.equals(ATOMICS_TYPE) || plan.containsKey(insnNode))
+                continue;
+
+            if (arguments == null) {
+                arguments = FlowAnalysis.findFieldArguments(templateType, methodNode, ATOMICS_TYPE);
+            }
+            FieldInsnNode fieldNode = arguments.get(insnNode);
+            String argument = fieldNode != null
+                    ? "field " + fieldNode.name + ", which has no updater. Only @MAtomic int, long and reference fields that aren't striped do"
+                    : "a value that isn't read straight from a template field";
+            throw new IllegalStateException("Atomics." + ((MethodInsnNode) insnNode).name + " in " + templateType.replace('/', '.') + "." + methodNode.name + methodNode.desc + " is called on " + argument);
+        }
+    }
+
+    private void planUpdaterAdd(Map<AbstractInsnNode, InsnList> plan, FlowAnalysis.FieldUpdate update, FieldMapping fieldMapping) {
+        Class<?> updater = updaterFields.get(fieldMapping);
+        if (updater == AtomicReferenceFieldUpdater.class)
+            return;
+
+        Type type = Type.getType(fieldMapping.signature);
+
+        // [this] -> [updater, this], and the read goes away
+        InsnList dup = new InsnList();
+        dup.add(getUpdater(fieldMapping, updater));
+        dup.add(new InsnNode(SWAP));
+        plan.put(update.dup, dup);
+        plan.put(update.get, new InsnList());
+
+        // [updater, this, delta] -> [old] or [new]
+        InsnList add = new InsnList();
+        if (update.isSubtract()) {
+            add.add(new InsnNode(type.getSize() == 2 ? LNEG : INEG));
+        }
+        String name = update.keepNew != null ? "addAndGet" : "getAndAdd";
+        add.add(new MethodInsnNode(INVOKEVIRTUAL, Type.getInternalName(updater), name, "(Ljava/lang/Object;" + type.getDescriptor() + ")" + type.getDescriptor(), false));
+        plan.put(update.add, add);
+
+        if (update.keepOld != null || update.keepNew != null) {
+            plan.put(update.keepOld != null ? update.keepOld : update.keepNew, new InsnList());
+            plan.put(update.put, new InsnList());
+        } else {
+            plan.put(update.put, single(new InsnNode(type.getSize() == 2 ? POP2 : POP)));
+        }
+
+        SubclassGenerator.debug("Redirected update of " + fieldMapping + " to its updater");
+    }
+
+    private void planCounterAdd(Map<AbstractInsnNode, InsnList> plan, FlowAnalysis.FieldUpdate update, FieldMapping fieldMapping) {
+        // [this] -> [counter], with the old value under it when that's kept
+        InsnList dup = new InsnList();
+        dup.add(getCounter(fieldMapping));
+        if (update.keepOld != null) {
+            // [counter] -> [counter, sum] -> [sum, counter]
+            dup.add(new InsnNode(DUP));
+            dup.add(new MethodInsnNode(INVOKEVIRTUAL, COUNTER_TYPE, "sum", "()J", false));
+            dup.add(new InsnNode(DUP2_X1));
+            dup.add(new InsnNode(POP2));
+        } else if (update.keepNew != null) {
+            dup.add(new InsnNode(DUP));
+        }
+        plan.put(update.dup, dup);
+        plan.put(update.get, new InsnList());
+
+        // [counter, delta] -> [], or [counter, counter, delta] -> [sum]
+        InsnList add = new InsnList();
+        if (update.isSubtract()) {
+            add.add(new InsnNode(LNEG));
+        }
+        add.add(new MethodInsnNode(INVOKEVIRTUAL, COUNTER_TYPE, "add", "(J)V", false));
+        if (update.keepNew != null) {
+            add.add(new MethodInsnNode(INVOKEVIRTUAL, COUNTER_TYPE, "sum", "()J", false));
+        }
+        plan.put(update.add, add);
+
+        if (update.keepOld != null || update.keepNew != null) {
+            plan.put(update.keepOld != null ? update.keepOld : update.keepNew, new InsnList());
+        }
+        plan.put(update.put, new InsnList());
+
+        SubclassGenerator.debug("Redirected update of " + fieldMapping + " to its striped counter");
+    }
+
+    private FieldInsnNode getUpdater(FieldMapping fieldMapping, Class<?> updater) {
+        return new FieldInsnNode(GETSTATIC, subType, UPDATER_PREFIX + fieldMapping.name, Type.getDescriptor(updater));
+    }
+
+    private FieldInsnNode getCounter(FieldMapping fieldMapping) {
+        return new FieldInsnNode(GETFIELD, subType, COUNTER_PREFIX + fieldMapping.name, "L" + COUNTER_TYPE + ";");
+    }
+
+    private static InsnList single(AbstractInsnNode insnNode) {
+        InsnList insnList = new InsnList();
+        insnList.add(insnNode);
+        return insnList;
+    }
+}
@@ -0,0 +1,76 @@
+package dmillerw.asm.core;
+
+/**
+ * Atomic operations on {@link dmillerw.asm.annotation.MAtomic} fields, for template code. The field is passed as
+ * the first argument, as in Atomics.compareAndSet(count, expect, update), and the generator turns the call into
+ * the same operation on the field's updater
+ * <p/>
+ * The field has to be read straight into the call. Generating a class fails with an IllegalStateException naming
+ * the method and field of any call that can't be rewritten, so the methods here only exist to compile against.
+ * Templates woven in place or used for proxies can't call them at all
+ */
+public final class Atomics {
+
+    private Atomics() {
+    }
+
+    // Only reached by calls from outside template code
+    private static IllegalStateException notRewritten() {
+        return new IllegalStateException("Atomics only works on @MAtomic fields, from template code");
+    }
+
+    public static boolean compareAndSet(int field, int expect, int update) {
+        throw notRewritten();
+    }
+
+    public static boolean compareAndSet(long field, long expect, long update) {
+        throw notRewritten();
+    }
+
+    public static <T> boolean compareAndSet(T field, T expect, T update) {
+        throw notRewritten();
+    }
+
+    public static int getAndSet(int field, int value) {
+        throw notRewritten();
+    }
+
+    public static long getAndSet(long field, long value) {
+        throw notRewritten();
+    }
+
+    public static <T> T getAndSet(T field, T value) {
+        throw notRewritten();
+    }
+
+    public static int getAndAdd(int field, int delta) {
+        throw notRewritten();
+    }
+
+    public static long getAndAdd(long field, long delta) {
+        throw notRewritten();
+    }
+
+    public static int addAndGet(int field, int delta) {
+        throw notRewritten();
+    }
+
+    public static long addAndGet(long field, long delta) {
+        throw notRewritten();
+    }
+
+    /**
+     * Sets the field without waiting for the write to become visible to other threads
+     */
+    public static void lazySet(int field, int value) {
+        throw notRewritten();
+    }
+
+    public static void lazySet(long field, long value) {
+        throw notRewritten();
+    }
+
+    public static <T> void lazySet(T field, T value) {
+        throw notRewritten();
+    }
+}
@@ -0,0 +1,19 @@
+package dmillerw.asm.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Implemented by generated classes with a serializer, see {@link SubclassGenerator#setGenerateSerializer}
+ * <p/>
+ * The layout starts with an int identifying it, followed by every serialized field in name order. Buffers are
+ * read and written in their own byte order, from their current position
+ */
+public interface BufferSerializable {
+
+    public void writeTo(ByteBuffer buffer);
+
+    /**
+     * @throws IllegalStateException If the buffer holds a different layout
+     */
+    public void readFrom(ByteBuffer buffer);
+}
@@ -0,0 +1,50 @@
+package dmillerw.asm.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Called by generated serializers for anything that isn't a single ByteBuffer call
+ */
+public class BufferSerializers {
+
+    public static void checkLayout(int layout, int expected) {
+        if (layout != expected) {
+            throw new IllegalStateException("Buffer holds layout " + Integer.toHexString(layout) + ", expected " + Integer.toHexString(expected));
+        }
+    }
+
+    /**
+     * Writes the length, or -1 for null, followed by the chars
+     */
+    public static void writeString(ByteBuffer buffer, String string) {
+        if (string == null) {
+            buffer.putInt(-1);
+            return;
+        }
+
+        int length = string.length();
+        buffer.putInt(length);
+        for (int i = 0; i < length; i++) {
+            buffer.putChar(string.charAt(i));
+        }
+    }
+
+    public static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0)
+            return null;
+
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = buffer.getChar();
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Writes the ordinal, or -1 for null
+     */
+    public static void writeEnum(ByteBuffer buffer, Enum<?> value) {
+        buffer.putInt(value == null ? -1 : value.ordinal());
+    }
+}
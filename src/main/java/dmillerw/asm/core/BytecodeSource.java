@@ -0,0 +1,15 @@
+package dmillerw.asm.core;
+
+/**
+ * Somewhere class bytes can be read from, other than the class' own resource
+ *
+ * @see ASMUtils#addBytecodeSource(BytecodeSource)
+ */
+public interface BytecodeSource {
+
+    /**
+     * @param internalName The class' internal name, with / separators
+     * @return The class file bytes, or null if this source doesn't know the class
+     */
+    public byte[] getBytes(String internalName);
+}
@@ -0,0 +1,225 @@
+package dmillerw.asm.core;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import dmillerw.asm.annotation.MCopy;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AnnotationNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.InsnList;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.Map;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Writes the copy constructor and {@link Copyable} methods of a class whose template is marked with {@link MCopy}
+ * <p/>
+ * Fields are copied where the field layout put them: packed words as whole words, columns through the new
+ * instance's own slot. Caches, locks and counters are created fresh for the copy, as a constructor would, and
+ * counters then take the original's sum
+ */
+class CopyGenerator {
+
+    private static final String COPYABLE_TYPE = Type.getInternalName(Copyable.class);
+
+    final SubclassGenerator<?> generator;
+
+    // Copied fields, mapped to how they're copied
+    final Map<FieldMapping, MCopy.Mode> fields = Maps.newLinkedHashMap();
+
+    // The super constructor taking an instance of the super class, if there is one
+    final boolean superCopy;
+
+    // Whether a copy method the super class implements may be replaced
+    final boolean override;
+
+    // Return types of the copy methods the generated class has to implement, besides its own
+    final List<Type> bridges = Lists.newArrayList();
+
+    CopyGenerator(SubclassGenerator<?> generator, AnnotationNode annotationNode) {
+        this.generator = generator;
+
+        MCopy.Mode defaultMode = getMode(annotationNode, MCopy.Mode.SHALLOW);
+        for (Map.Entry<FieldMapping, FieldNode> entry : generator.fieldNodes.entrySet()) {
+            if ((entry.getValue().access & ACC_STATIC) != 0)
+                continue;
+
+            MCopy.Mode mode = getMode(ASMUtils.getAnnotation(entry.getValue().visibleAnnotations, MCopy.class), defaultMode);
+            if (mode == MCopy.Mode.DEEP && Type.getType(entry.getKey().signature).getSort() < Type.ARRAY) {
+                mode = MCopy.Mode.SHALLOW;
+            }
+            fields.put(entry.getKey(), mode);
+        }
+
+        boolean superCopy = false;
+        for (Constructor<?> constructor : generator.superClass.getDeclaredConstructors()) {
+            Class<?>[] parameters = constructor.getParameterTypes();
+            if (parameters.length == 1 && parameters[0] == generator.superClass && (constructor.getModifiers() & (Modifier.PUBLIC | Modifier.PROTECTED)) != 0) {
+                superCopy = true;
+            }
+        }
+        this.superCopy = superCopy;
+
+        Object override = ASMUtils.getValue(annotationNode, "override");
+        this.override = override != null && (Boolean) override;
+
+        bridges.add(Type.getType(Object.class));
+        for (Method method : generator.superClass.getMethods()) {
+            if (method.getName().equals("copy") && method.getParameterTypes().length == 0 && method.getReturnType().isAssignableFrom(generator.superClass)) {
+                Type type = Type.getType(method.getReturnType());
+                if (!bridges.contains(type)) {
+                    bridges.add(type);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The mode the annotation picks, or the default mode without one
+     */
+    private static MCopy.Mode getMode(AnnotationNode annotationNode, MCopy.Mode defaultMode) {
+        if (annotationNode == null)
+            return defaultMode;
+
+        Object mode = ASMUtils.getValue(annotationNode, "value");
+        return mode == null ? MCopy.Mode.SHALLOW : MCopy.Mode.valueOf(((String[]) mode)[1]);
+    }
+
+    /**
+     * @return Why the super class rules out copies, or null if it doesn't
+     */
+    String getConflict() {
+        if (!superCopy) {
+            try {
+                Constructor<?> constructor = generator.superClass.getDeclaredConstructor();
+                if ((constructor.getModifiers() & (Modifier.PUBLIC | Modifier.PROTECTED)) == 0) {
+                    return "its no argument constructor isn't visible";
+                }
+            } catch (NoSuchMethodException ex) {
+                return "it has neither a copy constructor nor a no argument one";
+            }
+        }
+
+        for (Method method : generator.superClass.getMethods()) {
+            if (method.getName().equals("copy") && method.getParameterTypes().length == 0) {
+                if (Modifier.isFinal(method.getModifiers())) {
+                    return "it has a final copy method";
+                } else if (!method.getReturnType().isAssignableFrom(generator.superClass)) {
+                    return "it has a copy method returning " + method.getReturnType().getName();
+                } else if (!Modifier.isAbstract(method.getModifiers()) && !override) {
+                    return "it implements a copy method, which MCopy's override would replace";
+                }
+            }
+        }
+
+        for (MethodMapping methodMapping : generator.overrideMethods) {
+            if (methodMapping.name.equals("copy") && methodMapping.signature.startsWith("()")) {
+                return "the template overrides its copy method";
+            }
+        }
+        return null;
+    }
+
+    void addMethods(ClassWriter classWriter) {
+        String subDesc = "L" + generator.subType + ";";
+
+        MethodVisitor methodVisitor = classWriter.visitMethod(ACC_PUBLIC, "<init>", "(" + subDesc + ")V", null, null);
+        methodVisitor.visitCode();
+
+        generator.addInstanceInit(methodVisitor);
+
+        methodVisitor.visitVarInsn(ALOAD, 0);
+        if (superCopy) {
+            methodVisitor.visitVarInsn(ALOAD, 1);
+            methodVisitor.visitMethodInsn(INVOKESPECIAL, generator.superType, "<init>", "(L" + generator.superType + ";)V", false);
+        } else {
+            methodVisitor.visitMethodInsn(INVOKESPECIAL, generator.superType, "<init>", "()V", false);
+        }
+
+        // Packed words are copied whole, rather than a bit field at a time
+        FieldPacking fieldPacking = generator.fieldPacking;
+        if (fieldPacking != null) {
+            for (String word : fieldPacking.words) {
+                methodVisitor.visitVarInsn(ALOAD, 0);
+                methodVisitor.visitVarInsn(ALOAD, 1);
+                methodVisitor.visitFieldInsn(GETFIELD, generator.subType, word, "I");
+                methodVisitor.visitFieldInsn(PUTFIELD, generator.subType, word, "I");
+            }
+        }
+
+        for (Map.Entry<FieldMapping, MCopy.Mode> entry : fields.entrySet()) {
+            FieldMapping fieldMapping = entry.getKey();
+            if (fieldPacking != null && fieldPacking.bitFields.containsKey(fieldMapping))
+                continue;
+
+            // [this, original] -> [this, value]
+            methodVisitor.visitVarInsn(ALOAD, 0);
+            methodVisitor.visitVarInsn(ALOAD, 1);
+            accessField(methodVisitor, GETFIELD, fieldMapping);
+            if (entry.getValue() == MCopy.Mode.DEEP) {
+                copyValue(methodVisitor, Type.getType(fieldMapping.signature));
+            }
+            accessField(methodVisitor, PUTFIELD, fieldMapping);
+        }
+
+        methodVisitor.visitInsn(RETURN);
+        methodVisitor.visitMaxs(Math.max(generator.cacheMethods.isEmpty() ? 0 : 6, 4 + generator.stackPadding()), 2);
+        methodVisitor.visitEnd();
+
+        methodVisitor = classWriter.visitMethod(ACC_PUBLIC | (generator.devirtualize ? ACC_FINAL : 0), "copy", "()" + subDesc, null, null);
+        methodVisitor.visitCode();
+        methodVisitor.visitTypeInsn(NEW, generator.subType);
+        methodVisitor.visitInsn(DUP);
+        methodVisitor.visitVarInsn(ALOAD, 0);
+        methodVisitor.visitMethodInsn(INVOKESPECIAL, generator.subType, "<init>", "(" + subDesc + ")V", false);
+        methodVisitor.visitInsn(ARETURN);
+        methodVisitor.visitMaxs(3, 1);
+        methodVisitor.visitEnd();
+
+        for (Type bridge : bridges) {
+            methodVisitor = classWriter.visitMethod(ACC_PUBLIC | ACC_BRIDGE | ACC_SYNTHETIC, "copy", "()" + bridge.getDescriptor(), null, null);
+            methodVisitor.visitCode();
+            methodVisitor.visitVarInsn(ALOAD, 0);
+            methodVisitor.visitMethodInsn(INVOKEVIRTUAL, generator.subType, "copy", "()" + subDesc, false);
+            methodVisitor.visitInsn(ARETURN);
+            methodVisitor.visitMaxs(1, 1);
+            methodVisitor.visitEnd();
+        }
+    }
+
+    /**
+     * [value] -> [copy]. Arrays are cloned, values that turn out to be Copyable are copied, and null stays null
+     */
+    private void copyValue(MethodVisitor methodVisitor, Type type) {
+        Label end = new Label();
+        methodVisitor.visitInsn(DUP);
+        if (type.getSort() == Type.ARRAY) {
+            methodVisitor.visitJumpInsn(IFNULL, end);
+            methodVisitor.visitMethodInsn(INVOKEVIRTUAL, type.getDescriptor(), "clone", "()Ljava/lang/Object;", false);
+        } else {
+            methodVisitor.visitTypeInsn(INSTANCEOF, COPYABLE_TYPE);
+            methodVisitor.visitJumpInsn(IFEQ, end);
+            methodVisitor.visitTypeInsn(CHECKCAST, COPYABLE_TYPE);
+            methodVisitor.visitMethodInsn(INVOKEINTERFACE, COPYABLE_TYPE, "copy", "()Ljava/lang/Object;", true);
+        }
+        methodVisitor.visitTypeInsn(CHECKCAST, type.getSort() == Type.ARRAY ? type.getDescriptor() : type.getInternalName());
+        methodVisitor.visitLabel(end);
+    }
+
+    private void accessField(MethodVisitor methodVisitor, int opcode, FieldMapping fieldMapping) {
+        InsnList insnList = generator.storedFieldAccess(opcode, fieldMapping);
+        if (insnList != null) {
+            insnList.accept(methodVisitor);
+        } else {
+            methodVisitor.visitFieldInsn(opcode, generator.subType, fieldMapping.name, fieldMapping.signature);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package dmillerw.asm.core;
+
+/**
+ * Implemented by generated classes whose template is marked with {@link dmillerw.asm.annotation.MCopy}
+ * <p/>
+ * The generated class also declares copy() returning its own type, and a constructor taking an instance of itself
+ */
+public interface Copyable<T> {
+
+    /**
+     * @return A new instance holding the same template field values
+     */
+    public T copy();
+}
@@ -0,0 +1,137 @@
+package dmillerw.asm.core;
+
+import com.google.common.collect.MapMaker;
+
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Typed access to the template fields of a generated class, without reflection or boxing
+ * <p/>
+ * Fields are addressed by index, in the order they're declared in the template. Generated subclasses override
+ * the getters and setters for the field types the template actually declares. Calling an accessor for the wrong
+ * type, or with an unknown index, throws an {@link IllegalArgumentException}
+ */
+public abstract class FieldAccessor {
+
+    private static final ConcurrentMap<Class<?>, FieldAccessor> ACCESSORS = new MapMaker().weakKeys().makeMap();
+
+    /**
+     * @return The accessor generated alongside the class, or null if the class was generated without one
+     */
+    public static FieldAccessor get(Class<?> generatedClass) {
+        return ACCESSORS.get(generatedClass);
+    }
+
+    static void register(Class<?> generatedClass, FieldAccessor accessor) {
+        ACCESSORS.put(generatedClass, accessor);
+    }
+
+    String[] names;
+    Class<?>[] types;
+
+    public int getFieldCount() {
+        return names.length;
+    }
+
+    public String getFieldName(int index) {
+        return names[index];
+    }
+
+    public Class<?> getFieldType(int index) {
+        return types[index];
+    }
+
+    /**
+     * @return The index of the named field, or -1 if the template didn't declare it
+     */
+    public int indexOf(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean getBoolean(Object instance, int index) {
+        throw mismatch(index, boolean.class);
+    }
+
+    public void setBoolean(Object instance, int index, boolean value) {
+        throw mismatch(index, boolean.class);
+    }
+
+    public byte getByte(Object instance, int index) {
+        throw mismatch(index, byte.class);
+    }
+
+    public void setByte(Object instance, int index, byte value) {
+        throw mismatch(index, byte.class);
+    }
+
+    public char getChar(Object instance, int index) {
+        throw mismatch(index, char.class);
+    }
+
+    public void setChar(Object instance, int index, char value) {
+        throw mismatch(index, char.class);
+    }
+
+    public short getShort(Object instance, int index) {
+        throw mismatch(index, short.class);
+    }
+
+    public void setShort(Object instance, int index, short value) {
+        throw mismatch(index, short.class);
+    }
+
+    public int getInt(Object instance, int index) {
+        throw mismatch(index, int.class);
+    }
+
+    public void setInt(Object instance, int index, int value) {
+        throw mismatch(index, int.class);
+    }
+
+    public long getLong(Object instance, int index) {
+        throw mismatch(index, long.class);
+    }
+
+    public void setLong(Object instance, int index, long value) {
+        throw mismatch(index, long.class);
+    }
+
+    public float getFloat(Object instance, int index) {
+        throw mismatch(index, float.class);
+    }
+
+    public void setFloat(Object instance, int index, float value) {
+        throw mismatch(index, float.class);
+    }
+
+    public double getDouble(Object instance, int index) {
+        throw mismatch(index, double.class);
+    }
+
+    public void setDouble(Object instance, int index, double value) {
+        throw mismatch(index, double.class);
+    }
+
+    public Object getObject(Object instance, int index) {
+        throw mismatch(index, Object.class);
+    }
+
+    public void setObject(Object instance, int index, Object value) {
+        throw mismatch(index, Object.class);
+    }
+
+    private IllegalArgumentException mismatch(int index, Class<?> type) {
+        if (index < 0 || index >= names.length) {
+            return new IllegalArgumentException("No field with index " + index);
+        }
+        if (types[index] == type || (!type.isPrimitive() && !types[index].isPrimitive())) {
+            return new IllegalArgumentException("Field " + names[index] + " is final");
+        }
+        return new IllegalArgumentException("Field " + names[index] + " is a " + types[index].getName() + ", not " + type.getName());
+    }
+}
@@ -0,0 +1,28 @@
+package dmillerw.asm.core;
+
+public enum FieldLayout {
+
+    /**
+     * Every annotated template field is copied into the generated class as a normal instance field
+     */
+    INSTANCE,
+
+    /**
+     * Primitive template fields are moved out of the instance and into per-field slab columns, shared by
+     * every instance of the generated class. Each instance only holds the slot id it was allocated
+     *
+     * @see SlabAllocator
+     */
+    COLUMNAR,
+
+    /**
+     * Fields stay in the instance, but take less room. Boolean fields, and fields of public enums, are packed into
+     * the bits of generated int fields. Integral fields annotated with {@link dmillerw.asm.annotation.MRange} are
+     * stored in the narrowest primitive covering their range. Every other field is kept as it is
+     * <p/>
+     * Writing a bit field reads its word, changes its bits and writes the word back, without any locking. Two
+     * threads writing different fields of the same word at once can lose one of the writes. Volatile fields are
+     * never packed, so mark fields written from several threads volatile, or {@link dmillerw.asm.annotation.MAtomic}
+     */
+    PACKED
+}
@@ -0,0 +1,365 @@
+package dmillerw.asm.core;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import dmillerw.asm.annotation.MAtomic;
+import dmillerw.asm.annotation.MRange;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * The {@link FieldLayout#PACKED} layout of a generated class' template fields
+ * <p/>
+ * Bit fields live in int fields named _bits_0, _bits_1 and so on, and never span two of them. Enums are stored as
+ * their ordinal plus one, so null is zero, and read back through a static _enum_ array of their constants
+ */
+class FieldPacking {
+
+    static final String BITS_PREFIX = "_bits_";
+    static final String ENUM_PREFIX = "_enum_";
+
+    private static final int WORD_BITS = 32;
+
+    static class BitField {
+
+        final String word;
+        final int shift;
+        final int mask;
+        // Null for booleans
+        final Class<?> enumClass;
+
+        BitField(String word, int shift, int bits, Class<?> enumClass) {
+            this.word = word;
+            this.shift = shift;
+            this.mask = bits == WORD_BITS ? -1 : (1 << bits) - 1;
+            this.enumClass = enumClass;
+        }
+    }
+
+    final String subType;
+
+    final Map<FieldMapping, BitField> bitFields = Maps.newHashMap();
+    // Fields stored narrower than declared, mapped to the type they're stored as
+    final Map<FieldMapping, Type> narrowFields = Maps.newHashMap();
+    final List<String> words = Lists.newArrayList();
+
+    // Bytes of field data, before and after packing
+    int sizeBefore;
+    int sizeAfter;
+
+    FieldPacking(String subType, Map<FieldMapping, FieldNode> fieldNodes) {
+        this.subType = subType;
+
+        List<FieldMapping> packable = Lists.newArrayList();
+        for (FieldMapping fieldMapping : fieldNodes.keySet()) {
+            if ((fieldNodes.get(fieldMapping).access & ACC_STATIC) != 0)
+                continue;
+
+            sizeBefore += getSize(Type.getType(fieldMapping.signature));
+
+            // Atomic fields are updated in place, as they're declared
+            if (ASMUtils.getAnnotation(fieldNodes.get(fieldMapping).visibleAnnotations, MAtomic.class) != null)
+                continue;
+
+            // Writes to a bit field rewrite its whole word, so volatile fields keep a field of their own
+            if (getBits(fieldMapping.type) > 0 && (fieldNodes.get(fieldMapping).access & ACC_VOLATILE) == 0) {
+                packable.add(fieldMapping);
+                continue;
+            }
+
+            Type narrowType = getNarrowType(fieldNodes.get(fieldMapping), fieldMapping);
+            if (narrowType != null) {
+                SubclassGenerator.debug("Storing field " + fieldMapping + " as " + narrowType);
+                narrowFields.put(fieldMapping, narrowType);
+            }
+        }
+
+        // Widest first, so the words fill up evenly. Sorted by name after that, so the layout doesn't change
+        Collections.sort(packable, new Comparator<FieldMapping>() {
+            @Override
+            public int compare(FieldMapping o1, FieldMapping o2) {
+                int bits = getBits(o2.type) - getBits(o1.type);
+                return bits != 0 ? bits : o1.name.compareTo(o2.name);
+            }
+        });
+
+        // A lone boolean is smaller as it is than in a word of its own
+        int unpacked = 0;
+        int packedBits = 0;
+        for (FieldMapping fieldMapping : packable) {
+            unpacked += getSize(Type.getType(fieldMapping.signature));
+            packedBits += getBits(fieldMapping.type);
+        }
+        if (unpacked <= (packedBits + WORD_BITS - 1) / WORD_BITS * 4) {
+            packable.clear();
+        }
+
+        List<Integer> used = Lists.newArrayList();
+        for (FieldMapping fieldMapping : packable) {
+            int bits = getBits(fieldMapping.type);
+
+            int word = 0;
+            while (word < used.size() && used.get(word) + bits > WORD_BITS) {
+                word++;
+            }
+            if (word == used.size()) {
+                used.add(0);
+                words.add(BITS_PREFIX + word);
+            }
+
+            SubclassGenerator.debug("Packing field " + fieldMapping + " into " + words.get(word) + ", bits " + used.get(word) + " to " + (used.get(word) + bits - 1));
+            bitFields.put(fieldMapping, new BitField(words.get(word), used.get(word), bits, fieldMapping.type.isEnum() ? fieldMapping.type : null));
+            used.set(word, used.get(word) + bits);
+        }
+
+        for (FieldMapping fieldMapping : fieldNodes.keySet()) {
+            if (bitFields.containsKey(fieldMapping) || (fieldNodes.get(fieldMapping).access & ACC_STATIC) != 0)
+                continue;
+
+            Type type = narrowFields.get(fieldMapping);
+            sizeAfter += getSize(type != null ? type : Type.getType(fieldMapping.signature));
+        }
+        sizeAfter += words.size() * 4;
+    }
+
+    boolean isEmpty() {
+        return bitFields.isEmpty() && narrowFields.isEmpty();
+    }
+
+    boolean isPacked(FieldMapping fieldMapping) {
+        return bitFields.containsKey(fieldMapping) || narrowFields.containsKey(fieldMapping);
+    }
+
+    /**
+     * Writes the words, enum tables and narrowed fields
+     */
+    void addFields(ClassWriter classWriter, Map<FieldMapping, FieldNode> fieldNodes) {
+        for (String word : words) {
+            classWriter.visitField(ACC_PUBLIC, word, "I", null, null);
+        }
+
+        for (Map.Entry<FieldMapping, BitField> entry : bitFields.entrySet()) {
+            if (entry.getValue().enumClass != null) {
+                classWriter.visitField(ACC_PUBLIC | ACC_STATIC, ENUM_PREFIX + entry.getKey().name, "[" + entry.getKey().signature, null, null);
+            }
+        }
+
+        for (Map.Entry<FieldMapping, Type> entry : narrowFields.entrySet()) {
+            classWriter.visitField(fieldNodes.get(entry.getKey()).access & ~ACC_PRIVATE, entry.getKey().name, entry.getValue().getDescriptor(), null, null);
+        }
+    }
+
+    /**
+     * Fills the enum tables of the freshly defined class
+     */
+    void install(Class<?> generatedClass) {
+        for (Map.Entry<FieldMapping, BitField> entry : bitFields.entrySet()) {
+            Class<?> enumClass = entry.getValue().enumClass;
+            if (enumClass == null)
+                continue;
+
+            Object[] constants = enumClass.getEnumConstants();
+            Object table = Array.newInstance(enumClass, constants.length + 1);
+            System.arraycopy(constants, 0, table, 1, constants.length);
+
+            try {
+                Field field = generatedClass.getField(ENUM_PREFIX + entry.getKey().name);
+                field.set(null, table);
+            } catch (Exception ex) {
+                throw new RuntimeException("Failed to install enum table for " + entry.getKey() + " into " + generatedClass.getName(), ex);
+            }
+        }
+    }
+
+    /**
+     * Builds the instructions that stand in for a GETFIELD or PUTFIELD of a packed field. They see, and leave,
+     * the same operands the original instruction would have
+     *
+     * @return The replacement instructions, or null if the field isn't packed or the opcode isn't an instance
+     * field access
+     */
+    InsnList access(int opcode, FieldMapping fieldMapping) {
+        if (opcode != GETFIELD && opcode != PUTFIELD)
+            return null;
+
+        BitField bitField = bitFields.get(fieldMapping);
+        if (bitField != null) {
+            return opcode == GETFIELD ? getBits(bitField, fieldMapping) : putBits(bitField, fieldMapping);
+        }
+
+        Type narrowType = narrowFields.get(fieldMapping);
+        if (narrowType != null) {
+            return opcode == GETFIELD ? getNarrow(narrowType, fieldMapping) : putNarrow(narrowType, fieldMapping);
+        }
+
+        return null;
+    }
+
+    private InsnList getBits(BitField bitField, FieldMapping fieldMapping) {
+        InsnList insnList = new InsnList();
+
+        // [this] -> [bits] -> [value]
+        insnList.add(new FieldInsnNode(GETFIELD, subType, bitField.word, "I"));
+        if (bitField.shift > 0) {
+            insnList.add(pushInt(bitField.shift));
+            insnList.add(new InsnNode(IUSHR));
+        }
+        insnList.add(pushInt(bitField.mask));
+        insnList.add(new InsnNode(IAND));
+
+        // [index] -> [table, index] -> [constant]
+        if (bitField.enumClass != null) {
+            insnList.add(new FieldInsnNode(GETSTATIC, subType, ENUM_PREFIX + fieldMapping.name, "[" + fieldMapping.signature));
+            insnList.add(new InsnNode(SWAP));
+            insnList.add(new InsnNode(AALOAD));
+        }
+
+        return insnList;
+    }
+
+    private InsnList putBits(BitField bitField, FieldMapping fieldMapping) {
+        InsnList insnList = new InsnList();
+
+        // [this, constant] -> [this, index], where null is zero
+        if (bitField.enumClass != null) {
+            LabelNode notNull = new LabelNode(new Label());
+            LabelNode end = new LabelNode(new Label());
+            insnList.add(new InsnNode(DUP));
+            insnList.add(new JumpInsnNode(IFNONNULL, notNull));
+            insnList.add(new InsnNode(POP));
+            insnList.add(new InsnNode(ICONST_0));
+            insnList.add(new JumpInsnNode(GOTO, end));
+            insnList.add(notNull);
+            insnList.add(new MethodInsnNode(INVOKEVIRTUAL, Type.getInternalName(bitField.enumClass), "ordinal", "()I", false));
+            insnList.add(new InsnNode(ICONST_1));
+            insnList.add(new InsnNode(IADD));
+            insnList.add(end);
+        }
+
+        // [this, value] -> [this, shifted]
+        insnList.add(pushInt(bitField.mask));
+        insnList.add(new InsnNode(IAND));
+        if (bitField.shift > 0) {
+            insnList.add(pushInt(bitField.shift));
+            insnList.add(new InsnNode(ISHL));
+        }
+
+        // [this, shifted] -> [this, shifted, this] -> [this, shifted, cleared] -> [this, bits]
+        insnList.add(new InsnNode(SWAP));
+        insnList.add(new InsnNode(DUP_X1));
+        insnList.add(new FieldInsnNode(GETFIELD, subType, bitField.word, "I"));
+        insnList.add(pushInt(~(bitField.mask << bitField.shift)));
+        insnList.add(new InsnNode(IAND));
+        insnList.add(new InsnNode(IOR));
+        insnList.add(new FieldInsnNode(PUTFIELD, subType, bitField.word, "I"));
+
+        return insnList;
+    }
+
+    private InsnList getNarrow(Type narrowType, FieldMapping fieldMapping) {
+        InsnList insnList = new InsnList();
+        insnList.add(new FieldInsnNode(GETFIELD, subType, fieldMapping.name, narrowType.getDescriptor()));
+        if (Type.getType(fieldMapping.signature) == Type.LONG_TYPE) {
+            insnList.add(new InsnNode(I2L));
+        }
+        return insnList;
+    }
+
+    private InsnList putNarrow(Type narrowType, FieldMapping fieldMapping) {
+        InsnList insnList = new InsnList();
+        if (Type.getType(fieldMapping.signature) == Type.LONG_TYPE) {
+            insnList.add(new InsnNode(L2I));
+        }
+
+        if (narrowType == Type.BYTE_TYPE) {
+            insnList.add(new InsnNode(I2B));
+        } else if (narrowType == Type.SHORT_TYPE) {
+            insnList.add(new InsnNode(I2S));
+        } else if (narrowType == Type.CHAR_TYPE) {
+            insnList.add(new InsnNode(I2C));
+        }
+
+        insnList.add(new FieldInsnNode(PUTFIELD, subType, fieldMapping.name, narrowType.getDescriptor()));
+        return insnList;
+    }
+
+    /**
+     * @return How many bits the field takes when packed, or zero if it can't be
+     */
+    private static int getBits(Class<?> type) {
+        if (type == boolean.class) {
+            return 1;
+        } else if (type.isEnum() && SubclassGenerator.isVisible(type)) {
+            return WORD_BITS - Integer.numberOfLeadingZeros(type.getEnumConstants().length);
+        }
+        return 0;
+    }
+
+    /**
+     * @return The narrowest type covering the field's MRange, if it's narrower than the field
+     */
+    private static Type getNarrowType(FieldNode fieldNode, FieldMapping fieldMapping) {
+        AnnotationNode range = ASMUtils.getAnnotation(fieldNode.visibleAnnotations, MRange.class);
+
+        Type type = Type.getType(fieldMapping.signature);
+        if (range == null || type.getSort() < Type.CHAR || type.getSort() > Type.LONG || type.getSort() == Type.FLOAT)
+            return null;
+
+        long min = (Long) ASMUtils.getValue(range, "min");
+        long max = (Long) ASMUtils.getValue(range, "max");
+
+        Type narrowType;
+        if (min >= Byte.MIN_VALUE && max <= Byte.MAX_VALUE) {
+            narrowType = Type.BYTE_TYPE;
+        } else if (min >= Short.MIN_VALUE && max <= Short.MAX_VALUE) {
+            narrowType = Type.SHORT_TYPE;
+        } else if (min >= Character.MIN_VALUE && max <= Character.MAX_VALUE) {
+            narrowType = Type.CHAR_TYPE;
+        } else if (min >= Integer.MIN_VALUE && max <= Integer.MAX_VALUE) {
+            narrowType = Type.INT_TYPE;
+        } else {
+            return null;
+        }
+
+        return getSize(narrowType) < getSize(type) ? narrowType : null;
+    }
+
+    private static int getSize(Type type) {
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+            case Type.BYTE:
+                return 1;
+            case Type.CHAR:
+            case Type.SHORT:
+                return 2;
+            case Type.LONG:
+            case Type.DOUBLE:
+                return 8;
+            default:
+                // References are counted as compressed oops
+                return 4;
+        }
+    }
+
+    private static AbstractInsnNode pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            return new InsnNode(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            return new IntInsnNode(BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            return new IntInsnNode(SIPUSH, value);
+        }
+        return new LdcInsnNode(value);
+    }
+}
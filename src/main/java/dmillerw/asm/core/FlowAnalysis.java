@@ -0,0 +1,475 @@
+package dmillerw.asm.core;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.Frame;
+import org.objectweb.asm.tree.analysis.SourceInterpreter;
+import org.objectweb.asm.tree.analysis.SourceValue;
+
+import java.util.Map;
+import java.util.Set;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Dataflow passes over method bodies, built on ASM's {@link SourceInterpreter}. Every value is traced back to the
+ * instructions that could have produced it, through locals, casts and DUPs
+ */
+class FlowAnalysis {
+
+    private final MethodNode methodNode;
+    private final Frame<SourceValue>[] frames;
+
+    /**
+     * @throws AnalyzerException If the body doesn't verify
+     */
+    FlowAnalysis(String owner, MethodNode methodNode) throws AnalyzerException {
+        this.methodNode = methodNode;
+        this.frames = new Analyzer<SourceValue>(new SourceInterpreter()).analyze(owner, methodNode);
+    }
+
+    /**
+     * Finds every method call and field access made on the template's _super field, wherever the instructions
+     * loading _super happen to be. Arguments can be pushed in between, and _super can go through locals and casts
+     *
+     * @return The calls and field accesses whose receiver can only be _super
+     */
+    static Set<AbstractInsnNode> findSuperReceivers(String templateType, MethodNode methodNode) {
+        Set<AbstractInsnNode> receivers = Sets.newHashSet();
+
+        FlowAnalysis analysis;
+        try {
+            analysis = new FlowAnalysis(templateType, methodNode);
+        } catch (AnalyzerException ex) {
+            // Fall back to the pattern javac writes for no-argument calls
+            SubclassGenerator.debug("Failed to analyze " + methodNode.name + methodNode.desc + ", only matching direct super calls: " + ex.getMessage());
+            for (AbstractInsnNode insnNode = methodNode.instructions.getFirst(); insnNode != null; insnNode = insnNode.getNext()) {
+                if (insnNode instanceof FieldInsnNode && ((FieldInsnNode) insnNode).owner.equals(templateType)) {
+                    MethodInsnNode superCall = ASMUtils.getSuperCall((FieldInsnNode) insnNode);
+                    if (superCall != null) {
+                        receivers.add(superCall);
+                    }
+                }
+            }
+            return receivers;
+        }
+
+        for (AbstractInsnNode insnNode = methodNode.instructions.getFirst(); insnNode != null; insnNode = insnNode.getNext()) {
+            int depth;
+            if (insnNode instanceof MethodInsnNode && insnNode.getOpcode() != INVOKESTATIC) {
+                MethodInsnNode methodInsnNode = (MethodInsnNode) insnNode;
+                if (methodInsnNode.owner.equals(templateType) || methodInsnNode.name.equals("<init>"))
+                    continue;
+                depth = Type.getArgumentTypes(methodInsnNode.desc).length;
+            } else if (insnNode.getOpcode() == GETFIELD) {
+                depth = 0;
+            } else if (insnNode.getOpcode() == PUTFIELD) {
+                depth = 1;
+            } else {
+                continue;
+            }
+
+            if (insnNode instanceof FieldInsnNode && ((FieldInsnNode) insnNode).owner.equals(templateType))
+                continue;
+
+            Frame<SourceValue> frame = analysis.getFrame(insnNode);
+            if (frame != null && analysis.isSuper(frame.getStack(frame.getStackSize() - 1 - depth), templateType, Sets.<AbstractInsnNode>newHashSet())) {
+                receivers.add(insnNode);
+            }
+        }
+
+        return receivers;
+    }
+
+    private boolean isSuper(SourceValue value, String templateType, Set<AbstractInsnNode> visited) {
+        if (value.insns.isEmpty())
+            return false;
+
+        for (AbstractInsnNode insnNode : value.insns) {
+            if (!visited.add(insnNode))
+                continue;
+
+            if (insnNode.getOpcode() == GETFIELD && ((FieldInsnNode) insnNode).owner.equals(templateType) && ((FieldInsnNode) insnNode).name.equals("_super"))
+                continue;
+
+            // A parameter may still hold the value it was called with
+            if (insnNode.getOpcode() == ALOAD && isParameter(((VarInsnNode) insnNode).var))
+                return false;
+
+            SourceValue source = getSource(insnNode);
+            if (source == null || !isSuper(source, templateType, visited))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Removes every CHECKCAST whose operand is already known to be of the cast type, given the method's own
+     * descriptor and the types of the instructions producing the operand
+     *
+     * @param owner The class the method will be part of
+     * @param ownerSuper A class the owner extends, used for type checks since the owner itself doesn't exist yet
+     * @return How many casts were removed
+     */
+    static int removeRedundantCasts(String owner, String ownerSuper, MethodNode methodNode, ClassLoader classLoader) {
+        FlowAnalysis analysis;
+        try {
+            analysis = new FlowAnalysis(owner, methodNode);
+        } catch (AnalyzerException ex) {
+            SubclassGenerator.debug("Failed to analyze " + methodNode.name + methodNode.desc + ", keeping all casts: " + ex.getMessage());
+            return 0;
+        }
+
+        Set<AbstractInsnNode> redundant = Sets.newHashSet();
+        for (AbstractInsnNode insnNode = methodNode.instructions.getFirst(); insnNode != null; insnNode = insnNode.getNext()) {
+            if (insnNode.getOpcode() != CHECKCAST)
+                continue;
+
+            Frame<SourceValue> frame = analysis.getFrame(insnNode);
+            if (frame == null)
+                continue;
+
+            Type castType = Type.getObjectType(((TypeInsnNode) insnNode).desc);
+            if (analysis.isAssignable(frame.getStack(frame.getStackSize() - 1), castType, owner, ownerSuper, classLoader, Sets.<AbstractInsnNode>newHashSet())) {
+                redundant.add(insnNode);
+            }
+        }
+
+        for (AbstractInsnNode insnNode : redundant) {
+            methodNode.instructions.remove(insnNode);
+        }
+
+        return redundant.size();
+    }
+
+    /**
+     * Turns every INVOKEINTERFACE whose receiver can only be a parameter declared as a class into an INVOKEVIRTUAL
+     * on that class
+     *
+     * @return How many calls were changed
+     */
+    static int narrowInterfaceCalls(String owner, MethodNode methodNode, ClassLoader classLoader) {
+        FlowAnalysis analysis;
+        try {
+            analysis = new FlowAnalysis(owner, methodNode);
+        } catch (AnalyzerException ex) {
+            SubclassGenerator.debug("Failed to analyze " + methodNode.name + methodNode.desc + ", keeping interface calls: " + ex.getMessage());
+            return 0;
+        }
+
+        int narrowed = 0;
+        for (AbstractInsnNode insnNode = methodNode.instructions.getFirst(); insnNode != null; insnNode = insnNode.getNext()) {
+            if (insnNode.getOpcode() != INVOKEINTERFACE)
+                continue;
+
+            MethodInsnNode methodInsnNode = (MethodInsnNode) insnNode;
+            Frame<SourceValue> frame = analysis.getFrame(insnNode);
+            if (frame == null)
+                continue;
+
+            SourceValue receiver = frame.getStack(frame.getStackSize() - 1 - Type.getArgumentTypes(methodInsnNode.desc).length);
+            Type type = analysis.getUnchangedParameterType(receiver, owner);
+            if (type == null || type.getSort() != Type.OBJECT)
+                continue;
+
+            try {
+                Class<?> clazz = loadClass(type, classLoader);
+                if (!clazz.isInterface() && loadClass(Type.getObjectType(methodInsnNode.owner), classLoader).isAssignableFrom(clazz)) {
+                    methodInsnNode.setOpcode(INVOKEVIRTUAL);
+                    methodInsnNode.owner = type.getInternalName();
+                    methodInsnNode.itf = false;
+                    narrowed++;
+                }
+            } catch (Throwable ex) {
+                // Left as it is
+            }
+        }
+
+        return narrowed;
+    }
+
+    /**
+     * A read, add and write back of the same field, as javac writes +=, -=, ++ and --
+     * <p/>
+     * [object] dup [object, object] get [object, value] (keepOld) ... add [object, sum] (keepNew) put []
+     */
+    static class FieldUpdate {
+
+        final AbstractInsnNode dup;
+        final FieldInsnNode get;
+        final AbstractInsnNode add;
+        final FieldInsnNode put;
+        // The DUP_X1 or DUP2_X1 leaving the old or new value behind, when the expression's value is used
+        final AbstractInsnNode keepOld;
+        final AbstractInsnNode keepNew;
+
+        FieldUpdate(AbstractInsnNode dup, FieldInsnNode get, AbstractInsnNode add, FieldInsnNode put, AbstractInsnNode keepOld, AbstractInsnNode keepNew) {
+            this.dup = dup;
+            this.get = get;
+            this.add = add;
+            this.put = put;
+            this.keepOld = keepOld;
+            this.keepNew = keepNew;
+        }
+
+        boolean isSubtract() {
+            return add.getOpcode() == ISUB || add.getOpcode() == LSUB;
+        }
+    }
+
+    /**
+     * Finds every int or long field that's read, added to and written back to the same object, with nothing else
+     * seeing the value in between
+     *
+     * @return The updates, keyed by their PUTFIELD
+     */
+    static Map<FieldInsnNode, FieldUpdate> findFieldUpdates(String owner, MethodNode methodNode) {
+        Map<FieldInsnNode, FieldUpdate> updates = Maps.newHashMap();
+
+        FlowAnalysis analysis;
+        try {
+            analysis = new FlowAnalysis(owner, methodNode);
+        } catch (AnalyzerException ex) {
+            SubclassGenerator.debug("Failed to analyze " + methodNode.name + methodNode.desc + ", not matching field updates: " + ex.getMessage());
+            return updates;
+        }
+
+        for (AbstractInsnNode insnNode = methodNode.instructions.getFirst(); insnNode != null; insnNode = insnNode.getNext()) {
+            if (insnNode.getOpcode() != PUTFIELD)
+                continue;
+
+            FieldInsnNode put = (FieldInsnNode) insnNode;
+            Frame<SourceValue> frame = analysis.getFrame(put);
+            if (frame == null)
+                continue;
+
+            // The DUP_X1 or DUP2_X1 keeping a value pushes a copy under the object, the values above keep their
+            // sources
+            AbstractInsnNode add = getOnlySource(frame.getStack(frame.getStackSize() - 1));
+            if (add == null || (add.getOpcode() != IADD && add.getOpcode() != ISUB && add.getOpcode() != LADD && add.getOpcode() != LSUB))
+                continue;
+            AbstractInsnNode keepNew = isKeep(add.getNext()) ? add.getNext() : null;
+            if ((keepNew != null ? keepNew : add).getNext() != put)
+                continue;
+
+            Frame<SourceValue> addFrame = analysis.getFrame(add);
+            AbstractInsnNode get = getOnlySource(addFrame.getStack(addFrame.getStackSize() - 2));
+            if (get == null || get.getOpcode() != GETFIELD)
+                continue;
+            AbstractInsnNode keepOld = isKeep(get.getNext()) ? get.getNext() : null;
+
+            FieldInsnNode getField = (FieldInsnNode) get;
+            if (!getField.owner.equals(put.owner) || !getField.name.equals(put.name) || !getField.desc.equals(put.desc))
+                continue;
+
+            // Both accesses are on the same object, duplicated right before the read. The DUP is the source of the
+            // copy it pushes, the one below keeps the source it had
+            Frame<SourceValue> getFrame = analysis.getFrame(get);
+            AbstractInsnNode dup = getOnlySource(getFrame.getStack(getFrame.getStackSize() - 1));
+            if (dup == null || dup.getOpcode() != DUP || dup.getNext() != get)
+                continue;
+            Frame<SourceValue> dupFrame = analysis.getFrame(dup);
+            if (!frame.getStack(frame.getStackSize() - 2).insns.equals(dupFrame.getStack(dupFrame.getStackSize() - 1).insns))
+                continue;
+
+            updates.put(put, new FieldUpdate(dup, getField, add, put, keepOld, keepNew));
+        }
+
+        return updates;
+    }
+
+    /**
+     * Finds every call to a static method of the class whose first argument is read straight from a field
+     *
+     * @return The field reads, keyed by the call they're passed to
+     */
+    static Map<MethodInsnNode, FieldInsnNode> findFieldArguments(String owner, MethodNode methodNode, String callOwner) {
+        Map<MethodInsnNode, FieldInsnNode> arguments = Maps.newHashMap();
+
+        FlowAnalysis analysis;
+        try {
+            analysis = new FlowAnalysis(owner, methodNode);
+        } catch (AnalyzerException ex) {
+            SubclassGenerator.debug("Failed to analyze " + methodNode.name + methodNode.desc + ", not matching field arguments: " + ex.getMessage());
+            return arguments;
+        }
+
+        for (AbstractInsnNode insnNode = methodNode.instructions.getFirst(); insnNode != null; insnNode = insnNode.getNext()) {
+            if (insnNode.getOpcode() != INVOKESTATIC || !((MethodInsnNode) insnNode).owner.equals(callOwner))
+                continue;
+
+            MethodInsnNode methodInsnNode = (MethodInsnNode) insnNode;
+            Frame<SourceValue> frame = analysis.getFrame(insnNode);
+            int count = Type.getArgumentTypes(methodInsnNode.desc).length;
+            if (frame == null || count == 0)
+                continue;
+
+            AbstractInsnNode source = getOnlySource(frame.getStack(frame.getStackSize() - count));
+            if (source != null && source.getOpcode() == GETFIELD) {
+                arguments.put(methodInsnNode, (FieldInsnNode) source);
+            }
+        }
+
+        return arguments;
+    }
+
+    private static AbstractInsnNode getOnlySource(SourceValue value) {
+        return value.insns.size() == 1 ? value.insns.iterator().next() : null;
+    }
+
+    private static boolean isKeep(AbstractInsnNode insnNode) {
+        return insnNode != null && (insnNode.getOpcode() == DUP_X1 || insnNode.getOpcode() == DUP2_X1);
+    }
+
+    /**
+     * @return The declared type of the parameter the value comes from, if it can only come from a single parameter
+     * nothing is ever stored into
+     */
+    private Type getUnchangedParameterType(SourceValue value, String owner) {
+        if (value.insns.size() != 1)
+            return null;
+
+        AbstractInsnNode insnNode = value.insns.iterator().next();
+        if (insnNode.getOpcode() != ALOAD || !isParameter(((VarInsnNode) insnNode).var))
+            return null;
+
+        SourceValue source = getSource(insnNode);
+        if (source == null || !source.insns.isEmpty())
+            return null;
+
+        return getParameterType(((VarInsnNode) insnNode).var, owner);
+    }
+
+    private boolean isAssignable(SourceValue value, Type castType, String owner, String ownerSuper, ClassLoader classLoader, Set<AbstractInsnNode> visited) {
+        if (value.insns.isEmpty())
+            return false;
+
+        for (AbstractInsnNode insnNode : value.insns) {
+            if (!visited.add(insnNode))
+                continue;
+
+            if (insnNode.getOpcode() == ALOAD && isParameter(((VarInsnNode) insnNode).var)) {
+                // Whatever was stored into a parameter, it may still hold the value it was called with
+                Type type = getParameterType(((VarInsnNode) insnNode).var, owner);
+                if (!isAssignable(type.getInternalName().equals(owner) ? Type.getObjectType(ownerSuper) : type, castType, classLoader)) {
+                    return false;
+                }
+
+                SourceValue source = getSource(insnNode);
+                if (source != null && !source.insns.isEmpty() && !isAssignable(source, castType, owner, ownerSuper, classLoader, visited)) {
+                    return false;
+                }
+                continue;
+            }
+
+            Type type = getType(insnNode);
+            if (type == null) {
+                SourceValue source = getSource(insnNode);
+                if (source == null || !isAssignable(source, castType, owner, ownerSuper, classLoader, visited)) {
+                    return false;
+                }
+            } else if (type.getSort() != Type.VOID && !isAssignable(type.getInternalName().equals(owner) ? Type.getObjectType(ownerSuper) : type, castType, classLoader)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return The type of the value the instruction produces, VOID for null, or null if it just passes a value on
+     * or isn't understood
+     */
+    private static Type getType(AbstractInsnNode insnNode) {
+        switch (insnNode.getOpcode()) {
+            case ACONST_NULL:
+                return Type.VOID_TYPE;
+            case CHECKCAST:
+            case NEW:
+                return Type.getObjectType(((TypeInsnNode) insnNode).desc);
+            case GETFIELD:
+            case GETSTATIC:
+                return Type.getType(((FieldInsnNode) insnNode).desc);
+            case INVOKEVIRTUAL:
+            case INVOKESPECIAL:
+            case INVOKESTATIC:
+            case INVOKEINTERFACE:
+                return Type.getReturnType(((MethodInsnNode) insnNode).desc);
+            case INVOKEDYNAMIC:
+                return Type.getReturnType(((InvokeDynamicInsnNode) insnNode).desc);
+            case LDC:
+                Object cst = ((LdcInsnNode) insnNode).cst;
+                return cst instanceof String ? Type.getType(String.class) : cst instanceof Type ? Type.getType(Class.class) : null;
+            default:
+                return null;
+        }
+    }
+
+    private boolean isParameter(int local) {
+        return local < (Type.getArgumentsAndReturnSizes(methodNode.desc) >> 2) - ((methodNode.access & ACC_STATIC) != 0 ? 1 : 0);
+    }
+
+    private Type getParameterType(int local, String owner) {
+        int index = 0;
+        if ((methodNode.access & ACC_STATIC) == 0) {
+            if (local == 0)
+                return Type.getObjectType(owner);
+            index = 1;
+        }
+
+        for (Type type : Type.getArgumentTypes(methodNode.desc)) {
+            if (index == local)
+                return type;
+            index += type.getSize();
+        }
+        return null;
+    }
+
+    /**
+     * @return The value the instruction passes on unchanged, if it's a load, store, cast or DUP
+     */
+    private SourceValue getSource(AbstractInsnNode insnNode) {
+        Frame<SourceValue> frame = getFrame(insnNode);
+        if (frame == null)
+            return null;
+
+        switch (insnNode.getOpcode()) {
+            case ALOAD:
+                return frame.getLocal(((VarInsnNode) insnNode).var);
+            case ASTORE:
+            case CHECKCAST:
+            case DUP:
+                return frame.getStack(frame.getStackSize() - 1);
+            default:
+                return null;
+        }
+    }
+
+    private Frame<SourceValue> getFrame(AbstractInsnNode insnNode) {
+        return frames[methodNode.instructions.indexOf(insnNode)];
+    }
+
+    private static boolean isAssignable(Type type, Type castType, ClassLoader classLoader) {
+        if (type.equals(castType) || castType.getInternalName().equals("java/lang/Object"))
+            return true;
+
+        if (type.getSort() != Type.OBJECT && type.getSort() != Type.ARRAY)
+            return false;
+
+        try {
+            return loadClass(castType, classLoader).isAssignableFrom(loadClass(type, classLoader));
+        } catch (Throwable ex) {
+            return false;
+        }
+    }
+
+    private static Class<?> loadClass(Type type, ClassLoader classLoader) throws ClassNotFoundException {
+        String name = type.getSort() == Type.ARRAY ? type.getDescriptor().replace('/', '.') : type.getClassName();
+        return Class.forName(name, false, classLoader);
+    }
+}
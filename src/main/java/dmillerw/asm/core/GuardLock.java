@@ -0,0 +1,201 @@
+package dmillerw.asm.core;
+
+import java.lang.reflect.Field;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * The lock generated methods marked with {@link dmillerw.asm.annotation.MGuarded} take
+ * <p/>
+ * Stamped, like StampedLock: each lock method returns a stamp that's handed back to unlock. On runtimes with
+ * StampedLock this is one, optimistic reads included. Older runtimes get a ReentrantReadWriteLock instead, where
+ * optimistic reads always fail, so read methods always take the read lock
+ * <p/>
+ * StampedLock isn't reentrant, so a thread holding the write lock takes it again in either mode by being handed
+ * {@link #REENTERED} instead, which its unlock ignores. That way a guarded writer can call other guarded methods
+ * sharing its lock, on either runtime. A thread holding only the read lock and taking the write lock would wait
+ * on itself. The ReentrantReadWriteLock throws an IllegalStateException for that, but StampedLock can't tell which
+ * threads hold its read lock, and just hangs
+ */
+public abstract class GuardLock {
+
+    public static final String GUARD_FIELD = "_guard";
+    public static final String STRIPES_PREFIX = "_stripes_";
+
+    /**
+     * The stamp a thread gets for the lock it already holds the write lock of. No real lock hands out 0 as a stamp
+     */
+    public static final long REENTERED = 0;
+
+    private static final boolean STAMPED;
+
+    static {
+        boolean stamped;
+        try {
+            Class.forName("java.util.concurrent.locks.StampedLock");
+            stamped = true;
+        } catch (ClassNotFoundException ex) {
+            stamped = false;
+        }
+        STAMPED = stamped;
+    }
+
+    public static GuardLock create() {
+        return STAMPED ? new Stamped() : new ReadWrite();
+    }
+
+    /**
+     * Writes a new set of stripes into each field of the freshly defined class
+     *
+     * @param stripes The number of stripes, keyed by field
+     */
+    static void install(Class<?> generatedClass, Map<String, Integer> stripes) {
+        for (Map.Entry<String, Integer> entry : stripes.entrySet()) {
+            GuardLock[] locks = new GuardLock[entry.getValue()];
+            for (int i = 0; i < locks.length; i++) {
+                locks[i] = create();
+            }
+
+            try {
+                Field field = generatedClass.getField(entry.getKey());
+                field.set(null, locks);
+            } catch (Exception ex) {
+                throw new RuntimeException("Failed to install stripes " + entry.getKey() + " into " + generatedClass.getName(), ex);
+            }
+        }
+    }
+
+    /**
+     * @param stripes A power of two number of locks
+     * @return The lock for the owner and key hash. The same pair always gets the same lock
+     */
+    public static GuardLock stripe(GuardLock[] stripes, Object owner, int hash) {
+        int mixed = (System.identityHashCode(owner) * 31 + hash) * 0x9E3779B9;
+        return stripes[(mixed ^ (mixed >>> 16)) & (stripes.length - 1)];
+    }
+
+    public static int hash(Object key) {
+        return key == null ? 0 : key.hashCode();
+    }
+
+    /**
+     * @return A stamp to validate later, or 0 if a writer holds the lock
+     */
+    public abstract long tryOptimisticRead();
+
+    /**
+     * @return Whether no writer has held the lock since the stamp was handed out
+     */
+    public abstract boolean validate(long stamp);
+
+    public abstract long readLock();
+
+    public abstract void unlockRead(long stamp);
+
+    public abstract long writeLock();
+
+    public abstract void unlockWrite(long stamp);
+
+    private static final class Stamped extends GuardLock {
+
+        private final StampedLock lock = new StampedLock();
+
+        // Only ever set to the thread holding the write lock, and cleared by it, so a thread can only ever read
+        // itself here while it actually holds the lock
+        private Thread writer;
+
+        @Override
+        public long tryOptimisticRead() {
+            return lock.tryOptimisticRead();
+        }
+
+        @Override
+        public boolean validate(long stamp) {
+            return lock.validate(stamp);
+        }
+
+        @Override
+        public long readLock() {
+            if (writer == Thread.currentThread())
+                return REENTERED;
+
+            return lock.readLock();
+        }
+
+        @Override
+        public void unlockRead(long stamp) {
+            if (stamp != REENTERED)
+                lock.unlockRead(stamp);
+        }
+
+        @Override
+        public long writeLock() {
+            if (writer == Thread.currentThread())
+                return REENTERED;
+
+            long stamp = lock.writeLock();
+            writer = Thread.currentThread();
+            return stamp;
+        }
+
+        @Override
+        public void unlockWrite(long stamp) {
+            // The outermost unlock is the only one that clears the writer
+            if (stamp == REENTERED)
+                return;
+
+            writer = null;
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private static final class ReadWrite extends GuardLock {
+
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        @Override
+        public long tryOptimisticRead() {
+            return 0;
+        }
+
+        @Override
+        public boolean validate(long stamp) {
+            return false;
+        }
+
+        @Override
+        public long readLock() {
+            // Holding the write lock is enough, the same as on StampedLock
+            if (lock.isWriteLockedByCurrentThread())
+                return REENTERED;
+
+            lock.readLock().lock();
+            return 1;
+        }
+
+        @Override
+        public void unlockRead(long stamp) {
+            if (stamp != REENTERED)
+                lock.readLock().unlock();
+        }
+
+        @Override
+        public long writeLock() {
+            if (lock.isWriteLockedByCurrentThread())
+                return REENTERED;
+            // A read lock can't be upgraded, this would wait on itself
+            if (lock.getReadHoldCount() > 0)
+                throw new IllegalStateException("Guarded writer called while this thread holds the read lock it needs, which would deadlock");
+
+            lock.writeLock().lock();
+            return 1;
+        }
+
+        @Override
+        public void unlockWrite(long stamp) {
+            if (stamp != REENTERED)
+                lock.writeLock().unlock();
+        }
+    }
+}
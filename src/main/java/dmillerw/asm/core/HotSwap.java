@@ -0,0 +1,183 @@
+package dmillerw.asm.core;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Switches the bodies of overrides marked with {@link dmillerw.asm.annotation.MSwappable} at runtime
+ * <p/>
+ * Each override calls its body through a MutableCallSite, one per generated class and method, whose target is
+ * the override's own body or one of its variants. Retargeting is seen by every thread once it returns, and makes
+ * the JIT drop code compiled against the old target, so the new one gets inlined in turn. Only loaded on runtimes
+ * with invokedynamic
+ * <p/>
+ * The call sites of a class are kept in a static field of the class itself, as their method handles point back
+ * at it: kept anywhere else, they'd keep the class from ever being unloaded
+ */
+public class HotSwap {
+
+    public static final String SWAP_PREFIX = "swap_";
+    public static final String SITES_FIELD = "_swap_sites";
+
+    private static final class SiteTable {
+
+        // Keyed by the name and descriptor of the swappable method
+        final Map<String, Site> sites = Maps.newHashMap();
+    }
+
+    private static class Site {
+
+        final MutableCallSite callSite;
+        final MethodHandle body;
+        // Keyed by the name of the template method
+        final Map<String, MethodHandle> variants = Maps.newHashMap();
+
+        volatile String current;
+
+        Site(MethodHandle body) {
+            this.callSite = new MutableCallSite(body);
+            this.body = body;
+        }
+    }
+
+    /**
+     * Creates the call sites of the freshly defined class, pointing at the overrides' own bodies
+     *
+     * @param siteClass The class holding the invokedynamic instructions, which hands out a lookup able to reach
+     * the bodies
+     * @param methods The variant names of each swappable override, keyed by its name and descriptor
+     */
+    static void install(Class<?> generatedClass, Class<?> siteClass, Map<String, List<String>> methods) {
+        MethodHandles.Lookup lookup;
+        try {
+            Method method = siteClass.getDeclaredMethod("lookup");
+            method.setAccessible(true);
+            lookup = (MethodHandles.Lookup) method.invoke(null);
+        } catch (Exception ex) {
+            throw new RuntimeException("Failed to get a lookup from " + siteClass.getName(), ex);
+        }
+
+        SiteTable table = new SiteTable();
+        for (Map.Entry<String, List<String>> entry : methods.entrySet()) {
+            String name = entry.getKey().substring(0, entry.getKey().indexOf('('));
+            MethodType type = MethodType.fromMethodDescriptorString(entry.getKey().substring(name.length()), generatedClass.getClassLoader());
+
+            try {
+                Site site = new Site(lookup.findVirtual(generatedClass, SWAP_PREFIX + name, type));
+                for (String variant : entry.getValue()) {
+                    site.variants.put(variant, lookup.findVirtual(generatedClass, SWAP_PREFIX + name + "_" + variant, type));
+                }
+                table.sites.put(entry.getKey(), site);
+            } catch (Exception ex) {
+                throw new RuntimeException("Failed to create the call site of " + entry.getKey() + " in " + generatedClass.getName(), ex);
+            }
+        }
+
+        try {
+            generatedClass.getField(SITES_FIELD).set(null, table);
+        } catch (Exception ex) {
+            throw new RuntimeException("Failed to install the call sites into " + generatedClass.getName(), ex);
+        }
+    }
+
+    /**
+     * @return The call sites of the generated class, or null if it has none
+     */
+    private static SiteTable getTable(Class<?> generatedClass) {
+        try {
+            return (SiteTable) generatedClass.getField(SITES_FIELD).get(null);
+        } catch (NoSuchFieldException ex) {
+            return null;
+        } catch (IllegalAccessException ex) {
+            throw new RuntimeException("Failed to read the call sites of " + generatedClass.getName(), ex);
+        }
+    }
+
+    /**
+     * Bootstrap of the invokedynamic instructions in generated classes. The receiver comes first, so the type
+     * names the generated class
+     */
+    public static CallSite bootstrap(MethodHandles.Lookup lookup, String name, MethodType type) {
+        SiteTable table = getTable(type.parameterType(0));
+        Site site = table == null ? null : table.sites.get(name + type.dropParameterTypes(0, 1).toMethodDescriptorString());
+        if (site == null) {
+            throw new IllegalStateException("No call site for " + name + type + ", the class wasn't installed");
+        }
+        return site.callSite;
+    }
+
+    /**
+     * Makes every instance of the generated class run the variant in place of the override's body, from the next
+     * call on. Overloads of the method with a variant of that name all switch
+     *
+     * @param variant The name of the template method to switch to
+     * @throws IllegalArgumentException If the class has no such swappable method or variant
+     */
+    public static void retarget(Class<?> generatedClass, String method, String variant) {
+        List<Site> sites = getSites(generatedClass, method);
+        List<MutableCallSite> changed = Lists.newArrayList();
+
+        for (Site site : sites) {
+            MethodHandle target = site.variants.get(variant);
+            if (target != null) {
+                site.callSite.setTarget(target);
+                site.current = variant;
+                changed.add(site.callSite);
+            }
+        }
+
+        if (changed.isEmpty()) {
+            throw new IllegalArgumentException(generatedClass.getName() + "." + method + " has no variant " + variant);
+        }
+        MutableCallSite.syncAll(changed.toArray(new MutableCallSite[changed.size()]));
+    }
+
+    /**
+     * Switches every overload of the method back to the override's own body
+     */
+    public static void reset(Class<?> generatedClass, String method) {
+        List<Site> sites = getSites(generatedClass, method);
+        MutableCallSite[] changed = new MutableCallSite[sites.size()];
+
+        for (int i = 0; i < changed.length; i++) {
+            Site site = sites.get(i);
+            site.callSite.setTarget(site.body);
+            site.current = null;
+            changed[i] = site.callSite;
+        }
+        MutableCallSite.syncAll(changed);
+    }
+
+    /**
+     * @return The variant the method runs, or null if it runs its own body. For overloads, whichever comes first
+     */
+    public static String getCurrent(Class<?> generatedClass, String method) {
+        return getSites(generatedClass, method).get(0).current;
+    }
+
+    private static List<Site> getSites(Class<?> generatedClass, String method) {
+        List<Site> matching = Lists.newArrayList();
+        SiteTable table = getTable(generatedClass);
+        if (table != null) {
+            for (Map.Entry<String, Site> entry : table.sites.entrySet()) {
+                if (entry.getKey().startsWith(method + "(")) {
+                    matching.add(entry.getValue());
+                }
+            }
+        }
+
+        if (matching.isEmpty()) {
+            throw new IllegalArgumentException(generatedClass.getName() + " has no swappable method " + method);
+        }
+        return matching;
+    }
+}
@@ -0,0 +1,21 @@
+package dmillerw.asm.core;
+
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * A pass run over the instructions of each generated method, after they've been copied and redirected but before
+ * they're written to the class
+ *
+ * @see SubclassGenerator#addOptimizer(InsnOptimizer)
+ * @see PeepholeOptimizer
+ */
+public interface InsnOptimizer {
+
+    /**
+     * Rewrites the method's instructions in place. Max stack and locals are set, and may be left as they are
+     *
+     * @param owner The internal name of the class the method is generated into
+     * @return Whether anything changed
+     */
+    public boolean optimize(String owner, MethodNode methodNode);
+}
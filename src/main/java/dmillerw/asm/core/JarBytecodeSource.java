@@ -0,0 +1,168 @@
+package dmillerw.asm.core;
+
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads classes straight out of a jar mapped into memory
+ * <p/>
+ * The jar's central directory is indexed once when opened. Looking a class up afterwards is a map lookup, plus
+ * inflating the entry if it's compressed. Zip64 jars aren't supported
+ */
+public class JarBytecodeSource implements BytecodeSource {
+
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+
+    // Class entries, keyed by internal name
+    private final Map<String, Entry> entries = Maps.newHashMap();
+
+    public JarBytecodeSource(File file) throws IOException {
+        this.file = file;
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            // The mapping stays valid after the channel is closed
+            randomAccessFile.close();
+        }
+
+        index();
+    }
+
+    private void index() throws IOException {
+        int end = -1;
+        for (int i = buffer.limit() - 22; i >= Math.max(0, buffer.limit() - 22 - 0xFFFF); i--) {
+            if (buffer.getInt(i) == END_SIGNATURE) {
+                end = i;
+                break;
+            }
+        }
+
+        if (end == -1) {
+            throw new IOException(file + " is not a jar");
+        }
+
+        int count = buffer.getShort(end + 10) & 0xFFFF;
+        long offset = buffer.getInt(end + 16) & 0xFFFFFFFFL;
+        if (count == 0xFFFF || offset == 0xFFFFFFFFL) {
+            throw new IOException(file + " is a zip64 jar, which isn't supported");
+        }
+
+        int position = (int) offset;
+        for (int i = 0; i < count; i++) {
+            if (buffer.getInt(position) != CENTRAL_SIGNATURE) {
+                throw new IOException(file + " has a corrupt central directory");
+            }
+
+            int method = buffer.getShort(position + 10) & 0xFFFF;
+            int compressedSize = buffer.getInt(position + 20);
+            int size = buffer.getInt(position + 24);
+            int nameLength = buffer.getShort(position + 28) & 0xFFFF;
+            int extraLength = buffer.getShort(position + 30) & 0xFFFF;
+            int commentLength = buffer.getShort(position + 32) & 0xFFFF;
+            int localOffset = buffer.getInt(position + 42);
+
+            byte[] nameBytes = new byte[nameLength];
+            ByteBuffer slice = buffer.duplicate();
+            slice.position(position + 46);
+            slice.get(nameBytes);
+            String name = new String(nameBytes, "UTF-8");
+
+            if (name.endsWith(".class") && !name.startsWith("META-INF/")) {
+                entries.put(name.substring(0, name.length() - 6), new Entry(method, compressedSize, size, localOffset));
+            }
+
+            position += 46 + nameLength + extraLength + commentLength;
+        }
+    }
+
+    /**
+     * @return The internal names of every class in the jar
+     */
+    public Set<String> getClassNames() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    @Override
+    public byte[] getBytes(String internalName) {
+        Entry entry = entries.get(internalName);
+        if (entry == null) {
+            return null;
+        }
+
+        if (buffer.getInt(entry.localOffset) != LOCAL_SIGNATURE) {
+            throw new IllegalStateException(file + " has a corrupt entry for " + internalName);
+        }
+
+        int nameLength = buffer.getShort(entry.localOffset + 26) & 0xFFFF;
+        int extraLength = buffer.getShort(entry.localOffset + 28) & 0xFFFF;
+
+        byte[] compressed = new byte[entry.compressedSize];
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(entry.localOffset + 30 + nameLength + extraLength);
+        slice.get(compressed);
+
+        if (entry.method == STORED) {
+            return compressed;
+        } else if (entry.method == DEFLATED) {
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(compressed);
+                byte[] data = new byte[entry.size];
+                int read = 0;
+                while (read < data.length && !inflater.finished()) {
+                    int inflated = inflater.inflate(data, read, data.length - read);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new DataFormatException("Truncated entry");
+                    }
+                    read += inflated;
+                }
+                return data;
+            } catch (DataFormatException ex) {
+                throw new IllegalStateException(file + " has a corrupt entry for " + internalName, ex);
+            } finally {
+                inflater.end();
+            }
+        } else {
+            throw new IllegalStateException(file + " uses an unsupported compression method for " + internalName);
+        }
+    }
+
+    private static class Entry {
+
+        final int method;
+        final int compressedSize;
+        final int size;
+        final int localOffset;
+
+        Entry(int method, int compressedSize, int size, int localOffset) {
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localOffset = localOffset;
+        }
+    }
+}
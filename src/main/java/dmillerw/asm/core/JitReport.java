@@ -0,0 +1,195 @@
+package dmillerw.asm.core;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.tree.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Checks the bytecode of generated classes against the HotSpot thresholds that decide whether a method gets
+ * inlined or compiled at all. Pass one to {@link SubclassGenerator#setJitReport(JitReport)}; the same report
+ * can collect any number of generated classes
+ * <p/>
+ * Flags:
+ * <ul>
+ * <li>Methods larger than MaxInlineSize, which are only inlined once they're hot</li>
+ * <li>Methods larger than FreqInlineSize, which are never inlined</li>
+ * <li>Methods larger than HugeMethodLimit, which are never compiled</li>
+ * <li>Chains of default_ methods and super calls deeper than {@link #MAX_DEFAULT_CHAIN}</li>
+ * <li>Virtual calls to generated methods that never touch this, and could have been static</li>
+ * </ul>
+ */
+public class JitReport {
+
+    // Defaults for the matching -XX flags on x86_64 server VMs
+    public static final int MAX_INLINE_SIZE = 35;
+    public static final int FREQ_INLINE_SIZE = 325;
+    public static final int HUGE_METHOD_LIMIT = 8000;
+
+    public static final int MAX_DEFAULT_CHAIN = 2;
+
+    private final List<String> lines = Lists.newArrayList();
+    private final List<String> warnings = Lists.newArrayList();
+
+    private File dumpDirectory;
+
+    /**
+     * Also write each analyzed class to the directory, laid out by package, so it can be inspected with javap
+     */
+    public JitReport setDumpDirectory(File dumpDirectory) {
+        this.dumpDirectory = dumpDirectory;
+        return this;
+    }
+
+    public synchronized List<String> getWarnings() {
+        return Lists.newArrayList(warnings);
+    }
+
+    public synchronized void analyze(byte[] data) {
+        ClassNode classNode = new ClassNode();
+        new ClassReader(data).accept(classNode, 0);
+
+        if (dumpDirectory != null) {
+            dump(classNode.name, data);
+        }
+
+        Map<String, MethodNode> methods = Maps.newHashMap();
+        for (MethodNode methodNode : classNode.methods) {
+            methods.put(methodNode.name + methodNode.desc, methodNode);
+        }
+
+        lines.add(classNode.name + ":");
+
+        for (MethodNode methodNode : classNode.methods) {
+            if (methodNode.instructions.size() == 0)
+                continue;
+
+            String method = classNode.name + "." + methodNode.name + methodNode.desc;
+            int size = getCodeSize(methodNode);
+
+            lines.add("  " + methodNode.name + methodNode.desc + " " + size + " bytes");
+
+            if (size > HUGE_METHOD_LIMIT) {
+                warn(method + " is " + size + " bytes, over HugeMethodLimit (" + HUGE_METHOD_LIMIT + ") and will never be compiled");
+            } else if (size > FREQ_INLINE_SIZE) {
+                warn(method + " is " + size + " bytes, over FreqInlineSize (" + FREQ_INLINE_SIZE + ") and will never be inlined");
+            } else if (size > MAX_INLINE_SIZE) {
+                warn(method + " is " + size + " bytes, over MaxInlineSize (" + MAX_INLINE_SIZE + ") and will only be inlined when hot");
+            }
+
+            List<String> chain = Lists.newArrayList();
+            followDefaultChain(classNode, methods, methodNode, chain, 0);
+            if (chain.size() > MAX_DEFAULT_CHAIN) {
+                warn(method + " goes through " + chain.size() + " nested super calls: " + chain);
+            }
+
+            Iterator<AbstractInsnNode> iterator = methodNode.instructions.iterator();
+            while (iterator.hasNext()) {
+                AbstractInsnNode insnNode = iterator.next();
+                if (insnNode.getOpcode() != INVOKEVIRTUAL)
+                    continue;
+
+                MethodInsnNode methodInsnNode = (MethodInsnNode) insnNode;
+                MethodNode target = methodInsnNode.owner.equals(classNode.name) ? methods.get(methodInsnNode.name + methodInsnNode.desc) : null;
+                if (target != null && (target.access & ACC_STATIC) == 0 && !usesThis(target)) {
+                    warn(method + " makes a virtual call to " + methodInsnNode.name + methodInsnNode.desc + ", which never uses this and could be static");
+                }
+            }
+        }
+    }
+
+    /**
+     * Follows the first INVOKESPECIAL of each method through private methods of the same class, recording hops
+     * into default_ methods and out to the super class. Hops into the generator's own wrapper bodies (profiled_,
+     * cached_, guarded_ and the like) are followed but not recorded, as every wrapped override has them. A hop out
+     * to the super class ends the chain
+     */
+    private void followDefaultChain(ClassNode classNode, Map<String, MethodNode> methods, MethodNode methodNode, List<String> chain, int depth) {
+        Iterator<AbstractInsnNode> iterator = methodNode.instructions.iterator();
+        while (iterator.hasNext()) {
+            AbstractInsnNode insnNode = iterator.next();
+            if (insnNode.getOpcode() != INVOKESPECIAL)
+                continue;
+
+            MethodInsnNode methodInsnNode = (MethodInsnNode) insnNode;
+            if (methodInsnNode.name.equals("<init>"))
+                continue;
+
+            boolean local = methodInsnNode.owner.equals(classNode.name);
+            if (!local || methodInsnNode.name.startsWith("default_")) {
+                chain.add(methodInsnNode.owner + "." + methodInsnNode.name);
+            }
+
+            MethodNode target = methods.get(methodInsnNode.name + methodInsnNode.desc);
+            if (local && target != null && target != methodNode && depth < methods.size()) {
+                followDefaultChain(classNode, methods, target, chain, depth + 1);
+            }
+            return;
+        }
+    }
+
+    private static boolean usesThis(MethodNode methodNode) {
+        Iterator<AbstractInsnNode> iterator = methodNode.instructions.iterator();
+        while (iterator.hasNext()) {
+            AbstractInsnNode insnNode = iterator.next();
+            if (insnNode instanceof VarInsnNode && ((VarInsnNode) insnNode).var == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the method into a throwaway ClassWriter to find out how many bytes of code it assembles to
+     */
+    static int getCodeSize(MethodNode methodNode) {
+        ClassWriter classWriter = new ClassWriter(0);
+        final Label end = new Label();
+
+        methodNode.accept(new MethodVisitor(ASM5, classWriter.visitMethod(methodNode.access, methodNode.name, methodNode.desc, null, null)) {
+            @Override
+            public void visitMaxs(int maxStack, int maxLocals) {
+                super.visitLabel(end);
+                super.visitMaxs(maxStack, maxLocals);
+            }
+        });
+
+        return end.getOffset();
+    }
+
+    private void dump(String name, byte[] data) {
+        File file = new File(dumpDirectory, name + ".class");
+        try {
+            Files.createParentDirs(file);
+            Files.write(data, file);
+        } catch (IOException ex) {
+            warn("Failed to dump " + name + " to " + file + ": " + ex);
+        }
+    }
+
+    private void warn(String warning) {
+        warnings.add(warning);
+        lines.add("  WARN: " + warning);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder stringBuilder = new StringBuilder();
+        for (String line : lines) {
+            stringBuilder.append(line).append("\n");
+        }
+        return stringBuilder.toString();
+    }
+}
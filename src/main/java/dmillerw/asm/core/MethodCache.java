@@ -0,0 +1,309 @@
+package dmillerw.asm.core;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Results of one generated method marked with {@link dmillerw.asm.annotation.MCache}, bounded in size with least
+ * recently used eviction, and optionally expiring
+ * <p/>
+ * Entries are keyed by a long, or by an object. Primitive keys stay primitive: the table is open addressed over
+ * plain arrays, and the recency list is threaded through them by index, so neither lookups nor stores allocate,
+ * other than to grow. The arrays start small and double up to the maximum size, as most caches hold far fewer
+ * entries than they're allowed to
+ */
+public class MethodCache {
+
+    public static final String CACHE_PREFIX = "_cache_";
+
+    /**
+     * Returned by get when there's no entry, as null is a valid result
+     */
+    public static final Object MISS = new Object();
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    /**
+     * Writes each class scoped cache into the freshly defined class
+     */
+    static void install(Class<?> generatedClass, Map<String, MethodCache> caches) {
+        for (Map.Entry<String, MethodCache> entry : caches.entrySet()) {
+            try {
+                Field field = generatedClass.getField(entry.getKey());
+                field.set(null, entry.getValue());
+            } catch (Exception ex) {
+                throw new RuntimeException("Failed to install cache " + entry.getKey() + " into " + generatedClass.getName(), ex);
+            }
+        }
+    }
+
+    private final int maxSize;
+    private final long expireNanos;
+
+    // Entries, by index. Stored times are only kept if entries expire
+    private long[] primitiveKeys;
+    private Object[] objectKeys;
+    private int[] hashes;
+    private Object[] values;
+    private long[] stored;
+    // Recency list, most recent first. -1 ends it
+    private int[] newer;
+    private int[] older;
+    private int newest = -1;
+    private int oldest = -1;
+    private int size;
+
+    // Entry index + 1 per bucket, 0 for an empty bucket
+    private int[] table;
+    private int mask;
+
+    private long hits;
+    private long misses;
+
+    /**
+     * @param expireAfter Milliseconds an entry is kept for, or 0 to keep it until it's evicted
+     */
+    public MethodCache(int maxSize, long expireAfter) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive, was " + maxSize);
+        }
+
+        this.maxSize = maxSize;
+        this.expireNanos = expireAfter * 1000000L;
+
+        int capacity = Math.min(maxSize, INITIAL_CAPACITY);
+        this.primitiveKeys = new long[capacity];
+        this.objectKeys = new Object[capacity];
+        this.hashes = new int[capacity];
+        this.values = new Object[capacity];
+        this.stored = expireNanos > 0 ? new long[capacity] : null;
+        this.newer = new int[capacity];
+        this.older = new int[capacity];
+        rehash();
+    }
+
+    /**
+     * @return The value stored for the key, or {@link #MISS}
+     */
+    public synchronized Object get(long key) {
+        return get(key, null, hash(key));
+    }
+
+    /**
+     * @return The value stored for the key, or {@link #MISS}
+     */
+    public synchronized Object get(Object key) {
+        return get(0, key, hash(key));
+    }
+
+    public synchronized void put(long key, Object value) {
+        put(key, null, hash(key), value);
+    }
+
+    public synchronized void put(Object key, Object value) {
+        put(0, key, hash(key), value);
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(table, 0);
+        Arrays.fill(objectKeys, null);
+        Arrays.fill(values, null);
+        newest = oldest = -1;
+        size = 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private Object get(long primitiveKey, Object objectKey, int hash) {
+        int bucket = find(primitiveKey, objectKey, hash);
+        if (bucket < 0) {
+            misses++;
+            return MISS;
+        }
+
+        int entry = table[bucket] - 1;
+        if (expireNanos > 0 && System.nanoTime() - stored[entry] > expireNanos) {
+            remove(bucket);
+            unlink(entry);
+            release(entry);
+            misses++;
+            return MISS;
+        }
+
+        unlink(entry);
+        linkNewest(entry);
+        hits++;
+        return values[entry];
+    }
+
+    private void put(long primitiveKey, Object objectKey, int hash, Object value) {
+        int bucket = find(primitiveKey, objectKey, hash);
+        int entry;
+
+        if (bucket >= 0) {
+            entry = table[bucket] - 1;
+            unlink(entry);
+        } else {
+            if (size == maxSize) {
+                entry = oldest;
+                remove(find(primitiveKeys[entry], objectKeys[entry], hashes[entry]));
+                unlink(entry);
+                release(entry);
+            }
+
+            if (size == values.length) {
+                grow();
+            }
+
+            // Entries are kept dense, so the next free one is always at size
+            entry = size++;
+            primitiveKeys[entry] = primitiveKey;
+            objectKeys[entry] = objectKey;
+            hashes[entry] = hash;
+
+            // Removing may have shifted buckets around, so look for a free one again
+            table[~find(primitiveKey, objectKey, hash)] = entry + 1;
+        }
+
+        values[entry] = value;
+        if (expireNanos > 0) {
+            stored[entry] = System.nanoTime();
+        }
+        linkNewest(entry);
+    }
+
+    /**
+     * Doubles the entry arrays, up to the maximum size
+     */
+    private void grow() {
+        int capacity = Math.min(values.length * 2, maxSize);
+        primitiveKeys = Arrays.copyOf(primitiveKeys, capacity);
+        objectKeys = Arrays.copyOf(objectKeys, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        values = Arrays.copyOf(values, capacity);
+        if (stored != null) {
+            stored = Arrays.copyOf(stored, capacity);
+        }
+        newer = Arrays.copyOf(newer, capacity);
+        older = Arrays.copyOf(older, capacity);
+        rehash();
+    }
+
+    /**
+     * Sizes the table to the entry arrays, and puts every entry back into it
+     */
+    private void rehash() {
+        // At most half full
+        int buckets = Integer.highestOneBit(values.length) << 2;
+        table = new int[buckets];
+        mask = buckets - 1;
+
+        for (int entry = 0; entry < size; entry++) {
+            table[~find(primitiveKeys[entry], objectKeys[entry], hashes[entry])] = entry + 1;
+        }
+    }
+
+    /**
+     * @return The bucket holding the key, or the complement of the free bucket it would go in
+     */
+    private int find(long primitiveKey, Object objectKey, int hash) {
+        int bucket = hash & mask;
+        while (table[bucket] != 0) {
+            int entry = table[bucket] - 1;
+            if (hashes[entry] == hash && primitiveKeys[entry] == primitiveKey && (objectKey == null ? objectKeys[entry] == null : objectKey.equals(objectKeys[entry]))) {
+                return bucket;
+            }
+            bucket = (bucket + 1) & mask;
+        }
+        return ~bucket;
+    }
+
+    /**
+     * Empties the bucket, and moves any following entries that can no longer be found back into the gap
+     */
+    private void remove(int bucket) {
+        int gap = bucket;
+        int next = bucket;
+        while (true) {
+            next = (next + 1) & mask;
+            if (table[next] == 0)
+                break;
+
+            int home = hashes[table[next] - 1] & mask;
+            // The entry stays if its home lies after the gap, cyclically, up to where it is now
+            boolean stays = gap <= next ? (gap < home && home <= next) : (gap < home || home <= next);
+            if (!stays) {
+                table[gap] = table[next];
+                gap = next;
+            }
+        }
+        table[gap] = 0;
+    }
+
+    /**
+     * Moves the last entry into the freed one, so entries stay dense
+     */
+    private void release(int entry) {
+        int last = --size;
+        if (entry != last) {
+            table[find(primitiveKeys[last], objectKeys[last], hashes[last])] = entry + 1;
+
+            primitiveKeys[entry] = primitiveKeys[last];
+            objectKeys[entry] = objectKeys[last];
+            hashes[entry] = hashes[last];
+            values[entry] = values[last];
+            if (stored != null) {
+                stored[entry] = stored[last];
+            }
+
+            newer[entry] = newer[last];
+            older[entry] = older[last];
+            if (newer[entry] != -1) older[newer[entry]] = entry; else newest = entry;
+            if (older[entry] != -1) newer[older[entry]] = entry; else oldest = entry;
+        }
+
+        objectKeys[last] = null;
+        values[last] = null;
+    }
+
+    private void unlink(int entry) {
+        if (newer[entry] != -1) older[newer[entry]] = older[entry]; else newest = older[entry];
+        if (older[entry] != -1) newer[older[entry]] = newer[entry]; else oldest = newer[entry];
+    }
+
+    private void linkNewest(int entry) {
+        newer[entry] = -1;
+        older[entry] = newest;
+        if (newest != -1) newer[newest] = entry; else oldest = entry;
+        newest = entry;
+    }
+
+    private static int hash(long key) {
+        return spread((int) (key ^ (key >>> 32)));
+    }
+
+    private static int hash(Object key) {
+        return spread(key == null ? 0 : key.hashCode());
+    }
+
+    private static int spread(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    @Override
+    public String toString() {
+        return "MethodCache{size=" + size() + "/" + maxSize + ", hits=" + getHits() + ", misses=" + getMisses() + "}";
+    }
+}
@@ -0,0 +1,108 @@
+package dmillerw.asm.core;
+
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Call count and total elapsed time of one generated method marked with {@link dmillerw.asm.annotation.MProfile}
+ * <p/>
+ * Calls that end in an exception are counted too
+ */
+public class MethodProfile implements MethodProfileMBean {
+
+    public static final String PROFILE_PREFIX = "_profile_";
+
+    private static final ConcurrentMap<Class<?>, Map<String, MethodProfile>> PROFILES = new MapMaker().weakKeys().makeMap();
+
+    /**
+     * @return Every profile of the generated class, keyed by method name and descriptor. Overrides have a second
+     * entry for their default_ method, timing the super call
+     */
+    public static Map<String, MethodProfile> get(Class<?> generatedClass) {
+        Map<String, MethodProfile> profiles = PROFILES.get(generatedClass);
+        return profiles == null ? Collections.<String, MethodProfile>emptyMap() : profiles;
+    }
+
+    /**
+     * Exposes every profile of the generated class to JMX, under dmillerw.asm:type=MethodProfile
+     */
+    public static void registerMBeans(Class<?> generatedClass) {
+        for (MethodProfile profile : get(generatedClass).values()) {
+            try {
+                ObjectName name = new ObjectName("dmillerw.asm:type=MethodProfile,class=" + ObjectName.quote(generatedClass.getName()) + ",method=" + ObjectName.quote(profile.method));
+                if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(profile, name);
+                }
+            } catch (Exception ex) {
+                throw new RuntimeException("Failed to register profile " + profile, ex);
+            }
+        }
+    }
+
+    /**
+     * Creates a profile for each field and writes it into the freshly defined class
+     *
+     * @param methods The name and descriptor of the profiled method, keyed by its profile field
+     */
+    static void install(Class<?> generatedClass, Map<String, String> methods) {
+        Map<String, MethodProfile> profiles = Maps.newLinkedHashMap();
+
+        for (Map.Entry<String, String> entry : methods.entrySet()) {
+            MethodProfile profile = new MethodProfile(entry.getValue());
+            try {
+                Field field = generatedClass.getField(entry.getKey());
+                field.set(null, profile);
+            } catch (Exception ex) {
+                throw new RuntimeException("Failed to install profile for " + entry.getValue() + " into " + generatedClass.getName(), ex);
+            }
+            profiles.put(entry.getValue(), profile);
+        }
+
+        PROFILES.put(generatedClass, Collections.unmodifiableMap(profiles));
+    }
+
+    final String method;
+
+    private final StripedCounter calls = new StripedCounter();
+    private final StripedCounter nanos = new StripedCounter();
+
+    MethodProfile(String method) {
+        this.method = method;
+    }
+
+    /**
+     * Called by the generated method when it returns or throws
+     */
+    public void record(long start) {
+        nanos.add(System.nanoTime() - start);
+        calls.add(1);
+    }
+
+    @Override
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    @Override
+    public long getNanos() {
+        return nanos.sum();
+    }
+
+    @Override
+    public void reset() {
+        calls.reset();
+        nanos.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "{method: " + method + ", calls: " + getCalls() + ", nanos: " + getNanos() + "}";
+    }
+}
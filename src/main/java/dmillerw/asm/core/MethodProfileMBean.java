@@ -0,0 +1,10 @@
+package dmillerw.asm.core;
+
+public interface MethodProfileMBean {
+
+    public long getCalls();
+
+    public long getNanos();
+
+    public void reset();
+}
@@ -34,4 +34,27 @@ public class NodeCopier {
 
         destination.add(node.clone(labelMap));
     }
+
+    /**
+     * @return The copy standing in for a label of the source list
+     */
+    public LabelNode getLabel(LabelNode label) {
+        return labelMap.get(label);
+    }
+
+    public void copyTo(InsnList nodes, InsnList destination) {
+        if (nodes == null)
+            return;
+
+        // Generated lists bring their own labels
+        for (AbstractInsnNode node = nodes.getFirst(); node != null; node = node.getNext()) {
+            if (node instanceof LabelNode && !labelMap.containsKey(node)) {
+                labelMap.put((LabelNode) node, new LabelNode());
+            }
+        }
+
+        for (AbstractInsnNode node = nodes.getFirst(); node != null; node = node.getNext()) {
+            copyTo(node, destination);
+        }
+    }
 }
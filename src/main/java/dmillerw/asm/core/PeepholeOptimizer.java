@@ -0,0 +1,316 @@
+package dmillerw.asm.core;
+
+import com.google.common.collect.Sets;
+import org.objectweb.asm.tree.*;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+import org.objectweb.asm.tree.analysis.BasicValue;
+import org.objectweb.asm.tree.analysis.Frame;
+
+import java.util.Iterator;
+import java.util.Set;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Cleans up what redirecting template code leaves behind. Runs these passes until none of them finds anything:
+ * <ul>
+ * <li>Constant branches: a constant followed by a conditional jump becomes a GOTO, or nothing</li>
+ * <li>Jump threading: jumps to a GOTO go straight to its target, GOTOs to a return are replaced by the return, and
+ * GOTOs to the next instruction are removed</li>
+ * <li>Loads and stores: a store immediately loaded back, from a local nothing else reads, stays on the stack.
+ * Stores to locals that are never read become POPs, and a load or DUP that's popped right away is removed</li>
+ * <li>Dead code: instructions no path reaches are removed</li>
+ * </ul>
+ */
+public class PeepholeOptimizer implements InsnOptimizer {
+
+    private static final int MAX_PASSES = 8;
+    private static final int MAX_JUMP_CHAIN = 16;
+
+    @Override
+    public boolean optimize(String owner, MethodNode methodNode) {
+        boolean changed = false;
+
+        for (int i = 0; i < MAX_PASSES; i++) {
+            // Every pass runs each round, so no short circuit
+            boolean pass = foldConstantBranches(methodNode) | threadJumps(methodNode) | removeLoadsAndStores(methodNode) | removeDeadCode(owner, methodNode);
+            if (!pass)
+                break;
+
+            changed = true;
+        }
+
+        // The copied frames no longer describe the code. Generated classes are version 1.6, which verifies fine
+        // without them
+        if (changed) {
+            for (AbstractInsnNode insnNode : methodNode.instructions.toArray()) {
+                if (insnNode instanceof FrameNode) {
+                    methodNode.instructions.remove(insnNode);
+                }
+            }
+        }
+
+        return changed;
+    }
+
+    private boolean foldConstantBranches(MethodNode methodNode) {
+        InsnList instructions = methodNode.instructions;
+        Set<LabelNode> targets = getTargets(methodNode);
+        boolean changed = false;
+
+        AbstractInsnNode insnNode = instructions.getFirst();
+        while (insnNode != null) {
+            AbstractInsnNode next = insnNode.getNext();
+            AbstractInsnNode jump = getNextInBlock(insnNode, targets);
+
+            if (jump instanceof JumpInsnNode) {
+                Boolean taken = null;
+
+                Integer value = getIntConstant(insnNode);
+                if (value != null) {
+                    switch (jump.getOpcode()) {
+                        case IFEQ: taken = value == 0; break;
+                        case IFNE: taken = value != 0; break;
+                        case IFLT: taken = value < 0; break;
+                        case IFGE: taken = value >= 0; break;
+                        case IFGT: taken = value > 0; break;
+                        case IFLE: taken = value <= 0; break;
+                    }
+                } else if (insnNode.getOpcode() == ACONST_NULL) {
+                    if (jump.getOpcode() == IFNULL) {
+                        taken = true;
+                    } else if (jump.getOpcode() == IFNONNULL) {
+                        taken = false;
+                    }
+                }
+
+                if (taken != null) {
+                    next = jump.getNext();
+                    instructions.remove(insnNode);
+                    if (taken) {
+                        instructions.set(jump, new JumpInsnNode(GOTO, ((JumpInsnNode) jump).label));
+                    } else {
+                        instructions.remove(jump);
+                    }
+                    changed = true;
+                }
+            }
+
+            insnNode = next;
+        }
+
+        return changed;
+    }
+
+    private boolean threadJumps(MethodNode methodNode) {
+        InsnList instructions = methodNode.instructions;
+        boolean changed = false;
+
+        AbstractInsnNode insnNode = instructions.getFirst();
+        while (insnNode != null) {
+            AbstractInsnNode next = insnNode.getNext();
+
+            if (insnNode instanceof JumpInsnNode && insnNode.getOpcode() != JSR) {
+                JumpInsnNode jumpNode = (JumpInsnNode) insnNode;
+
+                LabelNode label = jumpNode.label;
+                for (int i = 0; i < MAX_JUMP_CHAIN; i++) {
+                    AbstractInsnNode target = getFirstAfter(label);
+                    if (target == null || target.getOpcode() != GOTO || ((JumpInsnNode) target).label == label)
+                        break;
+                    label = ((JumpInsnNode) target).label;
+                }
+
+                if (label != jumpNode.label) {
+                    jumpNode.label = label;
+                    changed = true;
+                }
+
+                if (jumpNode.getOpcode() == GOTO) {
+                    AbstractInsnNode target = getFirstAfter(label);
+                    if (target != null && target.getOpcode() >= IRETURN && target.getOpcode() <= RETURN) {
+                        instructions.set(jumpNode, new InsnNode(target.getOpcode()));
+                        changed = true;
+                    } else if (target != null && target == getFirstAfter(jumpNode)) {
+                        instructions.remove(jumpNode);
+                        changed = true;
+                    }
+                }
+            }
+
+            insnNode = next;
+        }
+
+        return changed;
+    }
+
+    private boolean removeLoadsAndStores(MethodNode methodNode) {
+        InsnList instructions = methodNode.instructions;
+        boolean changed = false;
+
+        int locals = methodNode.maxLocals;
+        for (AbstractInsnNode insnNode = instructions.getFirst(); insnNode != null; insnNode = insnNode.getNext()) {
+            if (insnNode instanceof VarInsnNode) {
+                locals = Math.max(locals, ((VarInsnNode) insnNode).var + 2);
+            } else if (insnNode instanceof IincInsnNode) {
+                locals = Math.max(locals, ((IincInsnNode) insnNode).var + 1);
+            }
+        }
+
+        int[] loads = new int[locals];
+        for (AbstractInsnNode insnNode = instructions.getFirst(); insnNode != null; insnNode = insnNode.getNext()) {
+            if ((insnNode.getOpcode() >= ILOAD && insnNode.getOpcode() <= ALOAD) || insnNode.getOpcode() == RET) {
+                loads[((VarInsnNode) insnNode).var]++;
+            } else if (insnNode.getOpcode() == IINC) {
+                // Counted as a read, so the local is left alone
+                loads[((IincInsnNode) insnNode).var]++;
+            }
+        }
+
+        Set<LabelNode> targets = getTargets(methodNode);
+        AbstractInsnNode insnNode = instructions.getFirst();
+        while (insnNode != null) {
+            AbstractInsnNode next = insnNode.getNext();
+            AbstractInsnNode following = getNextInBlock(insnNode, targets);
+            int opcode = insnNode.getOpcode();
+
+            if (opcode >= ISTORE && opcode <= ASTORE) {
+                int var = ((VarInsnNode) insnNode).var;
+
+                if (loads[var] == 0) {
+                    instructions.set(insnNode, new InsnNode(opcode == LSTORE || opcode == DSTORE ? POP2 : POP));
+                    changed = true;
+                } else if (loads[var] == 1 && following != null && following.getOpcode() == opcode - ISTORE + ILOAD && ((VarInsnNode) following).var == var) {
+                    next = following.getNext();
+                    instructions.remove(insnNode);
+                    instructions.remove(following);
+                    loads[var]--;
+                    changed = true;
+                }
+            } else if (following != null && isPopped(opcode, following.getOpcode())) {
+                next = following.getNext();
+                if (insnNode instanceof VarInsnNode) {
+                    loads[((VarInsnNode) insnNode).var]--;
+                }
+                instructions.remove(insnNode);
+                instructions.remove(following);
+                changed = true;
+            }
+
+            insnNode = next;
+        }
+
+        return changed;
+    }
+
+    /**
+     * @return Whether the instruction only pushes a value, which the next one pops straight off again
+     */
+    private static boolean isPopped(int opcode, int nextOpcode) {
+        if (nextOpcode == POP) {
+            return opcode == ILOAD || opcode == FLOAD || opcode == ALOAD || opcode == DUP || opcode == ACONST_NULL || (opcode >= ICONST_M1 && opcode <= ICONST_5) || opcode == FCONST_0 || opcode == FCONST_1 || opcode == FCONST_2 || opcode == BIPUSH || opcode == SIPUSH;
+        } else if (nextOpcode == POP2) {
+            return opcode == LLOAD || opcode == DLOAD || opcode == DUP2 || opcode == LCONST_0 || opcode == LCONST_1 || opcode == DCONST_0 || opcode == DCONST_1;
+        }
+        return false;
+    }
+
+    private boolean removeDeadCode(String owner, MethodNode methodNode) {
+        Frame<BasicValue>[] frames;
+        try {
+            frames = new Analyzer<BasicValue>(new BasicInterpreter()).analyze(owner, methodNode);
+        } catch (AnalyzerException ex) {
+            SubclassGenerator.debug("Failed to analyze " + methodNode.name + methodNode.desc + ", keeping dead code: " + ex.getMessage());
+            return false;
+        }
+
+        boolean changed = false;
+        AbstractInsnNode[] insnNodes = methodNode.instructions.toArray();
+        for (int i = 0; i < insnNodes.length; i++) {
+            if (frames[i] == null && insnNodes[i].getOpcode() >= 0) {
+                methodNode.instructions.remove(insnNodes[i]);
+                changed = true;
+            }
+        }
+
+        // A handler that covers nothing left isn't allowed
+        if (changed) {
+            Iterator<TryCatchBlockNode> iterator = methodNode.tryCatchBlocks.iterator();
+            while (iterator.hasNext()) {
+                TryCatchBlockNode tryCatchBlockNode = iterator.next();
+                AbstractInsnNode insnNode = getFirstAfter(tryCatchBlockNode.start);
+                if (insnNode == null || methodNode.instructions.indexOf(insnNode) >= methodNode.instructions.indexOf(tryCatchBlockNode.end)) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        return changed;
+    }
+
+    private static Integer getIntConstant(AbstractInsnNode insnNode) {
+        int opcode = insnNode.getOpcode();
+        if (opcode >= ICONST_M1 && opcode <= ICONST_5) {
+            return opcode - ICONST_0;
+        } else if (opcode == BIPUSH || opcode == SIPUSH) {
+            return ((IntInsnNode) insnNode).operand;
+        } else if (opcode == LDC && ((LdcInsnNode) insnNode).cst instanceof Integer) {
+            return (Integer) ((LdcInsnNode) insnNode).cst;
+        }
+        return null;
+    }
+
+    /**
+     * @return The next instruction, if nothing can jump in between
+     */
+    private static AbstractInsnNode getNextInBlock(AbstractInsnNode insnNode, Set<LabelNode> targets) {
+        AbstractInsnNode next = insnNode.getNext();
+        while (next != null && next.getOpcode() < 0) {
+            if (next instanceof LabelNode && targets.contains(next))
+                return null;
+            next = next.getNext();
+        }
+        return next;
+    }
+
+    /**
+     * @return Every label something can jump to. The rest only mark line numbers
+     */
+    private static Set<LabelNode> getTargets(MethodNode methodNode) {
+        Set<LabelNode> targets = Sets.newHashSet();
+
+        for (AbstractInsnNode insnNode = methodNode.instructions.getFirst(); insnNode != null; insnNode = insnNode.getNext()) {
+            if (insnNode instanceof JumpInsnNode) {
+                targets.add(((JumpInsnNode) insnNode).label);
+            } else if (insnNode instanceof TableSwitchInsnNode) {
+                targets.add(((TableSwitchInsnNode) insnNode).dflt);
+                targets.addAll(((TableSwitchInsnNode) insnNode).labels);
+            } else if (insnNode instanceof LookupSwitchInsnNode) {
+                targets.add(((LookupSwitchInsnNode) insnNode).dflt);
+                targets.addAll(((LookupSwitchInsnNode) insnNode).labels);
+            }
+        }
+
+        for (TryCatchBlockNode tryCatchBlockNode : methodNode.tryCatchBlocks) {
+            // Range boundaries count too, so nothing is moved in or out of a range
+            targets.add(tryCatchBlockNode.start);
+            targets.add(tryCatchBlockNode.end);
+            targets.add(tryCatchBlockNode.handler);
+        }
+
+        return targets;
+    }
+
+    /**
+     * @return The first real instruction after the node, skipping labels, line numbers and frames
+     */
+    private static AbstractInsnNode getFirstAfter(AbstractInsnNode insnNode) {
+        AbstractInsnNode next = insnNode.getNext();
+        while (next != null && next.getOpcode() < 0) {
+            next = next.getNext();
+        }
+        return next;
+    }
+}
@@ -0,0 +1,57 @@
+package dmillerw.asm.core;
+
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+
+/**
+ * Creates proxies implementing an interface, where the template decides what happens around each call
+ * <p/>
+ * A stand in for {@link java.lang.reflect.Proxy}. Every interface method is generated with its exact signature:
+ * methods the template marks with {@link dmillerw.asm.annotation.MOverride} run the template's body, with
+ * _super pointing at the proxied target. All other methods call straight through to the target. Nothing is
+ * boxed, and no argument arrays or reflection are involved
+ * <p/>
+ * equals, hashCode and toString go to the target as well, unless the template overrides them. So a proxy equals
+ * its target, while the target doesn't equal the proxy
+ * <pre>
+ * ProxyFactory&lt;Echo&gt; factory = ProxyFactory.create(Echo.class, TemplateEcho.class);
+ * Echo proxy = factory.newProxy(echo);
+ * </pre>
+ */
+public abstract class ProxyFactory<T> {
+
+    // Factories by interface, then template. Keyed by the classes themselves, as names can repeat across loaders
+    private static final Map<Class<?>, Map<Class<?>, ProxyFactory<?>>> FACTORIES = Maps.newHashMap();
+
+    @SuppressWarnings("unchecked")
+    public static synchronized <T> ProxyFactory<T> create(Class<T> interfaceClass, Class<? extends Template<T>> templateClass) {
+        Map<Class<?>, ProxyFactory<?>> factories = FACTORIES.get(interfaceClass);
+        if (factories == null) {
+            factories = Maps.newHashMap();
+            FACTORIES.put(interfaceClass, factories);
+        }
+
+        ProxyFactory<T> factory = (ProxyFactory<T>) factories.get(templateClass);
+        if (factory == null) {
+            factory = new ProxyGenerator<T>(interfaceClass, templateClass).generateFactory();
+            factories.put(templateClass, factory);
+        }
+        return factory;
+    }
+
+    Class<?> proxyClass;
+
+    /**
+     * @return The generated class implementing the interface
+     */
+    public Class<?> getProxyClass() {
+        return proxyClass;
+    }
+
+    /**
+     * @return A new proxy around the target. Template fields start out zeroed, then any no-argument
+     * {@link dmillerw.asm.annotation.MConstructor} of the template runs
+     */
+    public abstract T newProxy(T target);
+}
@@ -0,0 +1,308 @@
+package dmillerw.asm.core;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Generates the proxy class and {@link ProxyFactory} for an interface and template
+ * <p/>
+ * The proxy keeps its target in a _target field. The template's _super is redirected to that field, so any
+ * call made on _super, with or without arguments, goes to the target unchanged. Besides the interface methods,
+ * equals, hashCode and toString are proxied the same way
+ */
+class ProxyGenerator<T> {
+
+    static final String TARGET_FIELD = "_target";
+
+    // Object methods a proxy passes on, as java.lang.reflect.Proxy does
+    private static final Set<String> OBJECT_METHODS = ImmutableSet.of("equals", "hashCode", "toString");
+
+    // Proxies of one interface and template can come from different class loaders, so names are numbered
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+
+    final Class<T> interfaceClass;
+    final Class<? extends Template<T>> templateClass;
+
+    final ClassNode templateNode;
+    final TemplateIndex templateIndex;
+
+    final String interfaceType;
+    final String interfaceDesc;
+    final String templateType;
+    final String proxyName;
+    final String proxyType;
+
+    // Template method nodes, keyed by name + desc
+    final Map<String, MethodNode> overrideMethods = Maps.newHashMap();
+    final List<MethodNode> implementMethods = Lists.newArrayList();
+    final List<MethodNode> constructors = Lists.newArrayList();
+    final List<FieldNode> fields = Lists.newArrayList();
+
+    // Every method the proxy implements, keyed by name + desc
+    final Map<String, Method> proxiedMethods = Maps.newLinkedHashMap();
+
+    ProxyGenerator(Class<T> interfaceClass, Class<? extends Template<T>> templateClass) {
+        if (!interfaceClass.isInterface()) {
+            throw new IllegalArgumentException(interfaceClass.getName() + " is not an interface");
+        }
+
+        this.interfaceClass = interfaceClass;
+        this.templateClass = templateClass;
+        this.templateNode = ASMUtils.getClassNode(templateClass);
+        this.templateIndex = TemplateIndex.get(templateNode, templateClass.getClassLoader());
+        this.interfaceType = Type.getInternalName(interfaceClass);
+        this.interfaceDesc = Type.getDescriptor(interfaceClass);
+        this.templateType = Type.getInternalName(templateClass);
+        this.proxyName = templateClass.getName() + "_PROXY_" + interfaceClass.getSimpleName() + "_" + COUNTER.getAndIncrement();
+        this.proxyType = proxyName.replace(".", "/");
+
+        gatherProxiedMethods();
+        gatherTemplateFields();
+        gatherTemplateMethods();
+    }
+
+    private void gatherProxiedMethods() {
+        for (Method method : interfaceClass.getMethods()) {
+            if (!Modifier.isStatic(method.getModifiers())) {
+                proxiedMethods.put(method.getName() + Type.getMethodDescriptor(method), method);
+            }
+        }
+
+        for (Method method : Object.class.getMethods()) {
+            String key = method.getName() + Type.getMethodDescriptor(method);
+            if (OBJECT_METHODS.contains(method.getName()) && !proxiedMethods.containsKey(key)) {
+                proxiedMethods.put(key, method);
+            }
+        }
+    }
+
+    private void gatherTemplateFields() {
+        for (TemplateIndex.FieldEntry fieldEntry : templateIndex.fields) {
+            for (FieldNode fieldNode : templateNode.fields) {
+                if (fieldNode.name.equals(fieldEntry.name)) {
+                    fields.add(fieldNode);
+                }
+            }
+        }
+    }
+
+    private void gatherTemplateMethods() {
+        for (TemplateIndex.MethodEntry methodEntry : templateIndex.methods) {
+            MethodNode methodNode = getTemplateMethod(methodEntry.name, methodEntry.desc);
+
+            if (methodEntry.kind == TemplateIndex.CONSTRUCTOR) {
+                if (Type.getArgumentTypes(methodEntry.desc).length == 0) {
+                    constructors.add(methodNode);
+                } else {
+                    SubclassGenerator.debug("Proxies only have one constructor, ignoring template constructor " + methodEntry.name + methodEntry.desc);
+                }
+            } else if (methodEntry.kind == TemplateIndex.OVERRIDE) {
+                if (proxiedMethods.containsKey(methodEntry.name + methodNode.desc)) {
+                    overrideMethods.put(methodNode.name + methodNode.desc, methodNode);
+                } else {
+                    SubclassGenerator.debug("Failed to override " + methodEntry.name + methodEntry.desc + ", " + interfaceClass.getName() + " has no such method");
+                }
+            } else if (methodEntry.kind == TemplateIndex.IMPLEMENT) {
+                implementMethods.add(methodNode);
+            }
+        }
+    }
+
+    private MethodNode getTemplateMethod(String name, String desc) {
+        for (MethodNode methodNode : templateNode.methods) {
+            if (methodNode.name.equals(name) && methodNode.desc.equals(desc)) {
+                return methodNode;
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    ProxyFactory<T> generateFactory() {
+        Class<?> proxyClass = SubclassGenerator.LOADER.define(proxyName, generateProxy());
+        Class<?> factoryClass = SubclassGenerator.LOADER.define(proxyName + "_FACTORY", generateFactoryClass());
+
+        try {
+            ProxyFactory<T> factory = (ProxyFactory<T>) factoryClass.newInstance();
+            factory.proxyClass = proxyClass;
+            return factory;
+        } catch (Exception ex) {
+            throw new RuntimeException("Failed to create proxy factory for " + proxyName, ex);
+        }
+    }
+
+    private byte[] generateProxy() {
+        List<String> interfaces = Lists.newArrayList(interfaceType);
+        interfaces.addAll(templateNode.interfaces);
+
+        ClassWriter classWriter = new ClassWriter(0);
+        classWriter.visit(V1_6, ACC_PUBLIC | ACC_SUPER | ACC_FINAL, proxyType, null, "java/lang/Object", interfaces.toArray(new String[interfaces.size()]));
+        classWriter.visitSource(".dynamic", null);
+
+        classWriter.visitField(ACC_PRIVATE | ACC_FINAL, TARGET_FIELD, interfaceDesc, null, null);
+        for (FieldNode fieldNode : fields) {
+            classWriter.visitField(fieldNode.access, fieldNode.name, fieldNode.desc, null, null);
+        }
+
+        addConstructor(classWriter);
+
+        for (Map.Entry<String, Method> entry : proxiedMethods.entrySet()) {
+            MethodNode methodNode = overrideMethods.get(entry.getKey());
+            if (methodNode != null) {
+                copyMethod(classWriter, ACC_PUBLIC | ACC_FINAL, methodNode);
+            } else {
+                addForward(classWriter, entry.getValue());
+            }
+        }
+
+        for (MethodNode methodNode : implementMethods) {
+            copyMethod(classWriter, methodNode.access, methodNode);
+        }
+
+        classWriter.visitEnd();
+        return classWriter.toByteArray();
+    }
+
+    private void addConstructor(ClassWriter classWriter) {
+        MethodVisitor methodVisitor = classWriter.visitMethod(ACC_PUBLIC, "<init>", "(" + interfaceDesc + ")V", null, null);
+        methodVisitor.visitCode();
+        methodVisitor.visitVarInsn(ALOAD, 0);
+        methodVisitor.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        methodVisitor.visitVarInsn(ALOAD, 0);
+        methodVisitor.visitVarInsn(ALOAD, 1);
+        methodVisitor.visitFieldInsn(PUTFIELD, proxyType, TARGET_FIELD, interfaceDesc);
+
+        int maxStack = 2;
+        int maxLocals = 2;
+
+        // Template constructors are no-argument methods, so they only ever clobber the target local after it's stored
+        if (!constructors.isEmpty()) {
+            MethodNode methodNode = constructors.get(0);
+            copyNodes(methodNode, methodVisitor);
+
+            maxStack = Math.max(maxStack, methodNode.maxStack);
+            maxLocals = Math.max(maxLocals, methodNode.maxLocals);
+        }
+
+        methodVisitor.visitInsn(RETURN);
+        methodVisitor.visitMaxs(maxStack, maxLocals);
+        methodVisitor.visitEnd();
+    }
+
+    /**
+     * Passes the call straight on to the target. Object methods are called virtually, the rest through the interface
+     */
+    private void addForward(ClassWriter classWriter, Method method) {
+        String desc = Type.getMethodDescriptor(method);
+
+        MethodVisitor methodVisitor = classWriter.visitMethod(ACC_PUBLIC | ACC_FINAL, method.getName(), desc, null, null);
+        methodVisitor.visitCode();
+        methodVisitor.visitVarInsn(ALOAD, 0);
+        methodVisitor.visitFieldInsn(GETFIELD, proxyType, TARGET_FIELD, interfaceDesc);
+
+        int local = 1;
+        for (Type type : Type.getArgumentTypes(desc)) {
+            methodVisitor.visitVarInsn(type.getOpcode(ILOAD), local);
+            local += type.getSize();
+        }
+
+        if (method.getDeclaringClass() == Object.class) {
+            methodVisitor.visitMethodInsn(INVOKEVIRTUAL, "java/lang/Object", method.getName(), desc, false);
+        } else {
+            methodVisitor.visitMethodInsn(INVOKEINTERFACE, interfaceType, method.getName(), desc, true);
+        }
+
+        Type returnType = Type.getReturnType(desc);
+        methodVisitor.visitInsn(returnType.getOpcode(IRETURN));
+        methodVisitor.visitMaxs(Math.max(local, returnType.getSize()), local);
+        methodVisitor.visitEnd();
+    }
+
+    private void copyMethod(ClassWriter classWriter, int access, MethodNode methodNode) {
+        MethodVisitor methodVisitor = classWriter.visitMethod(access, methodNode.name, methodNode.desc, null, null);
+        methodVisitor.visitCode();
+        copyNodes(methodNode, methodVisitor);
+        methodVisitor.visitMaxs(methodNode.maxStack, methodNode.maxLocals);
+        methodVisitor.visitEnd();
+    }
+
+    /**
+     * Copies the template instructions, pointing _super at the target and everything else owned by the template
+     * at the proxy, and visits them along with the try/catch blocks, pointed at the copied labels
+     */
+    private void copyNodes(MethodNode methodNode, MethodVisitor methodVisitor) {
+        // Atomic fields are only supported in generated subclasses
+        AtomicFields.checkRewritten(templateType, methodNode, Collections.<AbstractInsnNode, InsnList>emptyMap());
+
+        NodeCopier nodeCopier = new NodeCopier(methodNode.instructions);
+        InsnList insnList = new InsnList();
+
+        // Visited before any of their labels, as ASM requires
+        for (TryCatchBlockNode tryCatchBlockNode : methodNode.tryCatchBlocks) {
+            new TryCatchBlockNode(nodeCopier.getLabel(tryCatchBlockNode.start), nodeCopier.getLabel(tryCatchBlockNode.end), nodeCopier.getLabel(tryCatchBlockNode.handler), tryCatchBlockNode.type).accept(methodVisitor);
+        }
+
+        for (AbstractInsnNode insnNode = methodNode.instructions.getFirst(); insnNode != null; insnNode = insnNode.getNext()) {
+            if (insnNode instanceof FieldInsnNode && ((FieldInsnNode) insnNode).owner.equals(templateType)) {
+                FieldInsnNode fieldNode = (FieldInsnNode) insnNode;
+                if (fieldNode.name.equals("_super")) {
+                    nodeCopier.copyTo(new FieldInsnNode(fieldNode.getOpcode(), proxyType, TARGET_FIELD, interfaceDesc), insnList);
+                } else {
+                    nodeCopier.copyTo(ASMUtils.redirect(fieldNode, proxyType), insnList);
+                }
+            } else if (insnNode instanceof MethodInsnNode && ((MethodInsnNode) insnNode).owner.equals(templateType)) {
+                nodeCopier.copyTo(ASMUtils.redirect((MethodInsnNode) insnNode, proxyType), insnList);
+            } else {
+                nodeCopier.copyTo(insnNode, insnList);
+            }
+        }
+
+        insnList.accept(methodVisitor);
+    }
+
+    private byte[] generateFactoryClass() {
+        String factoryType = proxyType + "_FACTORY";
+        String superType = Type.getInternalName(ProxyFactory.class);
+
+        ClassWriter classWriter = new ClassWriter(0);
+        classWriter.visit(V1_6, ACC_PUBLIC | ACC_SUPER | ACC_FINAL, factoryType, null, superType, null);
+        classWriter.visitSource(".dynamic", null);
+
+        MethodVisitor methodVisitor = classWriter.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        methodVisitor.visitCode();
+        methodVisitor.visitVarInsn(ALOAD, 0);
+        methodVisitor.visitMethodInsn(INVOKESPECIAL, superType, "<init>", "()V", false);
+        methodVisitor.visitInsn(RETURN);
+        methodVisitor.visitMaxs(1, 1);
+        methodVisitor.visitEnd();
+
+        methodVisitor = classWriter.visitMethod(ACC_PUBLIC, "newProxy", "(Ljava/lang/Object;)Ljava/lang/Object;", null, null);
+        methodVisitor.visitCode();
+        methodVisitor.visitTypeInsn(NEW, proxyType);
+        methodVisitor.visitInsn(DUP);
+        methodVisitor.visitVarInsn(ALOAD, 1);
+        methodVisitor.visitTypeInsn(CHECKCAST, interfaceType);
+        methodVisitor.visitMethodInsn(INVOKESPECIAL, proxyType, "<init>", "(" + interfaceDesc + ")V", false);
+        methodVisitor.visitInsn(ARETURN);
+        methodVisitor.visitMaxs(3, 2);
+        methodVisitor.visitEnd();
+
+        classWriter.visitEnd();
+        return classWriter.toByteArray();
+    }
+}
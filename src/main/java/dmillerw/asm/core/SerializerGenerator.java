@@ -0,0 +1,208 @@
+package dmillerw.asm.core;
+
+import com.google.common.collect.Lists;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.InsnList;
+
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Writes the {@link BufferSerializable} methods of a class produced by a {@link SubclassGenerator}
+ * <p/>
+ * Primitives are a single ByteBuffer call each, booleans as a byte. Strings go through {@link BufferSerializers}.
+ * Enums are written as their ordinal, and read back through a static _serial_enum_ array of their constants in the
+ * generated class, shifted by one so -1 reads as null. Static, final and transient fields are left out. Any other
+ * field of another type, or an enum the generated class can't see, fails the generation, so it has to be marked
+ * transient to be left out
+ */
+class SerializerGenerator {
+
+    private static final String BUFFER_TYPE = Type.getInternalName(ByteBuffer.class);
+    private static final String BUFFER_DESC = Type.getDescriptor(ByteBuffer.class);
+    private static final String SERIALIZERS_TYPE = Type.getInternalName(BufferSerializers.class);
+
+    static final String ENUM_PREFIX = "_serial_enum_";
+
+    // ByteBuffer method suffix for each primitive sort, indexed by Type.getSort(). Booleans are stored as bytes
+    private static final String[] SUFFIXES = {
+            null, "", "Char", "", "Short", "Int", "Float", "Long", "Double"
+    };
+
+    final SubclassGenerator<?> generator;
+
+    // Serialized fields, in layout order
+    final List<FieldMapping> fields = Lists.newArrayList();
+
+    final int layout;
+
+    SerializerGenerator(SubclassGenerator<?> generator) {
+        this.generator = generator;
+
+        for (Map.Entry<FieldMapping, FieldNode> entry : generator.fieldNodes.entrySet()) {
+            FieldMapping fieldMapping = entry.getKey();
+            if ((entry.getValue().access & (ACC_STATIC | ACC_FINAL | ACC_TRANSIENT)) != 0)
+                continue;
+
+            if (!isSerializable(fieldMapping)) {
+                throw new IllegalStateException("Can't serialize field " + fieldMapping.name + " of " + generator.templateType.replace('/', '.') + ", only primitives, Strings and enums the generated class can see are. Mark it transient to leave it out");
+            }
+            fields.add(fieldMapping);
+        }
+
+        Collections.sort(fields, new Comparator<FieldMapping>() {
+            @Override
+            public int compare(FieldMapping o1, FieldMapping o2) {
+                return o1.name.compareTo(o2.name);
+            }
+        });
+
+        // Any change to the names or types of the fields changes the layout, as does any change to the constants of
+        // an enum, since those are written as ordinals
+        StringBuilder stringBuilder = new StringBuilder();
+        for (FieldMapping fieldMapping : fields) {
+            stringBuilder.append(fieldMapping.name).append(':').append(fieldMapping.signature);
+            if (fieldMapping.type.isEnum()) {
+                for (Object constant : fieldMapping.type.getEnumConstants()) {
+                    stringBuilder.append(',').append(((Enum<?>) constant).name());
+                }
+            }
+            stringBuilder.append(';');
+        }
+        this.layout = stringBuilder.toString().hashCode();
+    }
+
+    private static boolean isSerializable(FieldMapping fieldMapping) {
+        Type type = Type.getType(fieldMapping.signature);
+        if (type.getSort() <= Type.DOUBLE) {
+            return true;
+        } else if (type.getSort() == Type.OBJECT) {
+            return fieldMapping.type == String.class || (fieldMapping.type.isEnum() && SubclassGenerator.isVisible(fieldMapping.type));
+        }
+        return false;
+    }
+
+    void addMethods(ClassWriter classWriter) {
+        for (FieldMapping fieldMapping : fields) {
+            if (isEnum(fieldMapping)) {
+                classWriter.visitField(ACC_PUBLIC | ACC_STATIC, ENUM_PREFIX + fieldMapping.name, "[" + fieldMapping.signature, null, null);
+            }
+        }
+
+        MethodVisitor methodVisitor = classWriter.visitMethod(ACC_PUBLIC, "writeTo", "(" + BUFFER_DESC + ")V", null, null);
+        methodVisitor.visitCode();
+
+        methodVisitor.visitVarInsn(ALOAD, 1);
+        methodVisitor.visitLdcInsn(layout);
+        methodVisitor.visitMethodInsn(INVOKEVIRTUAL, BUFFER_TYPE, "putInt", "(I)" + BUFFER_DESC, false);
+        methodVisitor.visitInsn(POP);
+
+        for (FieldMapping fieldMapping : fields) {
+            Type type = Type.getType(fieldMapping.signature);
+
+            // [buffer, this] -> [buffer, value]
+            methodVisitor.visitVarInsn(ALOAD, 1);
+            methodVisitor.visitVarInsn(ALOAD, 0);
+            accessField(methodVisitor, GETFIELD, fieldMapping);
+
+            if (fieldMapping.type == String.class) {
+                methodVisitor.visitMethodInsn(INVOKESTATIC, SERIALIZERS_TYPE, "writeString", "(" + BUFFER_DESC + "Ljava/lang/String;)V", false);
+            } else if (type.getSort() == Type.OBJECT) {
+                methodVisitor.visitMethodInsn(INVOKESTATIC, SERIALIZERS_TYPE, "writeEnum", "(" + BUFFER_DESC + "Ljava/lang/Enum;)V", false);
+            } else {
+                String desc = type.getSort() == Type.BOOLEAN ? "B" : type.getDescriptor();
+                methodVisitor.visitMethodInsn(INVOKEVIRTUAL, BUFFER_TYPE, "put" + SUFFIXES[type.getSort()], "(" + desc + ")" + BUFFER_DESC, false);
+                methodVisitor.visitInsn(POP);
+            }
+        }
+
+        methodVisitor.visitInsn(RETURN);
+        methodVisitor.visitMaxs(4 + generator.stackPadding(), 2);
+        methodVisitor.visitEnd();
+
+        methodVisitor = classWriter.visitMethod(ACC_PUBLIC, "readFrom", "(" + BUFFER_DESC + ")V", null, null);
+        methodVisitor.visitCode();
+
+        methodVisitor.visitVarInsn(ALOAD, 1);
+        methodVisitor.visitMethodInsn(INVOKEVIRTUAL, BUFFER_TYPE, "getInt", "()I", false);
+        methodVisitor.visitLdcInsn(layout);
+        methodVisitor.visitMethodInsn(INVOKESTATIC, SERIALIZERS_TYPE, "checkLayout", "(II)V", false);
+
+        for (FieldMapping fieldMapping : fields) {
+            Type type = Type.getType(fieldMapping.signature);
+
+            // [this, buffer] -> [this, value]
+            methodVisitor.visitVarInsn(ALOAD, 0);
+            if (isEnum(fieldMapping)) {
+                // [this, table, buffer] -> [this, table, ordinal + 1] -> [this, value]
+                methodVisitor.visitFieldInsn(GETSTATIC, generator.subType, ENUM_PREFIX + fieldMapping.name, "[" + fieldMapping.signature);
+                methodVisitor.visitVarInsn(ALOAD, 1);
+                methodVisitor.visitMethodInsn(INVOKEVIRTUAL, BUFFER_TYPE, "getInt", "()I", false);
+                methodVisitor.visitInsn(ICONST_1);
+                methodVisitor.visitInsn(IADD);
+                methodVisitor.visitInsn(AALOAD);
+                accessField(methodVisitor, PUTFIELD, fieldMapping);
+                continue;
+            }
+            methodVisitor.visitVarInsn(ALOAD, 1);
+
+            if (fieldMapping.type == String.class) {
+                methodVisitor.visitMethodInsn(INVOKESTATIC, SERIALIZERS_TYPE, "readString", "(" + BUFFER_DESC + ")Ljava/lang/String;", false);
+            } else if (type.getSort() == Type.BOOLEAN) {
+                methodVisitor.visitMethodInsn(INVOKEVIRTUAL, BUFFER_TYPE, "get", "()B", false);
+                methodVisitor.visitInsn(ICONST_1);
+                methodVisitor.visitInsn(IAND);
+            } else {
+                methodVisitor.visitMethodInsn(INVOKEVIRTUAL, BUFFER_TYPE, "get" + SUFFIXES[type.getSort()], "()" + type.getDescriptor(), false);
+            }
+
+            accessField(methodVisitor, PUTFIELD, fieldMapping);
+        }
+
+        methodVisitor.visitInsn(RETURN);
+        methodVisitor.visitMaxs(4 + generator.stackPadding(), 2);
+        methodVisitor.visitEnd();
+    }
+
+    /**
+     * Fills the enum tables of the freshly defined class
+     */
+    void install(Class<?> generatedClass) {
+        for (FieldMapping fieldMapping : fields) {
+            if (!isEnum(fieldMapping))
+                continue;
+
+            Object[] constants = fieldMapping.type.getEnumConstants();
+            Object table = Array.newInstance(fieldMapping.type, constants.length + 1);
+            System.arraycopy(constants, 0, table, 1, constants.length);
+
+            try {
+                generatedClass.getField(ENUM_PREFIX + fieldMapping.name).set(null, table);
+            } catch (Exception ex) {
+                throw new RuntimeException("Failed to install enum table for " + fieldMapping + " into " + generatedClass.getName(), ex);
+            }
+        }
+    }
+
+    private static boolean isEnum(FieldMapping fieldMapping) {
+        return Type.getType(fieldMapping.signature).getSort() == Type.OBJECT && fieldMapping.type != String.class;
+    }
+
+    private void accessField(MethodVisitor methodVisitor, int opcode, FieldMapping fieldMapping) {
+        InsnList insnList = generator.storedFieldAccess(opcode, fieldMapping);
+        if (insnList != null) {
+            insnList.accept(methodVisitor);
+        } else {
+            methodVisitor.visitFieldInsn(opcode, generator.subType, fieldMapping.name, fieldMapping.signature);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package dmillerw.asm.core;
+
+import com.google.common.collect.Lists;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Hands out slot ids for instances of a generated class using {@link FieldLayout#COLUMNAR}, and owns the
+ * columns those slots index into
+ * <p/>
+ * Every column is stored in the generated class as a static two dimensional array. The first dimension is the
+ * slab, the second the index inside that slab. Slabs are never moved once created, so growing the allocator
+ * only ever replaces the outer array
+ */
+public class SlabAllocator {
+
+    public static final int SLAB_SHIFT = 10;
+    public static final int SLAB_SIZE = 1 << SLAB_SHIFT;
+    public static final int SLAB_MASK = SLAB_SIZE - 1;
+
+    public static final String ALLOCATOR_FIELD = "_allocator";
+    public static final String SLOT_FIELD = "_slot";
+    public static final String COLUMN_PREFIX = "_column_";
+
+    /**
+     * @return The allocator installed into the generated class, or null if it doesn't use a columnar layout
+     */
+    public static SlabAllocator get(Class<?> generatedClass) {
+        try {
+            return (SlabAllocator) generatedClass.getField(ALLOCATOR_FIELD).get(null);
+        } catch (NoSuchFieldException ex) {
+            return null;
+        } catch (IllegalAccessException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates an allocator for the freshly defined class and writes it and all of its columns into the class'
+     * static fields
+     */
+    static SlabAllocator install(Class<?> generatedClass, List<FieldMapping> columns) {
+        SlabAllocator allocator = new SlabAllocator(generatedClass, columns);
+        try {
+            generatedClass.getField(ALLOCATOR_FIELD).set(null, allocator);
+        } catch (Exception ex) {
+            throw new RuntimeException("Failed to install slab allocator into " + generatedClass.getName(), ex);
+        }
+        return allocator;
+    }
+
+    private final List<Column> columns = Lists.newArrayList();
+
+    private int slabCount = 0;
+    private int nextSlot = 0;
+
+    private int[] freeSlots = new int[16];
+    private int freeCount = 0;
+
+    // Slots currently handed out, so a slot is never freed twice and then shared by two instances
+    private final BitSet usedSlots = new BitSet();
+
+    private SlabAllocator(Class<?> generatedClass, List<FieldMapping> fieldMappings) {
+        for (FieldMapping fieldMapping : fieldMappings) {
+            try {
+                Field field = generatedClass.getField(COLUMN_PREFIX + fieldMapping.name);
+                columns.add(new Column(field, fieldMapping.type));
+            } catch (NoSuchFieldException ex) {
+                throw new RuntimeException("Generated class " + generatedClass.getName() + " is missing column for " + fieldMapping, ex);
+            }
+        }
+
+        grow(1);
+    }
+
+    /**
+     * Called from the constructors of the generated class
+     *
+     * @return A slot whose column values are all zeroed
+     */
+    public synchronized int allocate() {
+        if (freeCount > 0) {
+            int slot = freeSlots[--freeCount];
+            for (Column column : columns) {
+                column.clear(slot);
+            }
+            usedSlots.set(slot);
+            return slot;
+        }
+
+        int slot = nextSlot++;
+        if ((slot >>> SLAB_SHIFT) >= slabCount) {
+            grow(slabCount * 2);
+        }
+        usedSlots.set(slot);
+        return slot;
+    }
+
+    /**
+     * Returns the instance's slot to the allocator. The instance must not be used afterwards, as its slot
+     * will be handed out to the next allocated instance
+     */
+    public void free(Slotted instance) {
+        free(instance._slot());
+    }
+
+    /**
+     * @throws IllegalStateException If the slot isn't handed out, because it was never allocated or was already
+     * freed
+     */
+    public synchronized void free(int slot) {
+        if (slot < 0 || slot >= nextSlot) {
+            throw new IllegalStateException("Slot " + slot + " was never allocated");
+        }
+        if (!usedSlots.get(slot)) {
+            throw new IllegalStateException("Slot " + slot + " was already freed");
+        }
+        usedSlots.clear(slot);
+
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        }
+        freeSlots[freeCount++] = slot;
+    }
+
+    /**
+     * @return How many slots are currently handed out
+     */
+    public synchronized int size() {
+        return nextSlot - freeCount;
+    }
+
+    private void grow(int newSlabCount) {
+        for (Column column : columns) {
+            column.grow(slabCount, newSlabCount);
+        }
+        slabCount = newSlabCount;
+    }
+
+    private static class Column {
+
+        final Field field;
+        final Class<?> type;
+        final Object zero;
+
+        Object slabs;
+
+        Column(Field field, Class<?> type) {
+            this.field = field;
+            this.type = type;
+            this.zero = Array.get(Array.newInstance(type, 1), 0);
+        }
+
+        void grow(int oldCount, int newCount) {
+            Object newSlabs = Array.newInstance(field.getType().getComponentType(), newCount);
+            if (slabs != null) {
+                System.arraycopy(slabs, 0, newSlabs, 0, oldCount);
+            }
+            for (int i = oldCount; i < newCount; i++) {
+                Array.set(newSlabs, i, Array.newInstance(type, SLAB_SIZE));
+            }
+
+            try {
+                field.set(null, newSlabs);
+            } catch (IllegalAccessException ex) {
+                throw new RuntimeException("Failed to grow column " + field.getName(), ex);
+            }
+
+            slabs = newSlabs;
+        }
+
+        void clear(int slot) {
+            Array.set(Array.get(slabs, slot >>> SLAB_SHIFT), slot & SLAB_MASK, zero);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package dmillerw.asm.core;
+
+/**
+ * Implemented by generated classes using {@link FieldLayout#COLUMNAR}
+ */
+public interface Slotted {
+
+    /**
+     * @return The slot this instance was allocated in its class' {@link SlabAllocator}
+     */
+    public int _slot();
+}
@@ -0,0 +1,112 @@
+package dmillerw.asm.core;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates instances of a (super class, template) pair, specializing the generated class for the argument types
+ * it actually sees
+ * <p/>
+ * Instances start out as a class generated with type profiling. Once the busiest override has seen enough calls,
+ * the pair is generated again, devirtualized and specialized for the dominant argument classes, and every
+ * instance created from then on is of that class. Instances created before keep the profiled class. The profiles
+ * are only checked every {@value #CHECK_INTERVAL} instances, so up to that many more profiled instances can be
+ * created after the threshold is reached
+ *
+ * @see SubclassGenerator#specialize(Class, double)
+ */
+public class SpecializingFactory<T> {
+
+    // Keeps the names of the classes of separate factories for the same pair apart
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+
+    // Summing the profiles walks every type each one has seen, too much to do for every instance
+    static final int CHECK_INTERVAL = 64;
+
+    public static <T> SpecializingFactory<T> create(Class<T> superClass, Class<? extends Template<T>> templateClass, long warmupCalls, double ratio) {
+        return new SpecializingFactory<T>(superClass, templateClass, warmupCalls, ratio);
+    }
+
+    final Class<T> superClass;
+    final Class<? extends Template<T>> templateClass;
+    final long warmupCalls;
+    final double ratio;
+
+    private final int id = COUNTER.getAndIncrement();
+
+    private final Class<T> profiledClass;
+    private final Collection<TypeProfile> profiles;
+    private volatile Class<T> specializedClass;
+
+    private final AtomicInteger created = new AtomicInteger();
+
+    private SpecializingFactory(Class<T> superClass, Class<? extends Template<T>> templateClass, long warmupCalls, double ratio) {
+        this.superClass = superClass;
+        this.templateClass = templateClass;
+        this.warmupCalls = warmupCalls;
+        this.ratio = ratio;
+
+        this.profiledClass = new SubclassGenerator<T>(superClass, templateClass)
+                .setClassName(superClass.getName() + "_PROFILED_" + id)
+                .setTypeProfiling(true)
+                .generateSubclass();
+        this.profiles = TypeProfile.get(profiledClass).values();
+    }
+
+    public T newInstance() {
+        try {
+            Class<T> specializedClass = this.specializedClass;
+            if (specializedClass == null && created.incrementAndGet() % CHECK_INTERVAL == 0 && isWarm()) {
+                specializedClass = specialize();
+            }
+
+            return (specializedClass != null ? specializedClass : profiledClass).newInstance();
+        } catch (InstantiationException ex) {
+            throw new RuntimeException("Failed to create an instance of " + superClass.getName(), ex);
+        } catch (IllegalAccessException ex) {
+            throw new RuntimeException("Failed to create an instance of " + superClass.getName(), ex);
+        }
+    }
+
+    private boolean isWarm() {
+        for (TypeProfile profile : profiles) {
+            if (profile.getSamples() >= warmupCalls) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Generates the specialized class now, from whatever the profiles have seen so far
+     */
+    public synchronized Class<T> specialize() {
+        if (specializedClass == null) {
+            specializedClass = new SubclassGenerator<T>(superClass, templateClass)
+                    .setClassName(superClass.getName() + "_SPECIALIZED_" + id)
+                    .setDevirtualize(true)
+                    .specialize(profiledClass, ratio)
+                    .generateSubclass();
+        }
+        return specializedClass;
+    }
+
+    public Class<T> getProfiledClass() {
+        return profiledClass;
+    }
+
+    /**
+     * @return The specialized class, or null if it hasn't been generated yet
+     */
+    public Class<T> getSpecializedClass() {
+        return specializedClass;
+    }
+
+    /**
+     * @return The type profiles of the profiled class, keyed by method name and descriptor
+     */
+    public Map<String, TypeProfile> getProfiles() {
+        return TypeProfile.get(profiledClass);
+    }
+}
@@ -0,0 +1,46 @@
+package dmillerw.asm.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A sum spread over several cache lines, so threads adding to it concurrently rarely touch the same one
+ * <p/>
+ * Public for {@link dmillerw.asm.annotation.MAtomic} striped fields, which generated classes store in one
+ */
+public class StripedCounter {
+
+    private static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors()) * 4;
+
+    // Longs per stripe, keeping each stripe on its own 64 byte line
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    public void add(long value) {
+        long id = Thread.currentThread().getId();
+        int stripe = (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & (STRIPES - 1);
+        cells.addAndGet(stripe * PADDING, value);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    public void reset() {
+        for (int i = 0; i < STRIPES; i++) {
+            cells.set(i * PADDING, 0);
+        }
+    }
+
+    /**
+     * Resets the counter, then adds the value. Adds made at the same time may or may not be lost
+     */
+    public void set(long value) {
+        reset();
+        add(value);
+    }
+}
@@ -0,0 +1,150 @@
+package dmillerw.asm.core;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps every class generated through {@link SubclassGenerator#generateSubclass(Class, Class)}, so each
+ * (super class, template) pair is only ever generated once
+ * <p/>
+ * A caller asking for a pair that another thread is still generating waits for that generation to finish
+ */
+public class SubclassCache {
+
+    private static final ConcurrentMap<Key, FutureTask<Class<?>>> CLASSES = Maps.newConcurrentMap();
+
+    // Pairs the application has asked for at least once, as opposed to ones only pre-generated
+    private static final Set<Key> REQUESTED = Sets.newSetFromMap(Maps.<Key, Boolean>newConcurrentMap());
+
+    // Pairs that failed to generate at least once, and the number of retries so far, across all pairs
+    private static final Set<Key> FAILED = Sets.newSetFromMap(Maps.<Key, Boolean>newConcurrentMap());
+    private static final AtomicInteger RETRIES = new AtomicInteger();
+
+    static final AtomicInteger WARM = new AtomicInteger();
+    static final AtomicInteger WAITED = new AtomicInteger();
+    static final AtomicInteger COLD = new AtomicInteger();
+
+    @SuppressWarnings("unchecked")
+    public static <T> Class<T> get(Class<?> superClass, Class<? extends Template<T>> templateClass) {
+        Key key = new Key(superClass, templateClass);
+        FutureTask<Class<?>> task = CLASSES.get(key);
+
+        if (REQUESTED.add(key)) {
+            if (task == null) {
+                COLD.incrementAndGet();
+            } else if (task.isDone()) {
+                WARM.incrementAndGet();
+            } else {
+                WAITED.incrementAndGet();
+            }
+        }
+
+        if (task == null) {
+            task = generate(key);
+        }
+
+        return (Class<T>) await(key, task);
+    }
+
+    /**
+     * Generates the pair if nobody has yet, without counting it as a request from the application
+     */
+    static void pregenerate(Class<?> superClass, Class<? extends Template<?>> templateClass) {
+        Key key = new Key(superClass, templateClass);
+        await(key, generate(key));
+    }
+
+    private static FutureTask<Class<?>> generate(final Key key) {
+        FutureTask<Class<?>> task = new FutureTask<Class<?>>(new Callable<Class<?>>() {
+            @Override
+            public Class<?> call() throws Exception {
+                Class<?> clazz = generateSubclass(key);
+                WarmupManifest.generated(key.superClass, key.templateClass);
+                return clazz;
+            }
+        });
+
+        FutureTask<Class<?>> existing = CLASSES.putIfAbsent(key, task);
+        if (existing != null) {
+            return existing;
+        }
+
+        task.run();
+        return task;
+    }
+
+    /**
+     * A generation can fail after its class is already defined, and a class can't be defined twice under one name.
+     * So each retry of a failed pair is generated under a name of its own
+     */
+    @SuppressWarnings("unchecked")
+    private static Class<?> generateSubclass(Key key) {
+        SubclassGenerator<Object> generator = new SubclassGenerator<Object>(key.superClass, (Class<? extends Template<Object>>) key.templateClass);
+        if (FAILED.contains(key)) {
+            generator.setClassName(generator.subName + "_RETRY_" + RETRIES.incrementAndGet());
+        }
+        return generator.generateSubclass();
+    }
+
+    /**
+     * Failed generations are dropped from the cache, so the next request for the pair tries again rather than
+     * rethrowing the same failure forever
+     */
+    private static Class<?> await(Key key, FutureTask<Class<?>> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for class generation", ex);
+        } catch (ExecutionException ex) {
+            FAILED.add(key);
+            CLASSES.remove(key, task);
+
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            } else if (ex.getCause() instanceof Error) {
+                throw (Error) ex.getCause();
+            } else {
+                throw new RuntimeException(ex.getCause());
+            }
+        }
+    }
+
+    private static class Key {
+
+        final Class<?> superClass;
+        final Class<? extends Template<?>> templateClass;
+
+        Key(Class<?> superClass, Class<? extends Template<?>> templateClass) {
+            this.superClass = superClass;
+            this.templateClass = templateClass;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (this == object) return true;
+            if (object == null || getClass() != object.getClass()) return false;
+
+            Key key = (Key) object;
+
+            if (!superClass.equals(key.superClass)) return false;
+            if (!templateClass.equals(key.templateClass)) return false;
+
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = superClass.hashCode();
+            result = 31 * result + templateClass.hashCode();
+            return result;
+        }
+    }
+}
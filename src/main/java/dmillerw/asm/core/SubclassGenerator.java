@@ -2,15 +2,20 @@ package dmillerw.asm.core;
 
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
-import dmillerw.asm.annotation.*;
+import dmillerw.asm.annotation.MAsync;
+import dmillerw.asm.annotation.MAtomic;
+import dmillerw.asm.annotation.MCache;
+import dmillerw.asm.annotation.MCopy;
+import dmillerw.asm.annotation.MGuarded;
+import dmillerw.asm.annotation.MLazy;
+import dmillerw.asm.annotation.MSwappable;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.*;
 
 import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.*;
 
@@ -18,14 +23,18 @@ import static org.objectweb.asm.Opcodes.*;
 
 public class SubclassGenerator<T> {
 
+    /**
+     * Generates the subclass for the pair, or returns the one generated before
+     *
+     * @see SubclassCache
+     */
     public static <T> Class<T> generateSubclass(Class<?> superClass, Class<? extends Template<T>> templateClass) {
-        SubclassGenerator<T> subclassGenerator = new SubclassGenerator<T>(superClass, templateClass);
-        return subclassGenerator.generateSubclass();
+        return SubclassCache.get(superClass, templateClass);
     }
 
-    private static final ASMClassLoader LOADER = new ASMClassLoader();
+    static final ASMClassLoader LOADER = new ASMClassLoader();
 
-    private static class ASMClassLoader extends ClassLoader {
+    static class ASMClassLoader extends ClassLoader {
 
         private ASMClassLoader() {
             super(ASMClassLoader.class.getClassLoader());
@@ -38,18 +47,30 @@ public class SubclassGenerator<T> {
 
     private static final boolean DEBUG = true;
 
-    private static void debug(String msg) {
+    static void debug(String msg) {
         if (DEBUG)
             System.out.println("DEBUG: " + msg);
     }
 
+    static void debug(String msg, Throwable throwable) {
+        if (DEBUG) {
+            System.out.println("DEBUG: " + msg);
+            throwable.printStackTrace(System.out);
+        }
+    }
+
     // Class instances
     final Class<?> superClass;
-    final Class<? extends Template<?>> templateClass;
+
+    // Loader the template's classes resolve through. The template itself is never loaded by the generator
+    final ClassLoader templateLoader;
 
     // Template class node. Used for copying methods
     final ClassNode templateNode;
 
+    // Annotated members of the template
+    final TemplateIndex templateIndex;
+
     // Internal class names
     final String superType;
     String subName;
@@ -73,20 +94,183 @@ public class SubclassGenerator<T> {
     // All methods that will be implemented in the sub-class from the template
     final Set<MethodMapping> implementMethods = Sets.newHashSet();
 
+    // All overridden or implemented methods that should be profiled
+    final Set<MethodMapping> profileMethods = Sets.newHashSet();
+
     // Mappings of all fields found in the template
     final Set<FieldMapping> implementFields = Sets.newHashSet();
 
     // All collected field nodes. Used for copying mainly
     final Map<FieldMapping, FieldNode> fieldNodes = Maps.newHashMap();
 
+    // How the template fields are laid out in the generated class
+    FieldLayout fieldLayout = FieldLayout.INSTANCE;
+
+    // Template fields that are stored in slab columns rather than in the instance
+    final List<FieldMapping> columnFields = new ArrayList<FieldMapping>();
+
+    // Layout of the template fields, if they're packed
+    FieldPacking fieldPacking;
+
+    // Template fields marked MAtomic, if there are any
+    AtomicFields atomicFields;
+
+    // Whether a FieldAccessor should be generated alongside the class
+    boolean generateAccessor = false;
+
+    // Whether the generated class should implement BufferSerializable
+    boolean generateSerializer = false;
+
+    // Collects JIT-friendliness findings for every class generated, if set
+    JitReport jitReport;
+
+    // Whether the generated class and its methods should be final, with private helpers bound statically
+    boolean devirtualize = false;
+
+    // Run over every copied method body, in order
+    final List<InsnOptimizer> optimizers = new ArrayList<InsnOptimizer>();
+
+    // Code size of the optimized methods, before and after the optimizers ran
+    int sizeBefore;
+    int sizeAfter;
+
+    // Static MethodProfile fields of the generated class, mapped to the method they profile
+    final Map<String, String> profileFields = Maps.newLinkedHashMap();
+
+    // Whether overrides should record the classes of their arguments
+    boolean typeProfiling = false;
+
+    // Static TypeProfile fields of the generated class, mapped to the method they profile
+    final Map<String, String> typeProfileFields = Maps.newLinkedHashMap();
+
+    // Overrides to specialize, mapped to the argument types to specialize for. Null entries stay as declared
+    final Map<MethodMapping, Type[]> specializations = Maps.newHashMap();
+
+    // Overrides whose results are cached, mapped to how
+    final Map<MethodMapping, CacheSpec> cacheMethods = Maps.newLinkedHashMap();
+
+    // Overrides that run on an executor, mapped to the name of the executor
+    final Map<MethodMapping, String> asyncMethods = Maps.newLinkedHashMap();
+
+    // Task classes of the async methods, defined alongside the generated class
+    final List<AsyncTaskGenerator> asyncTasks = new ArrayList<AsyncTaskGenerator>();
+
+    // Overrides that take a lock around their body, mapped to which
+    final Map<MethodMapping, GuardSpec> guardMethods = Maps.newLinkedHashMap();
+
+    // Overrides whose body can be switched at runtime, mapped to the template methods they can switch to
+    final Map<MethodMapping, List<MethodNode>> swapMethods = Maps.newLinkedHashMap();
+
+    // Template fields created on first read, mapped to their initializer
+    final Map<FieldMapping, LazySpec> lazyFields = Maps.newLinkedHashMap();
+
+    /**
+     * The MLazy annotation of a field, as read from the class file
+     */
+    static class LazySpec {
+
+        final MethodNode initializer;
+        final boolean shared;
+
+        LazySpec(MethodNode initializer, boolean shared) {
+            this.initializer = initializer;
+            this.shared = shared;
+        }
+    }
+
+    /**
+     * The MGuarded annotation of an override, as read from the class file
+     */
+    static class GuardSpec {
+
+        final MGuarded.Mode mode;
+        final int key;
+        final int stripes;
+        // The static stripes field, for STRIPED
+        final String field;
+
+        GuardSpec(String field, AnnotationNode annotationNode) {
+            Object mode = ASMUtils.getValue(annotationNode, "value");
+            Object key = ASMUtils.getValue(annotationNode, "key");
+            Object stripes = ASMUtils.getValue(annotationNode, "stripes");
+
+            this.mode = mode == null ? MGuarded.Mode.WRITE : MGuarded.Mode.valueOf(((String[]) mode)[1]);
+            this.key = key == null ? 0 : (Integer) key;
+            int count = stripes == null ? 16 : Math.max(1, (Integer) stripes);
+            this.stripes = Integer.bitCount(count) == 1 ? count : Integer.highestOneBit(count) << 1;
+            this.field = field;
+        }
+    }
+
+    /**
+     * The MCache annotation of an override, as read from the class file
+     */
+    static class CacheSpec {
+
+        final String field;
+        final boolean classScope;
+        final int maxSize;
+        final long expireAfter;
+        final String invalidate;
+        // Instance caches of methods without arguments hold their one result in fields of the instance
+        final boolean single;
+        final String returnDesc;
+
+        CacheSpec(String field, AnnotationNode annotationNode, String desc) {
+            Object scope = ASMUtils.getValue(annotationNode, "scope");
+            Object maxSize = ASMUtils.getValue(annotationNode, "maxSize");
+            Object expireAfter = ASMUtils.getValue(annotationNode, "expireAfter");
+            Object invalidate = ASMUtils.getValue(annotationNode, "invalidate");
+
+            this.field = field;
+            // Enum values are stored as their descriptor and name
+            this.classScope = scope != null && ((String[]) scope)[1].equals(MCache.Scope.CLASS.name());
+            this.maxSize = maxSize == null ? 256 : (Integer) maxSize;
+            this.expireAfter = expireAfter == null ? 0 : (Long) expireAfter;
+            this.invalidate = invalidate == null ? "" : (String) invalidate;
+            this.single = !classScope && Type.getArgumentTypes(desc).length == 0;
+            this.returnDesc = Type.getReturnType(desc).getDescriptor();
+        }
+
+        /**
+         * The volatile flag that's set once the single result is stored
+         */
+        String cachedField() {
+            return field + "_cached";
+        }
+
+        /**
+         * When the single result was stored, if it expires
+         */
+        String storedField() {
+            return field + "_stored";
+        }
+    }
+
     public SubclassGenerator(Class<?> superClass, Class<? extends Template<T>> templateClass) {
+        this(superClass, ASMUtils.getClassNode(templateClass), templateClass.getClassLoader());
+        setClassName(superClass.getName() + "_GENERATED_" + templateClass.hashCode());
+    }
+
+    /**
+     * Generates from the template's bytecode alone, without loading the template class. Useful for build-time
+     * tools, agents and caches that only have the bytes
+     *
+     * @param templateLoader Loader the classes the template refers to are resolved through
+     */
+    public SubclassGenerator(Class<?> superClass, byte[] templateData, ClassLoader templateLoader) {
+        this(superClass, ASMUtils.getClassNode(templateData), templateLoader);
+    }
+
+    private SubclassGenerator(Class<?> superClass, ClassNode templateNode, ClassLoader templateLoader) {
         this.superClass = superClass;
-        this.templateClass = templateClass;
-        this.templateNode = ASMUtils.getClassNode(templateClass);
+        this.templateLoader = templateLoader;
+        this.templateNode = templateNode;
+        this.templateIndex = TemplateIndex.get(templateNode, templateLoader);
         this.superType = Type.getInternalName(superClass);
-        this.subName = superClass.getName() + "_GENERATED_" + templateClass.hashCode();
+        this.subName = superClass.getName() + "_GENERATED_" + System.identityHashCode(templateNode);
         this.subType = subName.replace(".", "/");
-        this.templateType = Type.getInternalName(templateClass);
+        this.templateType = templateNode.name;
 
         gatherSuperclassConstructors();
         gatherSuperclassMethods();
@@ -100,6 +284,116 @@ public class SubclassGenerator<T> {
         return this;
     }
 
+    public SubclassGenerator<T> setFieldLayout(FieldLayout fieldLayout) {
+        this.fieldLayout = fieldLayout;
+        return this;
+    }
+
+    /**
+     * Also generate a {@link FieldAccessor} for the template fields, retrievable with {@link FieldAccessor#get(Class)}
+     */
+    public SubclassGenerator<T> setGenerateAccessor(boolean generateAccessor) {
+        this.generateAccessor = generateAccessor;
+        return this;
+    }
+
+    /**
+     * Have the generated class implement {@link BufferSerializable}, reading and writing its template fields
+     * straight to and from a ByteBuffer. Template fields it can't serialize have to be marked transient
+     */
+    public SubclassGenerator<T> setGenerateSerializer(boolean generateSerializer) {
+        this.generateSerializer = generateSerializer;
+        return this;
+    }
+
+    /**
+     * Run every generated class through the report before it's defined
+     */
+    public SubclassGenerator<T> setJitReport(JitReport jitReport) {
+        this.jitReport = jitReport;
+        return this;
+    }
+
+    /**
+     * Makes the generated class final, along with all of its override, default_ and implemented methods, so
+     * every call to them can be bound without a type check. Private template methods are copied over as private
+     * methods and called with INVOKESPECIAL or INVOKESTATIC
+     * <p/>
+     * The generated class can't be used as the super class of another generated class in this mode
+     */
+    public SubclassGenerator<T> setDevirtualize(boolean devirtualize) {
+        this.devirtualize = devirtualize;
+        return this;
+    }
+
+    /**
+     * Makes every override record the concrete classes of its reference arguments into a {@link TypeProfile}, for
+     * a later {@link #specialize(Class, double)}
+     */
+    public SubclassGenerator<T> setTypeProfiling(boolean typeProfiling) {
+        this.typeProfiling = typeProfiling;
+        return this;
+    }
+
+    /**
+     * Specializes every override of the pair for the argument classes the type profiles of an earlier generated
+     * class found dominant. A specialized override checks its arguments against those classes, and runs a copy of
+     * the body written for them if they match, or the regular body if not
+     *
+     * @param profiledClass A class generated from the same pair with type profiling on
+     * @param ratio The share of an argument's samples a class needs to be specialized for
+     */
+    public SubclassGenerator<T> specialize(Class<?> profiledClass, double ratio) {
+        for (Map.Entry<String, TypeProfile> entry : TypeProfile.get(profiledClass).entrySet()) {
+            String name = entry.getKey().substring(0, entry.getKey().indexOf('('));
+            String desc = entry.getKey().substring(name.length());
+
+            Type[] argumentTypes = Type.getArgumentTypes(desc);
+            Type[] types = new Type[argumentTypes.length];
+            boolean specialized = false;
+
+            for (int i = 0; i < argumentTypes.length; i++) {
+                Class<?> dominant = entry.getValue().getDominantType(i, ratio);
+                if (dominant != null && !dominant.getName().equals(argumentTypes[i].getClassName()) && isVisible(dominant)) {
+                    types[i] = Type.getType(dominant);
+                    specialized = true;
+                }
+            }
+
+            if (specialized) {
+                debug("Specializing " + entry.getKey() + " for " + Arrays.toString(types));
+                specializations.put(new MethodMapping(name, desc), types);
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     * @return Whether the generated class can refer to the class
+     */
+    static boolean isVisible(Class<?> clazz) {
+        if (!Modifier.isPublic(clazz.getModifiers()))
+            return false;
+
+        try {
+            return Class.forName(clazz.getName(), false, LOADER) == clazz;
+        } catch (ClassNotFoundException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Adds a pass over the instructions of each override, implemented method and copied private method, once
+     * they're copied and redirected. Code size before and after is logged per method and for the whole class
+     *
+     * @see PeepholeOptimizer
+     */
+    public SubclassGenerator<T> addOptimizer(InsnOptimizer optimizer) {
+        this.optimizers.add(optimizer);
+        return this;
+    }
+
     /**
      * Gather all constructors directly declared in the super class
      */
@@ -128,23 +422,21 @@ public class SubclassGenerator<T> {
      * Gather all annotated fields directly declared in the template class
      */
     private void gatherTemplateFields() {
-        for (Field field : templateClass.getDeclaredFields()) {
-            if (Modifier.isAbstract(field.getModifiers()))
-                continue;
-
-            MField mField = field.getAnnotation(MField.class);
-
-            if (mField != null) {
-                FieldMapping fieldMapping = new FieldMapping(field);
+        for (TemplateIndex.FieldEntry fieldEntry : templateIndex.fields) {
+            FieldMapping fieldMapping = new FieldMapping(fieldEntry.name, fieldEntry.desc);
+            try {
+                fieldMapping.type = ASMUtils.getClass(Type.getType(fieldEntry.desc), templateLoader);
+            } catch (ClassNotFoundException ex) {
+                throw new RuntimeException("Failed to resolve the type of template field " + fieldEntry.name, ex);
+            }
 
-                debug("Found annotated field in template: " + fieldMapping.toString());
+            debug("Found annotated field in template: " + fieldMapping.toString());
 
-                implementFields.add(fieldMapping);
+            implementFields.add(fieldMapping);
 
-                for (FieldNode fieldNode : templateNode.fields) {
-                    if (fieldNode.name.equals(fieldMapping.name) && fieldNode.desc.equals(fieldMapping.signature)) {
-                        fieldNodes.put(fieldMapping, fieldNode);
-                    }
+            for (FieldNode fieldNode : templateNode.fields) {
+                if (fieldNode.name.equals(fieldMapping.name) && fieldNode.desc.equals(fieldMapping.signature)) {
+                    fieldNodes.put(fieldMapping, fieldNode);
                 }
             }
         }
@@ -154,21 +446,10 @@ public class SubclassGenerator<T> {
      * Gather all annotated methods directly declared in the template class, and sanity checking
      */
     private void gatherTemplateMethods() {
-        for (Method method : templateClass.getDeclaredMethods()) {
-            MConstructor mConstructor = method.getAnnotation(MConstructor.class);
-            MOverride mOverride = method.getAnnotation(MOverride.class);
-            MImplement mImplement = method.getAnnotation(MImplement.class);
-            MCastParam mCastParam = method.getAnnotation(MCastParam.class);
-            MCastParamList mCastParamList = method.getAnnotation(MCastParamList.class);
-
-            if (mConstructor != null) {
-                MethodMapping methodMapping = new MethodMapping(method);
-
-                methodMapping.signature = methodMapping.signature.substring(0, methodMapping.signature.length() - 1);
-
-                if (mCastParam != null) {
-                    methodMapping.signature = ASMUtils.castSignature(methodMapping.signature, mCastParam);
-                }
+        for (TemplateIndex.MethodEntry methodEntry : templateIndex.methods) {
+            if (methodEntry.kind == TemplateIndex.CONSTRUCTOR) {
+                // Template constructors are mapped without their return type
+                MethodMapping methodMapping = new MethodMapping(methodEntry.name, methodEntry.signature.substring(0, methodEntry.signature.length() - 1));
 
                 for (MethodNode methodNode : templateNode.methods) {
                     if (methodNode.name.equals(methodMapping.name) && methodNode.desc.equals(methodMapping.signature + "V")) {
@@ -179,25 +460,14 @@ public class SubclassGenerator<T> {
                 debug("Found template constructor: " + methodMapping.toString());
 
                 templateConstructors.add(methodMapping);
-            } else if (mOverride != null) {
-                MethodMapping methodMapping = new MethodMapping(method);
-                String original = methodMapping.signature;
+            } else if (methodEntry.kind == TemplateIndex.OVERRIDE) {
+                MethodMapping methodMapping = new MethodMapping(methodEntry.name, methodEntry.signature);
+                String original = methodEntry.desc;
 
                 debug("Overridding method: " + methodMapping);
 
-                if (mCastParam != null) {
-                    String cast = ASMUtils.castSignature(original, mCastParam);
-                    debug("Found MCastParam annotation. Changing " + original + " to " + cast);
-                    methodMapping.signature = cast;
-                }
-
-                if (mCastParamList != null) {
-                    String cast = original;
-                    for (MCastParam castParam : mCastParamList.castParams()) {
-                        cast = ASMUtils.castSignature(cast, castParam);
-                    }
-                    debug("Found MCastParamList annotation. Changing " + original + " to " + cast);
-                    methodMapping.signature = cast;
+                if (!original.equals(methodMapping.signature)) {
+                    debug("Found MCastParam annotation. Changing " + original + " to " + methodMapping.signature);
                 }
 
                 boolean foundInSuperClass = false;
@@ -213,11 +483,19 @@ public class SubclassGenerator<T> {
                 if (foundInSuperClass) {
                     overrideMethods.add(methodMapping);
 
+                    if (methodEntry.is(TemplateIndex.FLAG_PROFILE)) {
+                        profileMethods.add(methodMapping);
+                    }
+
                     for (MethodNode methodNode : templateNode.methods) {
                         // We use original here just in-case the signature was modified, as the template will
                         // still be using the old signature
                         if (methodNode.name.equals(methodMapping.name) && methodNode.desc.equals(original)) {
                             methodNodes.put(methodMapping, methodNode);
+                            gatherCache(methodMapping, methodNode);
+                            gatherAsync(methodMapping, methodNode);
+                            gatherGuard(methodMapping, methodNode);
+                            gatherSwap(methodMapping, methodNode);
                             break;
                         }
                     }
@@ -230,29 +508,26 @@ public class SubclassGenerator<T> {
                         }
                     }
                 } else {
-                    debug("Failed to override " + method);
-                }
-            } else if (mImplement != null) {
-                MethodMapping methodMapping = new MethodMapping(method);
-                String original = methodMapping.signature;
-
-                if (mCastParam != null) {
-                    String cast = ASMUtils.castSignature(original, mCastParam);
-                    debug("Found MCastParam annotation. Changing " + original + " to " + cast);
-                    methodMapping.signature = cast;
+                    debug("Failed to override " + methodEntry.name + original);
                 }
+            } else if (methodEntry.kind == TemplateIndex.IMPLEMENT) {
+                MethodMapping methodMapping = new MethodMapping(methodEntry.name, methodEntry.signature);
+                String original = methodEntry.desc;
 
-                if (mCastParamList != null) {
-                    String cast = original;
-                    for (MCastParam castParam : mCastParamList.castParams()) {
-                        cast = ASMUtils.castSignature(cast, castParam);
-                    }
-                    debug("Found MCastParamList annotation. Changing " + original + " to " + cast);
-                    methodMapping.signature = cast;
+                if (!original.equals(methodMapping.signature)) {
+                    debug("Found MCastParam annotation. Changing " + original + " to " + methodMapping.signature);
                 }
 
                 implementMethods.add(methodMapping);
 
+                if (methodEntry.is(TemplateIndex.FLAG_PROFILE)) {
+                    if (methodEntry.is(TemplateIndex.FLAG_STATIC)) {
+                        debug("Can't profile static method " + methodEntry.name + original);
+                    } else {
+                        profileMethods.add(methodMapping);
+                    }
+                }
+
                 for (MethodNode methodNode : templateNode.methods) {
                     // We use original here just in-case the signature was modified, as the template will
                     // still be using the old signature
@@ -264,13 +539,130 @@ public class SubclassGenerator<T> {
         }
     }
 
+    private void gatherCache(MethodMapping methodMapping, MethodNode methodNode) {
+        AnnotationNode annotationNode = ASMUtils.getAnnotation(methodNode.visibleAnnotations, MCache.class);
+        if (annotationNode == null)
+            return;
+
+        if (Type.getReturnType(methodMapping.signature).getSort() == Type.VOID) {
+            debug("Can't cache void method " + methodMapping + ", ignoring MCache");
+            return;
+        }
+
+        CacheSpec cacheSpec = new CacheSpec(MethodCache.CACHE_PREFIX + cacheMethods.size(), annotationNode, methodMapping.signature);
+        if (cacheSpec.maxSize <= 0) {
+            debug("Can't cache " + methodMapping + " with size " + cacheSpec.maxSize + ", ignoring MCache");
+            return;
+        }
+
+        debug("Caching results of " + methodMapping + (cacheSpec.classScope ? " per class" : " per instance"));
+        cacheMethods.put(methodMapping, cacheSpec);
+    }
+
+    private void gatherAsync(MethodMapping methodMapping, MethodNode methodNode) {
+        AnnotationNode annotationNode = ASMUtils.getAnnotation(methodNode.visibleAnnotations, MAsync.class);
+        if (annotationNode == null)
+            return;
+
+        String executor = (String) ASMUtils.getValue(annotationNode, "executor");
+        if (Type.getReturnType(methodMapping.signature).getSort() == Type.VOID) {
+            debug("Running " + methodMapping + " asynchronously");
+        } else {
+            debug("Adding async variant of " + methodMapping);
+        }
+        asyncMethods.put(methodMapping, executor == null ? "" : executor);
+    }
+
+    private void gatherGuard(MethodMapping methodMapping, MethodNode methodNode) {
+        AnnotationNode annotationNode = ASMUtils.getAnnotation(methodNode.visibleAnnotations, MGuarded.class);
+        if (annotationNode == null)
+            return;
+
+        GuardSpec guardSpec = new GuardSpec(GuardLock.STRIPES_PREFIX + guardMethods.size(), annotationNode);
+        if (guardSpec.mode == MGuarded.Mode.STRIPED && (guardSpec.key < 0 || guardSpec.key >= Type.getArgumentTypes(methodMapping.signature).length)) {
+            debug("Can't stripe " + methodMapping + " by argument " + guardSpec.key + ", ignoring MGuarded");
+            return;
+        }
+
+        debug("Guarding " + methodMapping + " with a " + guardSpec.mode + " lock");
+        guardMethods.put(methodMapping, guardSpec);
+    }
+
+    private void gatherSwap(MethodMapping methodMapping, MethodNode methodNode) {
+        AnnotationNode annotationNode = ASMUtils.getAnnotation(methodNode.visibleAnnotations, MSwappable.class);
+        if (annotationNode == null)
+            return;
+
+        if (!SwapSiteGenerator.SUPPORTED) {
+            debug("Can't swap " + methodMapping + " without invokedynamic, ignoring MSwappable");
+            return;
+        }
+
+        List<MethodNode> variants = new ArrayList<MethodNode>();
+        List<String> names = ASMUtils.getStrings(annotationNode, "value");
+        if (names != null) {
+            for (String name : names) {
+                MethodNode variant = null;
+                for (MethodNode candidate : templateNode.methods) {
+                    if (candidate.name.equals(name) && candidate.desc.equals(methodNode.desc) && (candidate.access & ACC_STATIC) == 0) {
+                        variant = candidate;
+                    }
+                }
+
+                if (variant == null) {
+                    debug("Can't find variant " + name + methodNode.desc + " of " + methodMapping + ", ignoring it");
+                } else {
+                    variants.add(variant);
+                }
+            }
+        }
+
+        debug("Making " + methodMapping + " swappable with " + variants.size() + " variants");
+        swapMethods.put(methodMapping, variants);
+    }
+
+    /**
+     * @return Whether instances need a lock of their own
+     */
+    private boolean hasInstanceGuard() {
+        for (GuardSpec guardSpec : guardMethods.values()) {
+            if (guardSpec.mode != MGuarded.Mode.STRIPED) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public Class<T> generateSubclass() {
-        // All interfaces that the template class implements
-        Class<?>[] interfaces = templateClass.getInterfaces();
-        // The fully qualified type strings for those interfaces
-        String[] interfaceStrs = new String[interfaces.length];
-        for (int i = 0; i < interfaces.length; i++) {
-            interfaceStrs[i] = interfaces[i].getName().replace(".", "/");
+        gatherColumnFields();
+        gatherLazyFields();
+        gatherAtomicFields();
+        profileFields.clear();
+        typeProfileFields.clear();
+        asyncTasks.clear();
+
+        // All interfaces that the template class implements, as internal names
+        List<String> interfaceStrs = new ArrayList<String>(templateNode.interfaces);
+
+        if (!columnFields.isEmpty()) {
+            interfaceStrs.add(Type.getInternalName(Slotted.class));
+        }
+
+        if (generateSerializer) {
+            interfaceStrs.add(Type.getInternalName(BufferSerializable.class));
+        }
+
+        CopyGenerator copyGenerator = null;
+        AnnotationNode copyAnnotation = ASMUtils.getAnnotation(templateNode.visibleAnnotations, MCopy.class);
+        if (copyAnnotation != null) {
+            copyGenerator = new CopyGenerator(this, copyAnnotation);
+            String conflict = copyGenerator.getConflict();
+            if (conflict != null) {
+                debug("Can't copy " + superClass.getName() + " as " + conflict + ", ignoring MCopy");
+                copyGenerator = null;
+            } else {
+                interfaceStrs.add(Type.getInternalName(Copyable.class));
+            }
         }
 
         ClassWriter classWriter = new ClassWriter(0);
@@ -278,174 +670,1348 @@ public class SubclassGenerator<T> {
         // Write class header
         classWriter.visit(
                 V1_6,
-                ACC_PUBLIC | ACC_SUPER,
+                ACC_PUBLIC | ACC_SUPER | finalFlag(),
                 subType,
                 null,
                 superType,
-                interfaceStrs
+                interfaceStrs.toArray(new String[interfaceStrs.size()])
         );
 
         classWriter.visitSource(".dynamic", null);
 
         addFields(classWriter);
+        if (atomicFields != null) {
+            atomicFields.addStaticInit(classWriter);
+        }
         addConstructors(classWriter);
         overrideMethods(classWriter);
         implementMethods(classWriter);
 
-        classWriter.visitEnd();
+        if (devirtualize) {
+            copyPrivateMethods(classWriter);
+        }
 
-        Class<?> clazz = LOADER.define(subName, classWriter.toByteArray());
-        return (Class<T>) clazz;
-    }
+        if (!cacheMethods.isEmpty()) {
+            addCacheInvalidators(classWriter);
+        }
 
-    private void addFields(ClassWriter classWriter) {
-        for (FieldNode fieldNode : fieldNodes.values()) {
-            classWriter.visitField(fieldNode.access, fieldNode.name, fieldNode.desc, null, null);
+        for (Map.Entry<FieldMapping, LazySpec> entry : lazyFields.entrySet()) {
+            addLazyGetter(classWriter, entry.getKey(), entry.getValue());
         }
-    }
 
-    private void addConstructors(ClassWriter classWriter) {
-        for (MethodMapping methodMapping : superConstructors) {
-            MethodVisitor methodVisitor = classWriter.visitMethod(ACC_PUBLIC, "<init>", methodMapping.signature + "V", null, null);
-            methodVisitor.visitCode();
-            methodVisitor.visitVarInsn(ALOAD, 0);
-            for (int i = 0; i < methodMapping.params.length; i++) {
-                methodVisitor.visitVarInsn(ASMUtils.getLoadCode(methodMapping.params[i]), i + 1);
-            }
-            methodVisitor.visitMethodInsn(INVOKESPECIAL, superType, "<init>", methodMapping.signature + "V", false);
+        SerializerGenerator serializerGenerator = null;
+        if (generateSerializer) {
+            serializerGenerator = new SerializerGenerator(this);
+            serializerGenerator.addMethods(classWriter);
+        }
 
-            int maxStack = methodMapping.params.length + 1;
-            int maxLocals = methodMapping.params.length + 2;
+        if (copyGenerator != null) {
+            copyGenerator.addMethods(classWriter);
+        }
 
-            // If the template has the same constructor
-            // We loop because the constructors found in template are proper methods, and have names
-            for (MethodMapping methodMapping1 : templateConstructors) {
-                if (methodMapping1.signature.equals(methodMapping.signature)) {
-                    debug("Found matching super constructor in template: " + methodMapping1);
-                    MethodNode methodNode = methodNodes.get(methodMapping1);
+        classWriter.visitEnd();
+
+        if (!optimizers.isEmpty()) {
+            debug("Optimized " + subName + ": " + sizeBefore + " -> " + sizeAfter + " bytes");
+        }
 
-                    InsnList insnList = interpretAndCopyNodes(methodNode);
-                    insnList.accept(methodVisitor);
+        byte[] data = classWriter.toByteArray();
 
-                    maxStack += methodNode.maxStack;
-                    maxLocals += methodNode.maxLocals;
+        if (jitReport != null) {
+            jitReport.analyze(data);
+        }
 
-                    break;
-                }
+        Class<?> clazz = LOADER.define(subName, data);
+
+        for (AsyncTaskGenerator asyncTask : asyncTasks) {
+            byte[] taskData = asyncTask.generate();
+            if (jitReport != null) {
+                jitReport.analyze(taskData);
             }
+            LOADER.define(asyncTask.taskName, taskData);
+        }
 
-            methodVisitor.visitInsn(RETURN);
-            methodVisitor.visitMaxs(maxStack, maxLocals);
-            methodVisitor.visitEnd();
+        if (!swapMethods.isEmpty()) {
+            addSwapSites(clazz);
         }
-    }
 
-    private void overrideMethods(ClassWriter classWriter) {
-        for (MethodMapping methodMapping : overrideMethods) {
-            MethodNode methodNode = methodNodes.get(methodMapping);
-            MethodMapping defMethodMapping = new MethodMapping("default_" + methodMapping.name, methodMapping.signature);
-            MethodNode defNode = methodNodes.get(defMethodMapping);
+        if (!columnFields.isEmpty()) {
+            SlabAllocator.install(clazz, columnFields);
+        }
 
-            MethodVisitor methodVisitor;
-            InsnList insnList;
+        if (fieldPacking != null) {
+            fieldPacking.install(clazz);
+        }
 
-            // Generate a new method that contains the super-class method instructions
-            methodVisitor = classWriter.visitMethod(ACC_PUBLIC, "default_" + defNode.name, defNode.desc, null, null);
-            methodVisitor.visitCode();
+        if (serializerGenerator != null) {
+            serializerGenerator.install(clazz);
+        }
 
-            insnList = new InsnList();
+        if (generateAccessor) {
+            addAccessor(clazz);
+        }
 
-            Iterator<AbstractInsnNode> iterator = defNode.instructions.iterator();
-            while (iterator.hasNext()) {
-                AbstractInsnNode insnNode = iterator.next();
+        if (!profileFields.isEmpty()) {
+            MethodProfile.install(clazz, profileFields);
+        }
 
-                if (insnNode instanceof LabelNode || insnNode instanceof LineNumberNode)
-                    continue;
+        if (!typeProfileFields.isEmpty()) {
+            TypeProfile.install(clazz, typeProfileFields);
+        }
 
-                insnList.add(insnNode);
+        Map<String, MethodCache> classCaches = Maps.newLinkedHashMap();
+        for (CacheSpec cacheSpec : cacheMethods.values()) {
+            if (cacheSpec.classScope) {
+                classCaches.put(cacheSpec.field, new MethodCache(cacheSpec.maxSize, cacheSpec.expireAfter));
             }
+        }
+        if (!classCaches.isEmpty()) {
+            MethodCache.install(clazz, classCaches);
+        }
 
-            insnList.accept(methodVisitor);
-
-            methodVisitor.visitMaxs(defNode.maxStack, defNode.maxLocals);
-            methodVisitor.visitEnd();
-
-            // Then generate the override method
-            methodVisitor = classWriter.visitMethod(ACC_PUBLIC, methodMapping.name, methodMapping.signature, null, null);
-            methodVisitor.visitCode();
+        Map<String, Integer> stripes = Maps.newLinkedHashMap();
+        for (GuardSpec guardSpec : guardMethods.values()) {
+            if (guardSpec.mode == MGuarded.Mode.STRIPED) {
+                stripes.put(guardSpec.field, guardSpec.stripes);
+            }
+        }
+        if (!stripes.isEmpty()) {
+            GuardLock.install(clazz, stripes);
+        }
 
-            insnList = interpretAndCopyNodes(methodNode);
+        return (Class<T>) clazz;
+    }
 
-            insnList.accept(methodVisitor);
+    private void addSwapSites(Class<?> clazz) {
+        Map<String, List<String>> methods = Maps.newLinkedHashMap();
+        for (Map.Entry<MethodMapping, List<MethodNode>> entry : swapMethods.entrySet()) {
+            List<String> variants = new ArrayList<String>();
+            for (MethodNode variant : entry.getValue()) {
+                variants.add(variant.name);
+            }
+            methods.put(entry.getKey().name + entry.getKey().signature, variants);
+        }
 
-            methodVisitor.visitMaxs(methodMapping.params.length + 1 + methodNode.maxStack, methodMapping.params.length + 1 + methodNode.maxLocals);
+        SwapSiteGenerator swapSiteGenerator = new SwapSiteGenerator(subName + "_SWAP", subType, methods);
+        byte[] data = swapSiteGenerator.generate();
 
-            methodVisitor.visitEnd();
+        if (jitReport != null) {
+            jitReport.analyze(data);
         }
+
+        Class<?> siteClass = LOADER.define(swapSiteGenerator.siteName, data);
+        HotSwap.install(clazz, siteClass, methods);
     }
 
-    private void implementMethods(ClassWriter classWriter) {
-        for (MethodMapping methodMapping : implementMethods) {
-            MethodNode methodNode = methodNodes.get(methodMapping);
-            String desc = methodNode.desc;
+    private void addAccessor(Class<?> clazz) {
+        AccessorGenerator accessorGenerator = new AccessorGenerator(this);
+        byte[] data = accessorGenerator.generate();
 
-            MethodVisitor methodVisitor;
-            InsnList insnList;
+        if (jitReport != null) {
+            jitReport.analyze(data);
+        }
 
-            methodVisitor = classWriter.visitMethod(methodNode.access, methodMapping.name, desc, null, null);
-            methodVisitor.visitCode();
+        Class<?> accessorClass = LOADER.define(accessorGenerator.accessorName, data);
 
-            insnList = interpretAndCopyNodes(methodNode);
+        try {
+            FieldAccessor accessor = (FieldAccessor) accessorClass.newInstance();
+            accessor.names = accessorGenerator.getNames();
+            accessor.types = accessorGenerator.getTypes();
+            FieldAccessor.register(clazz, accessor);
+        } catch (Exception ex) {
+            throw new RuntimeException("Failed to create field accessor for " + subName, ex);
+        }
+    }
+
+    /**
+     * Decide which of the template fields get moved into slab columns, based on the field layout
+     */
+    private void gatherColumnFields() {
+        columnFields.clear();
+        fieldPacking = null;
+
+        if (fieldLayout == FieldLayout.PACKED) {
+            FieldPacking fieldPacking = new FieldPacking(subType, fieldNodes);
+            if (!fieldPacking.isEmpty()) {
+                debug("Packed fields: " + fieldPacking.sizeBefore + " -> " + fieldPacking.sizeAfter + " bytes of field data");
+                this.fieldPacking = fieldPacking;
+            }
+        }
+
+        if (fieldLayout != FieldLayout.COLUMNAR)
+            return;
+
+        for (Map.Entry<FieldMapping, FieldNode> entry : fieldNodes.entrySet()) {
+            FieldMapping fieldMapping = entry.getKey();
+            // Atomic fields are updated in place, so they stay in the instance
+            if (fieldMapping.type.isPrimitive() && ASMUtils.getAnnotation(entry.getValue().visibleAnnotations, MAtomic.class) == null) {
+                debug("Moving field into slab column: " + fieldMapping);
+                columnFields.add(fieldMapping);
+            }
+        }
+    }
+
+    /**
+     * Find the template fields marked MLazy, and their initializers. Runs after the layout is decided, as only
+     * fields stored in the instance can be lazy
+     */
+    private void gatherLazyFields() {
+        lazyFields.clear();
+
+        for (Map.Entry<FieldMapping, FieldNode> entry : fieldNodes.entrySet()) {
+            FieldMapping fieldMapping = entry.getKey();
+            FieldNode fieldNode = entry.getValue();
+
+            AnnotationNode annotationNode = ASMUtils.getAnnotation(fieldNode.visibleAnnotations, MLazy.class);
+            if (annotationNode == null)
+                continue;
+
+            if (Type.getType(fieldNode.desc).getSort() < Type.ARRAY || (fieldNode.access & ACC_STATIC) != 0) {
+                debug("Only instance fields holding references can be lazy, ignoring MLazy on " + fieldMapping);
+                continue;
+            }
+            if (columnFields.contains(fieldMapping) || (fieldPacking != null && fieldPacking.isPacked(fieldMapping))) {
+                debug("Field " + fieldMapping + " isn't stored in the instance, ignoring MLazy");
+                continue;
+            }
+
+            String initializerName = (String) ASMUtils.getValue(annotationNode, "value");
+            Object shared = ASMUtils.getValue(annotationNode, "shared");
+
+            MethodNode initializer = null;
+            for (MethodNode methodNode : templateNode.methods) {
+                if (methodNode.name.equals(initializerName) && methodNode.desc.equals("()" + fieldNode.desc)) {
+                    initializer = methodNode;
+                    break;
+                }
+            }
+
+            if (initializer == null) {
+                debug("Template has no initializer " + initializerName + "()" + fieldNode.desc + " for " + fieldMapping + ", ignoring MLazy");
+                continue;
+            }
+
+            debug("Creating field " + fieldMapping + " on first read, with " + initializerName);
+            lazyFields.put(fieldMapping, new LazySpec(initializer, shared != null && (Boolean) shared));
+        }
+    }
+
+    /**
+     * Find the template fields marked MAtomic. Columns and packing already left them in the instance
+     */
+    private void gatherAtomicFields() {
+        atomicFields = new AtomicFields(subType, fieldNodes);
+        if (atomicFields.isEmpty()) {
+            atomicFields = null;
+        }
+    }
+
+    /**
+     * Extra stack space needed by the generated methods on top of what the template method needed
+     * Column accesses juggle the slot, slab and index around the original operands
+     */
+    int stackPadding() {
+        return columnFields.isEmpty() && fieldPacking == null && atomicFields == null ? 0 : 4;
+    }
+
+    private void addFields(ClassWriter classWriter) {
+        for (Map.Entry<FieldMapping, FieldNode> entry : fieldNodes.entrySet()) {
+            FieldNode fieldNode = entry.getValue();
+            if (columnFields.contains(entry.getKey())) {
+                classWriter.visitField(ACC_PUBLIC | ACC_STATIC, SlabAllocator.COLUMN_PREFIX + fieldNode.name, "[[" + fieldNode.desc, null, null);
+            } else if (fieldPacking != null && fieldPacking.isPacked(entry.getKey())) {
+                continue;
+            } else if (atomicFields != null && atomicFields.isCounter(entry.getKey())) {
+                continue;
+            } else {
+                int access = fieldNode.access;
+                if (generateAccessor) {
+                    // The accessor lives in the same package, but can't see private fields
+                    access &= ~ACC_PRIVATE;
+                }
+
+                // Lazy fields are written by their getter. Shared ones are published by the volatile write, so
+                // other threads never see the value half built
+                LazySpec lazySpec = lazyFields.get(entry.getKey());
+                if (lazySpec != null) {
+                    access = (access & ~ACC_FINAL) | (lazySpec.shared ? ACC_VOLATILE : 0);
+                }
+
+                // Field updaters only take volatile fields
+                if (atomicFields != null && atomicFields.isAtomic(entry.getKey())) {
+                    access = (access & ~ACC_FINAL) | ACC_VOLATILE;
+                }
+
+                classWriter.visitField(access, fieldNode.name, fieldNode.desc, null, null);
+            }
+        }
+
+        if (fieldPacking != null) {
+            fieldPacking.addFields(classWriter, fieldNodes);
+        }
+
+        if (atomicFields != null) {
+            atomicFields.addFields(classWriter);
+        }
+
+        for (CacheSpec cacheSpec : cacheMethods.values()) {
+            if (cacheSpec.single) {
+                classWriter.visitField(ACC_PRIVATE | ACC_TRANSIENT, cacheSpec.field, cacheSpec.returnDesc, null, null);
+                classWriter.visitField(ACC_PRIVATE | ACC_TRANSIENT | ACC_VOLATILE, cacheSpec.cachedField(), "Z", null, null);
+                if (cacheSpec.expireAfter > 0) {
+                    classWriter.visitField(ACC_PRIVATE | ACC_TRANSIENT, cacheSpec.storedField(), "J", null, null);
+                }
+                continue;
+            }
+
+            classWriter.visitField(cacheSpec.classScope ? ACC_PUBLIC | ACC_STATIC : ACC_PRIVATE | ACC_FINAL, cacheSpec.field, Type.getDescriptor(MethodCache.class), null, null);
+        }
+
+        if (hasInstanceGuard()) {
+            classWriter.visitField(ACC_PRIVATE | ACC_FINAL, GuardLock.GUARD_FIELD, Type.getDescriptor(GuardLock.class), null, null);
+        }
+        for (GuardSpec guardSpec : guardMethods.values()) {
+            if (guardSpec.mode == MGuarded.Mode.STRIPED) {
+                classWriter.visitField(ACC_PUBLIC | ACC_STATIC, guardSpec.field, "[" + Type.getDescriptor(GuardLock.class), null, null);
+            }
+        }
+
+        if (!swapMethods.isEmpty()) {
+            classWriter.visitField(ACC_PUBLIC | ACC_STATIC, HotSwap.SITES_FIELD, "Ljava/lang/Object;", null, null);
+        }
+
+        if (!columnFields.isEmpty()) {
+            classWriter.visitField(ACC_PUBLIC | ACC_STATIC, SlabAllocator.ALLOCATOR_FIELD, Type.getDescriptor(SlabAllocator.class), null, null);
+            classWriter.visitField(ACC_PUBLIC | ACC_FINAL, SlabAllocator.SLOT_FIELD, "I", null, null);
+
+            MethodVisitor methodVisitor = classWriter.visitMethod(ACC_PUBLIC, SlabAllocator.SLOT_FIELD, "()I", null, null);
+            methodVisitor.visitCode();
+            methodVisitor.visitVarInsn(ALOAD, 0);
+            methodVisitor.visitFieldInsn(GETFIELD, subType, SlabAllocator.SLOT_FIELD, "I");
+            methodVisitor.visitInsn(IRETURN);
+            methodVisitor.visitMaxs(1, 1);
+            methodVisitor.visitEnd();
+        }
+    }
+
+    private void addConstructors(ClassWriter classWriter) {
+        for (MethodMapping methodMapping : superConstructors) {
+            MethodVisitor methodVisitor = classWriter.visitMethod(ACC_PUBLIC, "<init>", methodMapping.signature + "V", null, null);
+            methodVisitor.visitCode();
+
+            addInstanceInit(methodVisitor);
+
+            methodVisitor.visitVarInsn(ALOAD, 0);
+            for (int i = 0; i < methodMapping.params.length; i++) {
+                methodVisitor.visitVarInsn(ASMUtils.getLoadCode(methodMapping.params[i]), i + 1);
+            }
+            methodVisitor.visitMethodInsn(INVOKESPECIAL, superType, "<init>", methodMapping.signature + "V", false);
+
+            int maxStack = Math.max(methodMapping.params.length + 1, cacheMethods.isEmpty() ? 3 : 6) + stackPadding();
+            int maxLocals = methodMapping.params.length + 2;
+
+            // If the template has the same constructor
+            // We loop because the constructors found in template are proper methods, and have names
+            for (MethodMapping methodMapping1 : templateConstructors) {
+                if (methodMapping1.signature.equals(methodMapping.signature)) {
+                    debug("Found matching super constructor in template: " + methodMapping1);
+                    MethodNode methodNode = methodNodes.get(methodMapping1);
+
+                    List<TryCatchBlockNode> tryCatchBlocks = new ArrayList<TryCatchBlockNode>();
+                    InsnList insnList = interpretAndCopyNodes(methodNode, tryCatchBlocks);
+                    accept(insnList, tryCatchBlocks, methodVisitor);
+
+                    maxStack += methodNode.maxStack;
+                    maxLocals += methodNode.maxLocals;
+
+                    break;
+                }
+            }
+
+            methodVisitor.visitInsn(RETURN);
+            methodVisitor.visitMaxs(maxStack, maxLocals);
+            methodVisitor.visitEnd();
+        }
+    }
+
+    /**
+     * Sets up what every instance needs before template code runs. Written before the super constructor call, as
+     * the super constructor may call overrides: only fields of the generated class are stored, which the verifier
+     * allows on an uninitialized this. Needs a stack of 6 with caches, 3 otherwise
+     */
+    void addInstanceInit(MethodVisitor methodVisitor) {
+        // Claim a slot before any template code gets the chance to touch a column
+        if (!columnFields.isEmpty()) {
+            methodVisitor.visitVarInsn(ALOAD, 0);
+            methodVisitor.visitFieldInsn(GETSTATIC, subType, SlabAllocator.ALLOCATOR_FIELD, Type.getDescriptor(SlabAllocator.class));
+            methodVisitor.visitMethodInsn(INVOKEVIRTUAL, Type.getInternalName(SlabAllocator.class), "allocate", "()I", false);
+            methodVisitor.visitFieldInsn(PUTFIELD, subType, SlabAllocator.SLOT_FIELD, "I");
+        }
+
+        // Instance caches exist before any template code runs, as it may call a cached method
+        for (CacheSpec cacheSpec : cacheMethods.values()) {
+            if (cacheSpec.classScope || cacheSpec.single)
+                continue;
+
+            methodVisitor.visitVarInsn(ALOAD, 0);
+            methodVisitor.visitTypeInsn(NEW, Type.getInternalName(MethodCache.class));
+            methodVisitor.visitInsn(DUP);
+            methodVisitor.visitLdcInsn(cacheSpec.maxSize);
+            methodVisitor.visitLdcInsn(cacheSpec.expireAfter);
+            methodVisitor.visitMethodInsn(INVOKESPECIAL, Type.getInternalName(MethodCache.class), "<init>", "(IJ)V", false);
+            methodVisitor.visitFieldInsn(PUTFIELD, subType, cacheSpec.field, Type.getDescriptor(MethodCache.class));
+        }
+
+        if (atomicFields != null) {
+            atomicFields.addConstructorInit(methodVisitor);
+        }
 
-            insnList.accept(methodVisitor);
+        if (hasInstanceGuard()) {
+            methodVisitor.visitVarInsn(ALOAD, 0);
+            methodVisitor.visitMethodInsn(INVOKESTATIC, Type.getInternalName(GuardLock.class), "create", "()" + Type.getDescriptor(GuardLock.class), false);
+            methodVisitor.visitFieldInsn(PUTFIELD, subType, GuardLock.GUARD_FIELD, Type.getDescriptor(GuardLock.class));
+        }
+    }
+
+    private void overrideMethods(ClassWriter classWriter) {
+        for (MethodMapping methodMapping : overrideMethods) {
+            MethodNode methodNode = methodNodes.get(methodMapping);
+            MethodMapping defMethodMapping = new MethodMapping("default_" + methodMapping.name, methodMapping.signature);
+            MethodNode defNode = methodNodes.get(defMethodMapping);
+
+            MethodVisitor methodVisitor;
+
+            // Profiled methods are written as private bodies, called by a public wrapper that does the timing
+            boolean profiled = profileMethods.contains(methodMapping);
+            if (profiled) {
+                addProfileWrapper(classWriter, ACC_PUBLIC | finalFlag(), "default_" + defNode.name, defNode.desc);
+                addProfileWrapper(classWriter, ACC_PUBLIC | finalFlag(), methodMapping.name, methodMapping.signature);
+            }
+
+            // Generate a new method that contains the super-class method instructions
+            methodVisitor = classWriter.visitMethod(bodyAccess(ACC_PUBLIC | finalFlag(), profiled), bodyName("default_" + defNode.name, profiled), defNode.desc, null, null);
+            methodVisitor.visitCode();
+
+            // Labels are kept for branches and handlers, but the same nodes are written by every generation
+            defNode.instructions.resetLabels();
+            for (TryCatchBlockNode tryCatchBlockNode : defNode.tryCatchBlocks) {
+                tryCatchBlockNode.accept(methodVisitor);
+            }
+
+            Iterator<AbstractInsnNode> iterator = defNode.instructions.iterator();
+            while (iterator.hasNext()) {
+                AbstractInsnNode insnNode = iterator.next();
+
+                if (insnNode instanceof LineNumberNode || insnNode instanceof FrameNode)
+                    continue;
+
+                insnNode.accept(methodVisitor);
+            }
+
+            methodVisitor.visitMaxs(defNode.maxStack, defNode.maxLocals);
+            methodVisitor.visitEnd();
+
+            // Then generate the override method
+            int access = bodyAccess(ACC_PUBLIC | finalFlag(), profiled);
+            String name = bodyName(methodMapping.name, profiled);
+
+            // Cached overrides are written as private cached_ bodies, behind the cache lookup (and the profiling)
+            CacheSpec cacheSpec = cacheMethods.get(methodMapping);
+            if (cacheSpec != null) {
+                addCacheWrapper(classWriter, access, name, methodMapping.signature, cacheSpec, "cached_" + methodMapping.name);
+
+                access = ACC_PRIVATE;
+                name = "cached_" + methodMapping.name;
+            }
+
+            // Async void overrides hand a task to the executor, which calls the body back. Others get an Async
+            // variant that does the same for the whole method
+            String executor = asyncMethods.get(methodMapping);
+            if (executor != null) {
+                if (Type.getReturnType(methodMapping.signature).getSort() == Type.VOID) {
+                    addAsyncCall(classWriter, access, name, methodMapping.signature, executor, "async_" + methodMapping.name);
+
+                    // The task calls the body from outside, so it's package-private
+                    access = ACC_SYNTHETIC | finalFlag();
+                    name = "async_" + methodMapping.name;
+                } else {
+                    addAsyncCall(classWriter, ACC_PUBLIC | finalFlag(), methodMapping.name + "Async", methodMapping.signature, executor, methodMapping.name);
+                }
+            }
+
+            // Guarded overrides take the lock, then call the private guarded_ body. Async bodies take it on the
+            // executor
+            GuardSpec guardSpec = guardMethods.get(methodMapping);
+            if (guardSpec != null) {
+                addGuardWrapper(classWriter, access, name, methodMapping.signature, guardSpec, "guarded_" + methodMapping.name);
+
+                access = ACC_PRIVATE;
+                name = "guarded_" + methodMapping.name;
+            }
+
+            // Swappable overrides call their body through the call site class, which the variants are looked up
+            // from, so they're package-private
+            List<MethodNode> variants = swapMethods.get(methodMapping);
+            if (variants != null) {
+                String siteDesc = "(L" + subType + ";" + methodMapping.signature.substring(1);
+                addDelegate(classWriter, access, name, methodMapping.signature, INVOKESTATIC, subType + "_SWAP", methodMapping.name, siteDesc);
+                for (MethodNode variant : variants) {
+                    writeOverrideBody(classWriter, ACC_SYNTHETIC | finalFlag(), HotSwap.SWAP_PREFIX + methodMapping.name + "_" + variant.name, methodMapping.signature, variant, false);
+                }
+
+                access = ACC_SYNTHETIC | finalFlag();
+                name = HotSwap.SWAP_PREFIX + methodMapping.name;
+            }
+
+            // Specialized overrides are a type check in front of two copies of the body
+            Type[] types = specializations.get(methodMapping);
+            if (types != null) {
+                String specialDesc = getSpecialDesc(methodMapping.signature, types);
+                addSpecializationGuard(classWriter, access, name, methodMapping.name, methodMapping.signature, types, specialDesc);
+                writeOverrideBody(classWriter, ACC_PRIVATE, "special_" + methodMapping.name, specialDesc, methodNode, false);
+
+                access = ACC_PRIVATE;
+                name = "generic_" + methodMapping.name;
+            }
+
+            writeOverrideBody(classWriter, access, name, methodMapping.signature, methodNode, typeProfiling);
+        }
+    }
+
+    private void writeOverrideBody(ClassWriter classWriter, int access, String name, String desc, MethodNode methodNode, boolean recordTypes) {
+        MethodVisitor methodVisitor = classWriter.visitMethod(access, name, desc, null, null);
+        methodVisitor.visitCode();
+
+        int parameters = Type.getArgumentTypes(desc).length;
+        int maxStack = parameters + 1 + methodNode.maxStack + stackPadding();
+        int maxLocals = parameters + 1 + methodNode.maxLocals;
+
+        List<TryCatchBlockNode> tryCatchBlocks = new ArrayList<TryCatchBlockNode>();
+        InsnList insnList = interpretAndCopyNodes(methodNode, tryCatchBlocks);
+        if (recordTypes) {
+            insnList.insert(recordTypes(classWriter, methodNode.name, desc));
+            maxStack += 3;
+        }
+
+        insnList = optimizeNodes(access, name, desc, insnList, tryCatchBlocks, maxStack, maxLocals);
+
+        // Casts on the specialized arguments are gone by now, so calls on them can be narrowed
+        if (name.startsWith("special_")) {
+            insnList = narrowNodes(access, name, desc, insnList, tryCatchBlocks, maxStack, maxLocals);
+        }
+
+        accept(insnList, tryCatchBlocks, methodVisitor);
+
+        methodVisitor.visitMaxs(maxStack, maxLocals);
+
+        methodVisitor.visitEnd();
+    }
 
-            methodVisitor.visitMaxs(methodNode.maxStack, methodNode.maxLocals);
+    /**
+     * @return Instructions passing every reference argument to the method's TypeProfile
+     */
+    private InsnList recordTypes(ClassWriter classWriter, String name, String desc) {
+        String profileField = TypeProfile.TYPE_PROFILE_PREFIX + typeProfileFields.size();
+        String profileDesc = Type.getDescriptor(TypeProfile.class);
+        typeProfileFields.put(profileField, name + desc);
+
+        classWriter.visitField(ACC_PUBLIC | ACC_STATIC, profileField, profileDesc, null, null);
+
+        InsnList insnList = new InsnList();
+        Type[] types = Type.getArgumentTypes(desc);
+        int local = 1;
+        for (int i = 0; i < types.length; i++) {
+            if (types[i].getSort() == Type.OBJECT || types[i].getSort() == Type.ARRAY) {
+                insnList.add(new FieldInsnNode(GETSTATIC, subType, profileField, profileDesc));
+                insnList.add(new IntInsnNode(BIPUSH, i));
+                insnList.add(new VarInsnNode(ALOAD, local));
+                insnList.add(new MethodInsnNode(INVOKEVIRTUAL, Type.getInternalName(TypeProfile.class), "record", "(ILjava/lang/Object;)V", false));
+            }
+            local += types[i].getSize();
+        }
+        return insnList;
+    }
+
+    private static String getSpecialDesc(String desc, Type[] types) {
+        Type[] argumentTypes = Type.getArgumentTypes(desc);
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] != null) {
+                argumentTypes[i] = types[i];
+            }
+        }
+        return Type.getMethodDescriptor(Type.getReturnType(desc), argumentTypes);
+    }
+
+    /**
+     * Writes a method that calls the private special_ body if every specialized argument is an instance of the
+     * class it's specialized for, and the private generic_ body otherwise
+     */
+    private void addSpecializationGuard(ClassWriter classWriter, int access, String name, String baseName, String desc, Type[] types, String specialDesc) {
+        MethodVisitor methodVisitor = classWriter.visitMethod(access, name, desc, null, null);
+        methodVisitor.visitCode();
+
+        Label generic = new Label();
+        Type[] argumentTypes = Type.getArgumentTypes(desc);
+
+        int local = 1;
+        for (int i = 0; i < argumentTypes.length; i++) {
+            if (types[i] != null) {
+                methodVisitor.visitVarInsn(ALOAD, local);
+                methodVisitor.visitTypeInsn(INSTANCEOF, types[i].getInternalName());
+                methodVisitor.visitJumpInsn(IFEQ, generic);
+            }
+            local += argumentTypes[i].getSize();
+        }
+
+        methodVisitor.visitVarInsn(ALOAD, 0);
+        local = 1;
+        for (int i = 0; i < argumentTypes.length; i++) {
+            methodVisitor.visitVarInsn(argumentTypes[i].getOpcode(ILOAD), local);
+            if (types[i] != null) {
+                methodVisitor.visitTypeInsn(CHECKCAST, types[i].getInternalName());
+            }
+            local += argumentTypes[i].getSize();
+        }
+        methodVisitor.visitMethodInsn(INVOKESPECIAL, subType, "special_" + baseName, specialDesc, false);
+        methodVisitor.visitInsn(Type.getReturnType(desc).getOpcode(IRETURN));
+
+        methodVisitor.visitLabel(generic);
+        loadThisAndArguments(methodVisitor, desc);
+        methodVisitor.visitMethodInsn(INVOKESPECIAL, subType, "generic_" + baseName, desc, false);
+        methodVisitor.visitInsn(Type.getReturnType(desc).getOpcode(IRETURN));
+
+        methodVisitor.visitMaxs(Math.max(local, Type.getReturnType(desc).getSize()), local);
+        methodVisitor.visitEnd();
+    }
+
+    private void implementMethods(ClassWriter classWriter) {
+        for (MethodMapping methodMapping : implementMethods) {
+            MethodNode methodNode = methodNodes.get(methodMapping);
+            String desc = methodNode.desc;
+
+            MethodVisitor methodVisitor;
+            InsnList insnList;
+
+            int access = methodNode.access;
+            if ((access & ACC_PRIVATE) == 0) {
+                access |= finalFlag();
+            }
+
+            boolean profiled = profileMethods.contains(methodMapping);
+            if (profiled) {
+                addProfileWrapper(classWriter, access, methodMapping.name, desc);
+            }
+
+            methodVisitor = classWriter.visitMethod(bodyAccess(access, profiled), bodyName(methodMapping.name, profiled), desc, null, null);
+            methodVisitor.visitCode();
+
+            List<TryCatchBlockNode> tryCatchBlocks = new ArrayList<TryCatchBlockNode>();
+            insnList = optimizeNodes(access, methodMapping.name, desc, interpretAndCopyNodes(methodNode, tryCatchBlocks), tryCatchBlocks, methodNode.maxStack + stackPadding(), methodNode.maxLocals);
+
+            accept(insnList, tryCatchBlocks, methodVisitor);
+
+            methodVisitor.visitMaxs(methodNode.maxStack + stackPadding(), methodNode.maxLocals);
             methodVisitor.visitEnd();
         }
     }
 
+    /**
+     * Copies every private, non-annotated method of the template into the generated class as-is, so calls to
+     * template helpers stay bound to a single implementation
+     */
+    private void copyPrivateMethods(ClassWriter classWriter) {
+        for (MethodNode methodNode : templateNode.methods) {
+            if ((methodNode.access & ACC_PRIVATE) == 0 || methodNodes.containsValue(methodNode))
+                continue;
+
+            debug("Copying private template method: " + methodNode.name + methodNode.desc);
+
+            MethodVisitor methodVisitor = classWriter.visitMethod(methodNode.access, methodNode.name, methodNode.desc, null, null);
+            methodVisitor.visitCode();
+
+            List<TryCatchBlockNode> tryCatchBlocks = new ArrayList<TryCatchBlockNode>();
+            InsnList insnList = optimizeNodes(methodNode.access, methodNode.name, methodNode.desc, interpretAndCopyNodes(methodNode, tryCatchBlocks), tryCatchBlocks, methodNode.maxStack + stackPadding(), methodNode.maxLocals);
+            accept(insnList, tryCatchBlocks, methodVisitor);
+
+            methodVisitor.visitMaxs(methodNode.maxStack + stackPadding(), methodNode.maxLocals);
+            methodVisitor.visitEnd();
+        }
+    }
+
+    /**
+     * Writes a method that passes this and all of its arguments straight on to another method, and returns
+     * whatever that returns
+     */
+    private void addDelegate(ClassWriter classWriter, int access, String name, String desc, int opcode, String owner, String targetName, String targetDesc) {
+        MethodVisitor methodVisitor = classWriter.visitMethod(access, name, desc, null, null);
+        methodVisitor.visitCode();
+
+        int local = loadThisAndArguments(methodVisitor, desc);
+
+        methodVisitor.visitMethodInsn(opcode, owner, targetName, targetDesc, false);
+
+        Type returnType = Type.getReturnType(desc);
+        methodVisitor.visitInsn(returnType.getOpcode(IRETURN));
+
+        methodVisitor.visitMaxs(Math.max(local, returnType.getSize()), local);
+        methodVisitor.visitEnd();
+    }
+
+    /**
+     * Pushes this and every argument of the method onto the stack
+     *
+     * @return The first local after the arguments
+     */
+    private static int loadThisAndArguments(MethodVisitor methodVisitor, String desc) {
+        methodVisitor.visitVarInsn(ALOAD, 0);
+
+        int local = 1;
+        for (Type type : Type.getArgumentTypes(desc)) {
+            methodVisitor.visitVarInsn(type.getOpcode(ILOAD), local);
+            local += type.getSize();
+        }
+
+        return local;
+    }
+
+    /**
+     * Writes a method that calls the private profiled_ body of the same name, and records the call and the time it
+     * took in a MethodProfile, whether the body returns or throws
+     */
+    private void addProfileWrapper(ClassWriter classWriter, int access, String name, String desc) {
+        String profileField = MethodProfile.PROFILE_PREFIX + profileFields.size();
+        String profileDesc = Type.getDescriptor(MethodProfile.class);
+        profileFields.put(profileField, name + desc);
+
+        classWriter.visitField(ACC_PUBLIC | ACC_STATIC, profileField, profileDesc, null, null);
+
+        MethodVisitor methodVisitor = classWriter.visitMethod(access, name, desc, null, null);
+        methodVisitor.visitCode();
+
+        Label start = new Label();
+        Label end = new Label();
+        Label handler = new Label();
+        methodVisitor.visitTryCatchBlock(start, end, handler, null);
+
+        int startLocal = 1;
+        for (Type type : Type.getArgumentTypes(desc)) {
+            startLocal += type.getSize();
+        }
+
+        methodVisitor.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+        methodVisitor.visitVarInsn(LSTORE, startLocal);
+
+        methodVisitor.visitLabel(start);
+        loadThisAndArguments(methodVisitor, desc);
+        methodVisitor.visitMethodInsn(INVOKESPECIAL, subType, bodyName(name, true), desc, false);
+        methodVisitor.visitLabel(end);
+
+        // [result] -> [result, profile, start] -> [result]
+        methodVisitor.visitFieldInsn(GETSTATIC, subType, profileField, profileDesc);
+        methodVisitor.visitVarInsn(LLOAD, startLocal);
+        methodVisitor.visitMethodInsn(INVOKEVIRTUAL, Type.getInternalName(MethodProfile.class), "record", "(J)V", false);
+        methodVisitor.visitInsn(Type.getReturnType(desc).getOpcode(IRETURN));
+
+        // [exception] -> [exception, profile, start] -> [exception]
+        methodVisitor.visitLabel(handler);
+        methodVisitor.visitFieldInsn(GETSTATIC, subType, profileField, profileDesc);
+        methodVisitor.visitVarInsn(LLOAD, startLocal);
+        methodVisitor.visitMethodInsn(INVOKEVIRTUAL, Type.getInternalName(MethodProfile.class), "record", "(J)V", false);
+        methodVisitor.visitInsn(ATHROW);
+
+        // The handler holds the exception under the profile and the start, even for void methods
+        methodVisitor.visitMaxs(Math.max(startLocal, Math.max(Type.getReturnType(desc).getSize(), 1) + 3), startLocal + 2);
+        methodVisitor.visitEnd();
+    }
+
+    /**
+     * Writes a method that looks the arguments up in the method's MethodCache, and only calls the body on a miss,
+     * storing what it returns. Results of primitive methods are boxed in the cache
+     */
+    private void addCacheWrapper(ClassWriter classWriter, int access, String name, String desc, CacheSpec cacheSpec, String bodyName) {
+        if (cacheSpec.single) {
+            addSingleCacheWrapper(classWriter, access, name, desc, cacheSpec, bodyName);
+            return;
+        }
+
+        String cacheType = Type.getInternalName(MethodCache.class);
+        String cacheDesc = Type.getDescriptor(MethodCache.class);
+        Type[] argumentTypes = Type.getArgumentTypes(desc);
+        Type returnType = Type.getReturnType(desc);
+
+        MethodVisitor methodVisitor = classWriter.visitMethod(access, name, desc, null, null);
+        methodVisitor.visitCode();
+
+        int keyLocal = 1;
+        for (Type type : argumentTypes) {
+            keyLocal += type.getSize();
+        }
+
+        // A single primitive argument (or none) is the key itself, widened to a long
+        boolean primitiveKey = argumentTypes.length == 0 || (argumentTypes.length == 1 && argumentTypes[0].getSort() <= Type.DOUBLE);
+        String keyDesc = primitiveKey ? "J" : "Ljava/lang/Object;";
+        int cacheLocal = keyLocal + (primitiveKey ? 2 : 1);
+        int resultLocal = cacheLocal + 1;
+
+        if (argumentTypes.length == 0) {
+            methodVisitor.visitInsn(LCONST_0);
+        } else if (argumentTypes.length == 1) {
+            Type type = argumentTypes[0];
+            methodVisitor.visitVarInsn(type.getOpcode(ILOAD), 1);
+            if (type.getSort() == Type.FLOAT) {
+                methodVisitor.visitMethodInsn(INVOKESTATIC, "java/lang/Float", "floatToRawIntBits", "(F)I", false);
+                methodVisitor.visitInsn(I2L);
+            } else if (type.getSort() == Type.DOUBLE) {
+                methodVisitor.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "doubleToRawLongBits", "(D)J", false);
+            } else if (type.getSort() < Type.FLOAT) {
+                methodVisitor.visitInsn(I2L);
+            }
+        } else {
+            // Lists compare by their elements, so they make a key out of the boxed arguments
+            methodVisitor.visitLdcInsn(argumentTypes.length);
+            methodVisitor.visitTypeInsn(ANEWARRAY, "java/lang/Object");
+            int local = 1;
+            for (int i = 0; i < argumentTypes.length; i++) {
+                methodVisitor.visitInsn(DUP);
+                methodVisitor.visitLdcInsn(i);
+                methodVisitor.visitVarInsn(argumentTypes[i].getOpcode(ILOAD), local);
+                ASMUtils.box(methodVisitor, argumentTypes[i]);
+                methodVisitor.visitInsn(AASTORE);
+                local += argumentTypes[i].getSize();
+            }
+            methodVisitor.visitMethodInsn(INVOKESTATIC, "java/util/Arrays", "asList", "([Ljava/lang/Object;)Ljava/util/List;", false);
+        }
+        methodVisitor.visitVarInsn(primitiveKey ? LSTORE : ASTORE, keyLocal);
+
+        if (cacheSpec.classScope) {
+            methodVisitor.visitFieldInsn(GETSTATIC, subType, cacheSpec.field, cacheDesc);
+        } else {
+            methodVisitor.visitVarInsn(ALOAD, 0);
+            methodVisitor.visitFieldInsn(GETFIELD, subType, cacheSpec.field, cacheDesc);
+        }
+        methodVisitor.visitVarInsn(ASTORE, cacheLocal);
+
+        // A superclass constructor can call the override before the instance cache exists
+        Label bypass = new Label();
+        if (!cacheSpec.classScope) {
+            methodVisitor.visitVarInsn(ALOAD, cacheLocal);
+            methodVisitor.visitJumpInsn(IFNULL, bypass);
+        }
+
+        // [] -> [value]
+        Label miss = new Label();
+        methodVisitor.visitVarInsn(ALOAD, cacheLocal);
+        methodVisitor.visitVarInsn(primitiveKey ? LLOAD : ALOAD, keyLocal);
+        methodVisitor.visitMethodInsn(INVOKEVIRTUAL, cacheType, "get", "(" + keyDesc + ")Ljava/lang/Object;", false);
+        methodVisitor.visitInsn(DUP);
+        methodVisitor.visitFieldInsn(GETSTATIC, cacheType, "MISS", "Ljava/lang/Object;");
+        methodVisitor.visitJumpInsn(IF_ACMPEQ, miss);
+        ASMUtils.unbox(methodVisitor, returnType);
+        methodVisitor.visitInsn(returnType.getOpcode(IRETURN));
+
+        methodVisitor.visitLabel(miss);
+        methodVisitor.visitInsn(POP);
+        loadThisAndArguments(methodVisitor, desc);
+        methodVisitor.visitMethodInsn(INVOKESPECIAL, subType, bodyName, desc, false);
+        methodVisitor.visitVarInsn(returnType.getOpcode(ISTORE), resultLocal);
+
+        // [] -> [cache, key, value] -> []
+        methodVisitor.visitVarInsn(ALOAD, cacheLocal);
+        methodVisitor.visitVarInsn(primitiveKey ? LLOAD : ALOAD, keyLocal);
+        methodVisitor.visitVarInsn(returnType.getOpcode(ILOAD), resultLocal);
+        ASMUtils.box(methodVisitor, returnType);
+        methodVisitor.visitMethodInsn(INVOKEVIRTUAL, cacheType, "put", "(" + keyDesc + "Ljava/lang/Object;)V", false);
+
+        methodVisitor.visitVarInsn(returnType.getOpcode(ILOAD), resultLocal);
+        methodVisitor.visitInsn(returnType.getOpcode(IRETURN));
+
+        if (!cacheSpec.classScope) {
+            methodVisitor.visitLabel(bypass);
+            loadThisAndArguments(methodVisitor, desc);
+            methodVisitor.visitMethodInsn(INVOKESPECIAL, subType, bodyName, desc, false);
+            methodVisitor.visitInsn(returnType.getOpcode(IRETURN));
+        }
+
+        methodVisitor.visitMaxs(Math.max(keyLocal, 6), resultLocal + returnType.getSize());
+        methodVisitor.visitEnd();
+    }
+
+    /**
+     * Writes a method that returns the result stored in the instance's fields, and only calls the body if there's
+     * none yet or it expired. The result is written before the flag, so a thread seeing the flag sees the result
+     */
+    private void addSingleCacheWrapper(ClassWriter classWriter, int access, String name, String desc, CacheSpec cacheSpec, String bodyName) {
+        Type returnType = Type.getReturnType(desc);
+        boolean expires = cacheSpec.expireAfter > 0;
+        int nowLocal = 1;
+        int resultLocal = nowLocal + 2;
+
+        MethodVisitor methodVisitor = classWriter.visitMethod(access, name, desc, null, null);
+        methodVisitor.visitCode();
+
+        if (expires) {
+            methodVisitor.visitMethodInsn(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false);
+            methodVisitor.visitVarInsn(LSTORE, nowLocal);
+        }
+
+        Label miss = new Label();
+        methodVisitor.visitVarInsn(ALOAD, 0);
+        methodVisitor.visitFieldInsn(GETFIELD, subType, cacheSpec.cachedField(), "Z");
+        methodVisitor.visitJumpInsn(IFEQ, miss);
+
+        if (expires) {
+            // [] -> [now - stored, expiry] -> []
+            methodVisitor.visitVarInsn(LLOAD, nowLocal);
+            methodVisitor.visitVarInsn(ALOAD, 0);
+            methodVisitor.visitFieldInsn(GETFIELD, subType, cacheSpec.storedField(), "J");
+            methodVisitor.visitInsn(LSUB);
+            methodVisitor.visitLdcInsn(cacheSpec.expireAfter * 1000000L);
+            methodVisitor.visitInsn(LCMP);
+            methodVisitor.visitJumpInsn(IFGT, miss);
+        }
+
+        methodVisitor.visitVarInsn(ALOAD, 0);
+        methodVisitor.visitFieldInsn(GETFIELD, subType, cacheSpec.field, cacheSpec.returnDesc);
+        methodVisitor.visitInsn(returnType.getOpcode(IRETURN));
+
+        methodVisitor.visitLabel(miss);
+        methodVisitor.visitVarInsn(ALOAD, 0);
+        methodVisitor.visitMethodInsn(INVOKESPECIAL, subType, bodyName, desc, false);
+        methodVisitor.visitVarInsn(returnType.getOpcode(ISTORE), resultLocal);
+
+        methodVisitor.visitVarInsn(ALOAD, 0);
+        methodVisitor.visitVarInsn(returnType.getOpcode(ILOAD), resultLocal);
+        methodVisitor.visitFieldInsn(PUTFIELD, subType, cacheSpec.field, cacheSpec.returnDesc);
+        if (expires) {
+            methodVisitor.visitVarInsn(ALOAD, 0);
+            methodVisitor.visitVarInsn(LLOAD, nowLocal);
+            methodVisitor.visitFieldInsn(PUTFIELD, subType, cacheSpec.storedField(), "J");
+        }
+        methodVisitor.visitVarInsn(ALOAD, 0);
+        methodVisitor.visitInsn(ICONST_1);
+        methodVisitor.visitFieldInsn(PUTFIELD, subType, cacheSpec.cachedField(), "Z");
+
+        methodVisitor.visitVarInsn(returnType.getOpcode(ILOAD), resultLocal);
+        methodVisitor.visitInsn(returnType.getOpcode(IRETURN));
+
+        methodVisitor.visitMaxs(4, resultLocal + returnType.getSize());
+        methodVisitor.visitEnd();
+    }
+
+    /**
+     * Writes a method that captures this and its arguments in a new task class, and hands the task to the
+     * executor. The task calls the target method. For methods that return something, the written method returns
+     * a ListenableFuture of the result instead
+     */
+    private void addAsyncCall(ClassWriter classWriter, int access, String name, String desc, String executor, String targetName) {
+        AsyncTaskGenerator asyncTask = new AsyncTaskGenerator(subName + "_ASYNC_" + asyncTasks.size(), subType, targetName, desc);
+        asyncTasks.add(asyncTask);
+
+        boolean callable = Type.getReturnType(desc).getSort() != Type.VOID;
+        String asyncDesc = callable ? desc.substring(0, desc.indexOf(')') + 1) + "Lcom/google/common/util/concurrent/ListenableFuture;" : desc;
+
+        MethodVisitor methodVisitor = classWriter.visitMethod(access, name, asyncDesc, null, null);
+        methodVisitor.visitCode();
+
+        // [] -> [executor, task]
+        methodVisitor.visitLdcInsn(executor);
+        methodVisitor.visitTypeInsn(NEW, asyncTask.taskType);
+        methodVisitor.visitInsn(DUP);
+        int local = loadThisAndArguments(methodVisitor, desc);
+        methodVisitor.visitMethodInsn(INVOKESPECIAL, asyncTask.taskType, "<init>", asyncTask.getConstructorDesc(), false);
+
+        if (callable) {
+            methodVisitor.visitMethodInsn(INVOKESTATIC, Type.getInternalName(AsyncExecutors.class), "submit", "(Ljava/lang/String;Ljava/util/concurrent/Callable;)Lcom/google/common/util/concurrent/ListenableFuture;", false);
+            methodVisitor.visitInsn(ARETURN);
+        } else {
+            methodVisitor.visitMethodInsn(INVOKESTATIC, Type.getInternalName(AsyncExecutors.class), "execute", "(Ljava/lang/String;Ljava/lang/Runnable;)V", false);
+            methodVisitor.visitInsn(RETURN);
+        }
+
+        methodVisitor.visitMaxs(local + 3, local);
+        methodVisitor.visitEnd();
+    }
+
+    /**
+     * Writes a method that calls the body with the lock held, and releases it whether the body returns or
+     * throws. Read methods run the body with no lock first, and only lock and run it again if a writer came
+     * between, or the unlocked run threw
+     */
+    private void addGuardWrapper(ClassWriter classWriter, int access, String name, String desc, GuardSpec guardSpec, String bodyName) {
+        String lockType = Type.getInternalName(GuardLock.class);
+        String lockDesc = Type.getDescriptor(GuardLock.class);
+        Type[] argumentTypes = Type.getArgumentTypes(desc);
+        Type returnType = Type.getReturnType(desc);
+        boolean read = guardSpec.mode == MGuarded.Mode.READ;
+
+        MethodVisitor methodVisitor = classWriter.visitMethod(access, name, desc, null, null);
+        methodVisitor.visitCode();
+
+        int lockLocal = 1;
+        int keyLocal = 1;
+        for (int i = 0; i < argumentTypes.length; i++) {
+            if (i == guardSpec.key) {
+                keyLocal = lockLocal;
+            }
+            lockLocal += argumentTypes[i].getSize();
+        }
+        int stampLocal = lockLocal + 1;
+        int resultLocal = stampLocal + 2;
+        int exceptionLocal = resultLocal + 2;
+
+        Label bypass = new Label();
+
+        if (guardSpec.mode == MGuarded.Mode.STRIPED) {
+            // [] -> [stripes, this, hash] -> [lock]
+            Type keyType = argumentTypes[guardSpec.key];
+            methodVisitor.visitFieldInsn(GETSTATIC, subType, guardSpec.field, "[" + lockDesc);
+            methodVisitor.visitVarInsn(ALOAD, 0);
+            methodVisitor.visitVarInsn(keyType.getOpcode(ILOAD), keyLocal);
+            switch (keyType.getSort()) {
+                case Type.FLOAT:
+                    methodVisitor.visitMethodInsn(INVOKESTATIC, "java/lang/Float", "floatToRawIntBits", "(F)I", false);
+                    break;
+                case Type.DOUBLE:
+                    methodVisitor.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "doubleToRawLongBits", "(D)J", false);
+                    foldLong(methodVisitor);
+                    break;
+                case Type.LONG:
+                    foldLong(methodVisitor);
+                    break;
+                case Type.OBJECT:
+                case Type.ARRAY:
+                    methodVisitor.visitMethodInsn(INVOKESTATIC, lockType, "hash", "(Ljava/lang/Object;)I", false);
+                    break;
+                default:
+                    break;
+            }
+            methodVisitor.visitMethodInsn(INVOKESTATIC, lockType, "stripe", "([" + lockDesc + "Ljava/lang/Object;I)" + lockDesc, false);
+            methodVisitor.visitVarInsn(ASTORE, lockLocal);
+        } else {
+            methodVisitor.visitVarInsn(ALOAD, 0);
+            methodVisitor.visitFieldInsn(GETFIELD, subType, GuardLock.GUARD_FIELD, lockDesc);
+            methodVisitor.visitVarInsn(ASTORE, lockLocal);
+
+            // A superclass constructor can call the override before the lock exists
+            methodVisitor.visitVarInsn(ALOAD, lockLocal);
+            methodVisitor.visitJumpInsn(IFNULL, bypass);
+        }
+
+        Label locked = new Label();
+
+        if (read) {
+            Label optimisticStart = new Label();
+            Label optimisticEnd = new Label();
+            Label optimisticHandler = new Label();
+            methodVisitor.visitTryCatchBlock(optimisticStart, optimisticEnd, optimisticHandler, null);
+
+            methodVisitor.visitVarInsn(ALOAD, lockLocal);
+            methodVisitor.visitMethodInsn(INVOKEVIRTUAL, lockType, "tryOptimisticRead", "()J", false);
+            methodVisitor.visitVarInsn(LSTORE, stampLocal);
+            methodVisitor.visitVarInsn(LLOAD, stampLocal);
+            methodVisitor.visitInsn(LCONST_0);
+            methodVisitor.visitInsn(LCMP);
+            methodVisitor.visitJumpInsn(IFEQ, locked);
+
+            methodVisitor.visitLabel(optimisticStart);
+            loadThisAndArguments(methodVisitor, desc);
+            methodVisitor.visitMethodInsn(INVOKESPECIAL, subType, bodyName, desc, false);
+            methodVisitor.visitLabel(optimisticEnd);
+            if (returnType.getSort() != Type.VOID) {
+                methodVisitor.visitVarInsn(returnType.getOpcode(ISTORE), resultLocal);
+            }
+
+            methodVisitor.visitVarInsn(ALOAD, lockLocal);
+            methodVisitor.visitVarInsn(LLOAD, stampLocal);
+            methodVisitor.visitMethodInsn(INVOKEVIRTUAL, lockType, "validate", "(J)Z", false);
+            methodVisitor.visitJumpInsn(IFEQ, locked);
+            if (returnType.getSort() != Type.VOID) {
+                methodVisitor.visitVarInsn(returnType.getOpcode(ILOAD), resultLocal);
+            }
+            methodVisitor.visitInsn(returnType.getOpcode(IRETURN));
+
+            // An exception only counts if no writer was in the way
+            methodVisitor.visitLabel(optimisticHandler);
+            methodVisitor.visitVarInsn(ASTORE, exceptionLocal);
+            methodVisitor.visitVarInsn(ALOAD, lockLocal);
+            methodVisitor.visitVarInsn(LLOAD, stampLocal);
+            methodVisitor.visitMethodInsn(INVOKEVIRTUAL, lockType, "validate", "(J)Z", false);
+            methodVisitor.visitJumpInsn(IFEQ, locked);
+            methodVisitor.visitVarInsn(ALOAD, exceptionLocal);
+            methodVisitor.visitInsn(ATHROW);
+        }
+
+        String lock = read ? "readLock" : "writeLock";
+        String unlock = read ? "unlockRead" : "unlockWrite";
+
+        Label start = new Label();
+        Label end = new Label();
+        Label handler = new Label();
+        methodVisitor.visitTryCatchBlock(start, end, handler, null);
+
+        methodVisitor.visitLabel(locked);
+        methodVisitor.visitVarInsn(ALOAD, lockLocal);
+        methodVisitor.visitMethodInsn(INVOKEVIRTUAL, lockType, lock, "()J", false);
+        methodVisitor.visitVarInsn(LSTORE, stampLocal);
+
+        methodVisitor.visitLabel(start);
+        loadThisAndArguments(methodVisitor, desc);
+        methodVisitor.visitMethodInsn(INVOKESPECIAL, subType, bodyName, desc, false);
+        methodVisitor.visitLabel(end);
+
+        // [result] -> [result, lock, stamp] -> [result]
+        methodVisitor.visitVarInsn(ALOAD, lockLocal);
+        methodVisitor.visitVarInsn(LLOAD, stampLocal);
+        methodVisitor.visitMethodInsn(INVOKEVIRTUAL, lockType, unlock, "(J)V", false);
+        methodVisitor.visitInsn(returnType.getOpcode(IRETURN));
+
+        // [exception] -> [exception, lock, stamp] -> [exception]
+        methodVisitor.visitLabel(handler);
+        methodVisitor.visitVarInsn(ALOAD, lockLocal);
+        methodVisitor.visitVarInsn(LLOAD, stampLocal);
+        methodVisitor.visitMethodInsn(INVOKEVIRTUAL, lockType, unlock, "(J)V", false);
+        methodVisitor.visitInsn(ATHROW);
+
+        if (guardSpec.mode != MGuarded.Mode.STRIPED) {
+            methodVisitor.visitLabel(bypass);
+            loadThisAndArguments(methodVisitor, desc);
+            methodVisitor.visitMethodInsn(INVOKESPECIAL, subType, bodyName, desc, false);
+            methodVisitor.visitInsn(returnType.getOpcode(IRETURN));
+        }
+
+        methodVisitor.visitMaxs(Math.max(lockLocal, 7), exceptionLocal + 1);
+        methodVisitor.visitEnd();
+    }
+
+    /**
+     * [long] -> [int], xoring the high half into the low one
+     */
+    private static void foldLong(MethodVisitor methodVisitor) {
+        methodVisitor.visitInsn(DUP2);
+        methodVisitor.visitLdcInsn(32);
+        methodVisitor.visitInsn(LUSHR);
+        methodVisitor.visitInsn(LXOR);
+        methodVisitor.visitInsn(L2I);
+    }
+
+    /**
+     * Writes the lazy_ getter of the field, and copies its initializer into the class as lazyinit_. Shared fields
+     * are checked again under a lock on the instance, so the initializer runs once
+     */
+    private void addLazyGetter(ClassWriter classWriter, FieldMapping fieldMapping, LazySpec lazySpec) {
+        MethodNode initializer = lazySpec.initializer;
+        boolean isStatic = (initializer.access & ACC_STATIC) != 0;
+        String initializerName = "lazyinit_" + fieldMapping.name;
+        String desc = "()" + fieldMapping.signature;
+
+        MethodVisitor methodVisitor = classWriter.visitMethod(ACC_PRIVATE | ACC_SYNTHETIC | (isStatic ? ACC_STATIC : 0), initializerName, desc, null, null);
+        methodVisitor.visitCode();
+        List<TryCatchBlockNode> tryCatchBlocks = new ArrayList<TryCatchBlockNode>();
+        InsnList insnList = optimizeNodes(initializer.access, initializerName, desc, interpretAndCopyNodes(initializer, tryCatchBlocks), tryCatchBlocks, initializer.maxStack + stackPadding(), initializer.maxLocals);
+        accept(insnList, tryCatchBlocks, methodVisitor);
+        methodVisitor.visitMaxs(initializer.maxStack + stackPadding(), initializer.maxLocals);
+        methodVisitor.visitEnd();
+
+        methodVisitor = classWriter.visitMethod(ACC_PRIVATE | ACC_SYNTHETIC, "lazy_" + fieldMapping.name, desc, null, null);
+        methodVisitor.visitCode();
+
+        Label done = new Label();
+
+        // Local 1 holds the value
+        methodVisitor.visitVarInsn(ALOAD, 0);
+        methodVisitor.visitFieldInsn(GETFIELD, subType, fieldMapping.name, fieldMapping.signature);
+        methodVisitor.visitVarInsn(ASTORE, 1);
+        methodVisitor.visitVarInsn(ALOAD, 1);
+        methodVisitor.visitJumpInsn(IFNONNULL, done);
+
+        Label start = new Label();
+        Label unlock = new Label();
+        Label handler = new Label();
+
+        if (lazySpec.shared) {
+            methodVisitor.visitTryCatchBlock(start, unlock, handler, null);
+
+            methodVisitor.visitVarInsn(ALOAD, 0);
+            methodVisitor.visitInsn(MONITORENTER);
+            methodVisitor.visitLabel(start);
+
+            methodVisitor.visitVarInsn(ALOAD, 0);
+            methodVisitor.visitFieldInsn(GETFIELD, subType, fieldMapping.name, fieldMapping.signature);
+            methodVisitor.visitVarInsn(ASTORE, 1);
+            methodVisitor.visitVarInsn(ALOAD, 1);
+            methodVisitor.visitJumpInsn(IFNONNULL, unlock);
+        }
+
+        // [] -> [this, value] -> []
+        methodVisitor.visitVarInsn(ALOAD, 0);
+        if (isStatic) {
+            methodVisitor.visitMethodInsn(INVOKESTATIC, subType, initializerName, desc, false);
+        } else {
+            methodVisitor.visitVarInsn(ALOAD, 0);
+            methodVisitor.visitMethodInsn(INVOKESPECIAL, subType, initializerName, desc, false);
+        }
+        methodVisitor.visitInsn(DUP);
+        methodVisitor.visitVarInsn(ASTORE, 1);
+        methodVisitor.visitFieldInsn(PUTFIELD, subType, fieldMapping.name, fieldMapping.signature);
+
+        if (lazySpec.shared) {
+            methodVisitor.visitLabel(unlock);
+            methodVisitor.visitVarInsn(ALOAD, 0);
+            methodVisitor.visitInsn(MONITOREXIT);
+        }
+
+        methodVisitor.visitLabel(done);
+        methodVisitor.visitVarInsn(ALOAD, 1);
+        methodVisitor.visitInsn(ARETURN);
+
+        if (lazySpec.shared) {
+            // [exception] -> [exception, this] -> [exception]
+            methodVisitor.visitLabel(handler);
+            methodVisitor.visitVarInsn(ALOAD, 0);
+            methodVisitor.visitInsn(MONITOREXIT);
+            methodVisitor.visitInsn(ATHROW);
+        }
+
+        methodVisitor.visitMaxs(3, 2);
+        methodVisitor.visitEnd();
+    }
+
+    /**
+     * Writes the invalidation methods named by the cached overrides, each emptying every cache that names it
+     */
+    private void addCacheInvalidators(ClassWriter classWriter) {
+        Map<String, List<CacheSpec>> invalidators = Maps.newLinkedHashMap();
+        for (CacheSpec cacheSpec : cacheMethods.values()) {
+            if (cacheSpec.invalidate.isEmpty())
+                continue;
+
+            List<CacheSpec> cacheSpecs = invalidators.get(cacheSpec.invalidate);
+            if (cacheSpecs == null) {
+                cacheSpecs = new ArrayList<CacheSpec>();
+                invalidators.put(cacheSpec.invalidate, cacheSpecs);
+            }
+            cacheSpecs.add(cacheSpec);
+        }
+
+        for (Map.Entry<String, List<CacheSpec>> entry : invalidators.entrySet()) {
+            MethodVisitor methodVisitor = classWriter.visitMethod(ACC_PUBLIC | finalFlag(), entry.getKey(), "()V", null, null);
+            methodVisitor.visitCode();
+
+            for (CacheSpec cacheSpec : entry.getValue()) {
+                if (cacheSpec.single) {
+                    methodVisitor.visitVarInsn(ALOAD, 0);
+                    methodVisitor.visitInsn(ICONST_0);
+                    methodVisitor.visitFieldInsn(PUTFIELD, subType, cacheSpec.cachedField(), "Z");
+                    continue;
+                }
+
+                if (cacheSpec.classScope) {
+                    methodVisitor.visitFieldInsn(GETSTATIC, subType, cacheSpec.field, Type.getDescriptor(MethodCache.class));
+                } else {
+                    methodVisitor.visitVarInsn(ALOAD, 0);
+                    methodVisitor.visitFieldInsn(GETFIELD, subType, cacheSpec.field, Type.getDescriptor(MethodCache.class));
+                }
+                methodVisitor.visitMethodInsn(INVOKEVIRTUAL, Type.getInternalName(MethodCache.class), "clear", "()V", false);
+            }
+
+            methodVisitor.visitInsn(RETURN);
+            methodVisitor.visitMaxs(2, 1);
+            methodVisitor.visitEnd();
+        }
+    }
+
+    private static String bodyName(String name, boolean profiled) {
+        return profiled ? "profiled_" + name : name;
+    }
+
+    private static int bodyAccess(int access, boolean profiled) {
+        return profiled ? ACC_PRIVATE : access;
+    }
+
+    /**
+     * Writes copied instructions along with their try/catch blocks, which have to be visited before their labels
+     */
+    private static void accept(InsnList insnList, List<TryCatchBlockNode> tryCatchBlocks, MethodVisitor methodVisitor) {
+        for (TryCatchBlockNode tryCatchBlockNode : tryCatchBlocks) {
+            tryCatchBlockNode.accept(methodVisitor);
+        }
+        insnList.accept(methodVisitor);
+    }
+
+    private int finalFlag() {
+        return devirtualize ? ACC_FINAL : 0;
+    }
+
     /**
      * Reads all instructions from a method node, and copies them into a new InsnList
      * <p/>
      * If the node needs to be modified at all (redirects, super calls) that's done as well
+     *
+     * @param tryCatchBlocks Receives the method's try/catch blocks, pointing at the copied labels
      */
-    private InsnList interpretAndCopyNodes(MethodNode methodNode) {
+    private InsnList interpretAndCopyNodes(MethodNode methodNode, List<TryCatchBlockNode> tryCatchBlocks) {
         NodeCopier nodeCopier = new NodeCopier(methodNode.instructions);
         InsnList insnList = new InsnList();
 
-        int skip = 0;
-        int index = 0;
+        for (TryCatchBlockNode tryCatchBlockNode : methodNode.tryCatchBlocks) {
+            tryCatchBlocks.add(new TryCatchBlockNode(nodeCopier.getLabel(tryCatchBlockNode.start), nodeCopier.getLabel(tryCatchBlockNode.end), nodeCopier.getLabel(tryCatchBlockNode.handler), tryCatchBlockNode.type));
+        }
+
+        Set<AbstractInsnNode> superReceivers = FlowAnalysis.findSuperReceivers(templateType, methodNode);
+        Map<AbstractInsnNode, InsnList> atomicNodes = atomicFields != null ? atomicFields.plan(templateType, methodNode) : Collections.<AbstractInsnNode, InsnList>emptyMap();
+        AtomicFields.checkRewritten(templateType, methodNode, atomicNodes);
 
         Iterator<AbstractInsnNode> iterator = methodNode.instructions.iterator();
         while (iterator.hasNext()) {
             AbstractInsnNode insnNode = iterator.next();
 
-            if (skip > 0) {
-                debug("Skipping {" + ASMUtils.nodeToString(insnNode) + "} " + skip + " left.");
-                skip--;
-                index++;
+            InsnList atomicList = atomicNodes.get(insnNode);
+            if (atomicList != null) {
+                nodeCopier.copyTo(atomicList, insnList);
                 continue;
             }
 
             if (insnNode instanceof MethodInsnNode) {
-                AbstractInsnNode newNode = redirectLocalMethod((MethodInsnNode) insnNode);
+                AbstractInsnNode newNode;
+                if (superReceivers.contains(insnNode)) {
+                    newNode = redirectSuperCall((MethodInsnNode) insnNode);
+
+                    debug("Redirected super call!");
+                    debug(" * OLD: " + ASMUtils.nodeToString(insnNode));
+                    debug(" * NEW: " + ASMUtils.nodeToString(newNode));
+                } else {
+                    newNode = redirectLocalMethod((MethodInsnNode) insnNode);
+                }
+
                 if (newNode != null) {
                     nodeCopier.copyTo(newNode, insnList);
                 } else {
                     nodeCopier.copyTo(insnNode, insnList);
                 }
             } else if (insnNode instanceof FieldInsnNode) {
-                AbstractInsnNode newNode = redirectSuperCall(methodNode, (FieldInsnNode) insnNode, index);
-                if (newNode != null) {
-                    debug("Redirected super call!");
-                    debug(" * OLD: " + ASMUtils.nodeToString(insnNode));
-                    debug(" * NEW: " + ASMUtils.nodeToString(newNode));
+                FieldInsnNode fieldNode = (FieldInsnNode) insnNode;
 
-                    skip = 2; // Skipping the GETFIELD and the CHECKCAST
+                if (isSuperField(fieldNode)) {
+                    // The instance the field is read from is the generated class itself, so that's left as _super
+                    continue;
+                }
 
-                    nodeCopier.copyTo(newNode, insnList);
+                if (superReceivers.contains(fieldNode)) {
+                    nodeCopier.copyTo(ASMUtils.redirect(fieldNode, subType), insnList);
+                    continue;
+                }
+
+                AbstractInsnNode lazyNode = redirectLazyField(fieldNode);
+                if (lazyNode != null) {
+                    nodeCopier.copyTo(lazyNode, insnList);
+                    continue;
+                }
+
+                InsnList storedNodes = redirectStoredField(fieldNode);
+                if (storedNodes != null) {
+                    nodeCopier.copyTo(storedNodes, insnList);
                 } else {
-                    newNode = redirectLocalField((FieldInsnNode) insnNode);
+                    AbstractInsnNode newNode = redirectLocalField(fieldNode);
                     if (newNode != null) {
                         nodeCopier.copyTo(newNode, insnList);
                     } else {
@@ -455,58 +2021,207 @@ public class SubclassGenerator<T> {
             } else {
                 nodeCopier.copyTo(insnNode, insnList);
             }
-
-            index++;
         }
 
         return insnList;
     }
 
     /**
-     * Take a FieldInsnNode and determines whether or not it should be treated as a super call
-     * If so, it looks and sees whether it's a field or method call, and delegates accordingly
+     * Removes the casts the copied instructions no longer need, then runs the optimizers. Templates written against
+     * Object cast their parameters and _super, which the generated descriptor often makes redundant
+     */
+    private InsnList optimizeNodes(int access, String name, String desc, InsnList insnList, List<TryCatchBlockNode> tryCatchBlocks, int maxStack, int maxLocals) {
+        MethodNode methodNode = new MethodNode(access, name, desc, null, null);
+        methodNode.instructions = insnList;
+        // Shared, so blocks the optimizers drop are gone from the caller's list too
+        methodNode.tryCatchBlocks = tryCatchBlocks;
+        methodNode.maxStack = maxStack;
+        methodNode.maxLocals = maxLocals;
+
+        int removed = FlowAnalysis.removeRedundantCasts(subType, superType, methodNode, templateLoader);
+        if (removed > 0) {
+            debug("Removed " + removed + " redundant casts from " + name + desc);
+        }
+
+        if (!optimizers.isEmpty()) {
+            int before = JitReport.getCodeSize(methodNode);
+            for (InsnOptimizer optimizer : optimizers) {
+                optimizer.optimize(subType, methodNode);
+            }
+            int after = JitReport.getCodeSize(methodNode);
+
+            sizeBefore += before;
+            sizeAfter += after;
+            debug("Optimized " + name + desc + ": " + before + " -> " + after + " bytes");
+        }
+
+        return methodNode.instructions;
+    }
+
+    /**
+     * Turns interface calls on arguments of a known class into virtual calls on that class
+     */
+    private InsnList narrowNodes(int access, String name, String desc, InsnList insnList, List<TryCatchBlockNode> tryCatchBlocks, int maxStack, int maxLocals) {
+        MethodNode methodNode = new MethodNode(access, name, desc, null, null);
+        methodNode.instructions = insnList;
+        methodNode.tryCatchBlocks = tryCatchBlocks;
+        methodNode.maxStack = maxStack;
+        methodNode.maxLocals = maxLocals;
+
+        int narrowed = FlowAnalysis.narrowInterfaceCalls(subType, methodNode, templateLoader);
+        if (narrowed > 0) {
+            debug("Devirtualized " + narrowed + " interface calls in " + name + desc);
+        }
+
+        return methodNode.instructions;
+    }
+
+    private boolean isSuperField(FieldInsnNode fieldNode) {
+        return fieldNode.owner.equals(templateType) && fieldNode.name.equals("_super") && fieldNode.getOpcode() == GETFIELD;
+    }
+
+    /**
+     * Takes a call found to be made on _super, and redirects it to the super class method it stands for
      * <p/>
-     * If it's a method call, we check to see if there's a default_ method, and if so, we redirect
-     * the call to the that default method, removing the in-between bytecode (GETFIELD and CHECKCAST)
+     * If there's a default_ method for it, the call goes to that default method instead
+     *
+     * @return The redirected call
+     */
+    private AbstractInsnNode redirectSuperCall(MethodInsnNode methodInsnNode) {
+        MethodMapping oldMethodMapping = new MethodMapping(methodInsnNode.name, methodInsnNode.desc);
+
+        // If there's a super call to a method that's been overridden, pass it through
+        // to the generated default method
+        if (overrideMethods.contains(oldMethodMapping)) {
+            debug("Found super call to overridden method!");
+            // Fun fact. This somehow handles super super super methods and I don't even know how
+            return new MethodInsnNode(INVOKESPECIAL, subType, "default_" + methodInsnNode.name, methodInsnNode.desc, false);
+        } else {
+            return new MethodInsnNode(INVOKESPECIAL, superType, methodInsnNode.name, methodInsnNode.desc, false);
+        }
+    }
+
+    /**
+     * @return A call to the lazy_ getter replacing a read of a lazy field, or null if it's anything else
+     */
+    private AbstractInsnNode redirectLazyField(FieldInsnNode fieldNode) {
+        if (fieldNode.getOpcode() != GETFIELD || !fieldNode.owner.equals(templateType) || lazyFields.isEmpty())
+            return null;
+
+        if (!lazyFields.containsKey(new FieldMapping(fieldNode.name, fieldNode.desc)))
+            return null;
+
+        debug("Redirected read of lazy field " + fieldNode.name);
+        return new MethodInsnNode(INVOKESPECIAL, subType, "lazy_" + fieldNode.name, "()" + fieldNode.desc, false);
+    }
+
+    /**
+     * Redirects a template field access to wherever the field layout put the field
+     */
+    private InsnList redirectStoredField(FieldInsnNode fieldNode) {
+        if (atomicFields != null && fieldNode.owner.equals(templateType)) {
+            InsnList insnList = atomicFields.access(fieldNode.getOpcode(), new FieldMapping(fieldNode.name, fieldNode.desc));
+            if (insnList != null) {
+                debug("Redirected field access into striped counter: " + ASMUtils.nodeToString(fieldNode));
+                return insnList;
+            }
+        }
+
+        if (fieldPacking != null && fieldNode.owner.equals(templateType)) {
+            InsnList insnList = fieldPacking.access(fieldNode.getOpcode(), new FieldMapping(fieldNode.name, fieldNode.desc));
+            if (insnList != null) {
+                debug("Redirected field access into packed field: " + ASMUtils.nodeToString(fieldNode));
+                return insnList;
+            }
+        }
+
+        return redirectColumnField(fieldNode);
+    }
+
+    /**
+     * Builds the instructions standing in for a GETFIELD or PUTFIELD of a template field on the generated class,
+     * for fields that aren't plain instance fields
+     *
+     * @return The replacement instructions, or null if a plain field instruction does
+     */
+    InsnList storedFieldAccess(int opcode, FieldMapping fieldMapping) {
+        if (atomicFields != null && atomicFields.isCounter(fieldMapping)) {
+            return atomicFields.access(opcode, fieldMapping);
+        } else if (columnFields.contains(fieldMapping)) {
+            return columnAccess(opcode, fieldMapping.name, fieldMapping.signature);
+        } else if (fieldPacking != null) {
+            return fieldPacking.access(opcode, fieldMapping);
+        }
+        return null;
+    }
+
+    /**
+     * Takes a FieldInsnNode pointing to a template field that's been moved into a slab column, and expands it
+     * into an array access on that column, indexed by the instance's slot
      * <p/>
-     * If it's a field call, we simply chop out the GETFIELD call to the super field, and redirect directly
-     * to the field in the subclass
+     * The stack is shuffled so the column access sees the exact same operands the GETFIELD/PUTFIELD would have
+     */
+    private InsnList redirectColumnField(FieldInsnNode fieldNode) {
+        if (!fieldNode.owner.equals(templateType) || !columnFields.contains(new FieldMapping(fieldNode.name, fieldNode.desc))) {
+            return null;
+        }
+
+        InsnList insnList = columnAccess(fieldNode.getOpcode(), fieldNode.name, fieldNode.desc);
+        if (insnList != null) {
+            debug("Redirected field access into slab column: " + ASMUtils.nodeToString(fieldNode));
+        }
+
+        return insnList;
+    }
+
+    /**
+     * Builds the instructions that stand in for a GETFIELD or PUTFIELD of a column field
      *
-     * @return Whatever node has been generated to properly redirect
-     */
-    private AbstractInsnNode redirectSuperCall(MethodNode methodNode, FieldInsnNode fieldNode, int index) {
-        if (fieldNode.name.equals("_super") && fieldNode.getOpcode() == GETFIELD) {
-            AbstractInsnNode nextNode = methodNode.instructions.get(index + 1);
-
-            // We're for certain handling usage of the _super field
-            if (nextNode.getOpcode() == CHECKCAST) {
-                nextNode = methodNode.instructions.get(index + 2);
-
-                if (nextNode instanceof MethodInsnNode) {
-                    MethodInsnNode nextMethodNode = (MethodInsnNode) nextNode;
-                    MethodMapping oldMethodMapping = new MethodMapping(nextMethodNode.name, nextMethodNode.desc);
-
-                    // If there's a super call to a method that's been overridden, pass it through
-                    // to the generated default method
-                    if (overrideMethods.contains(oldMethodMapping)) {
-                        debug("Found super call to overridden method!");
-                        // Fun fact. This somehow handles super super super methods and I don't even know how
-                        return new MethodInsnNode(INVOKESPECIAL, subType, "default_" + nextMethodNode.name, nextMethodNode.desc, false);
-                    } else {
-                        return new MethodInsnNode(INVOKESPECIAL, superType, nextMethodNode.name, nextMethodNode.desc, false);
-                    }
-                } else if (nextNode instanceof FieldInsnNode) {
-                    FieldInsnNode nextFieldNode = (FieldInsnNode) nextNode;
-                    return ASMUtils.redirect(nextFieldNode, subType);
-                } else {
-                    return null; // Shouldn't happen
-                }
+     * @return The replacement instructions, or null if the opcode isn't an instance field access
+     */
+    InsnList columnAccess(int opcode, String name, String desc) {
+        Type type = Type.getType(desc);
+        InsnList insnList = new InsnList();
+
+        if (opcode == GETFIELD) {
+            // [this] -> [slab, index] -> [value]
+            addSlabAndIndex(name, desc, insnList);
+            insnList.add(new InsnNode(type.getOpcode(IALOAD)));
+        } else if (opcode == PUTFIELD) {
+            // [this, value] -> [value, this]
+            if (type.getSize() == 2) {
+                insnList.add(new InsnNode(DUP2_X1));
+                insnList.add(new InsnNode(POP2));
             } else {
-                return null; // Also shouldn't happen
+                insnList.add(new InsnNode(SWAP));
             }
+
+            // [value, this] -> [value, slab, index] -> [slab, index, value]
+            addSlabAndIndex(name, desc, insnList);
+            insnList.add(new InsnNode(type.getSize() == 2 ? DUP2_X2 : DUP2_X1));
+            insnList.add(new InsnNode(POP2));
+            insnList.add(new InsnNode(type.getOpcode(IASTORE)));
         } else {
             return null;
         }
+
+        return insnList;
+    }
+
+    /**
+     * Replaces the instance on top of the stack with the slab and index its slot points to in the field's column
+     */
+    private void addSlabAndIndex(String name, String desc, InsnList insnList) {
+        insnList.add(new FieldInsnNode(GETFIELD, subType, SlabAllocator.SLOT_FIELD, "I"));
+        insnList.add(new InsnNode(DUP));
+        insnList.add(new IntInsnNode(BIPUSH, SlabAllocator.SLAB_SHIFT));
+        insnList.add(new InsnNode(IUSHR));
+        insnList.add(new FieldInsnNode(GETSTATIC, subType, SlabAllocator.COLUMN_PREFIX + name, "[[" + desc));
+        insnList.add(new InsnNode(SWAP));
+        insnList.add(new InsnNode(AALOAD));
+        insnList.add(new InsnNode(SWAP));
+        insnList.add(new IntInsnNode(SIPUSH, SlabAllocator.SLAB_MASK));
+        insnList.add(new InsnNode(IAND));
     }
 
     /**
@@ -527,7 +2242,19 @@ public class SubclassGenerator<T> {
      */
     private AbstractInsnNode redirectLocalMethod(MethodInsnNode methodInsnNode) {
         if (methodInsnNode.owner.equals(templateType)) {
-            return ASMUtils.redirect(methodInsnNode, subType);
+            MethodInsnNode newNode = ASMUtils.redirect(methodInsnNode, subType);
+
+            // Newer compilers call private methods with INVOKEVIRTUAL. Bind them directly instead
+            if (devirtualize && newNode.getOpcode() == INVOKEVIRTUAL) {
+                for (MethodNode methodNode : templateNode.methods) {
+                    if (methodNode.name.equals(newNode.name) && methodNode.desc.equals(newNode.desc) && (methodNode.access & ACC_PRIVATE) != 0) {
+                        newNode.setOpcode(INVOKESPECIAL);
+                        break;
+                    }
+                }
+            }
+
+            return newNode;
         } else {
             return null;
         }
@@ -0,0 +1,97 @@
+package dmillerw.asm.core;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Generates the class holding the invokedynamic call sites of the methods marked with
+ * {@link dmillerw.asm.annotation.MSwappable}
+ * <p/>
+ * Generated classes stay at Java 6, so the call sites live in a Java 7 class of their own: one static trampoline
+ * per swappable method, which the override calls with the instance and its arguments. The trampolines are
+ * straight-line code, so the class needs no stack map frames
+ */
+class SwapSiteGenerator {
+
+    // Whether the runtime has invokedynamic. HotSwap can only be loaded if it does
+    static final boolean SUPPORTED;
+
+    static {
+        boolean supported;
+        try {
+            Class.forName("java.lang.invoke.MutableCallSite");
+            supported = true;
+        } catch (ClassNotFoundException ex) {
+            supported = false;
+        }
+        SUPPORTED = supported;
+    }
+
+    private static final Handle BOOTSTRAP = new Handle(H_INVOKESTATIC, "dmillerw/asm/core/HotSwap", "bootstrap", "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;");
+
+    final String siteName;
+    final String siteType;
+
+    final String ownerType;
+
+    // Variant names of each swappable method, keyed by its name and descriptor
+    final Map<String, List<String>> methods;
+
+    SwapSiteGenerator(String siteName, String ownerType, Map<String, List<String>> methods) {
+        this.siteName = siteName;
+        this.siteType = siteName.replace(".", "/");
+        this.ownerType = ownerType;
+        this.methods = methods;
+    }
+
+    /**
+     * @return The descriptor of the trampoline of a method: the instance, followed by the method's arguments
+     */
+    String getTrampolineDesc(String desc) {
+        return "(L" + ownerType + ";" + desc.substring(1);
+    }
+
+    byte[] generate() {
+        ClassWriter classWriter = new ClassWriter(0);
+
+        classWriter.visit(V1_7, ACC_SUPER | ACC_FINAL | ACC_SYNTHETIC, siteType, null, "java/lang/Object", null);
+        classWriter.visitSource(".dynamic", null);
+
+        for (String key : methods.keySet()) {
+            String name = key.substring(0, key.indexOf('('));
+            String desc = getTrampolineDesc(key.substring(name.length()));
+
+            MethodVisitor methodVisitor = classWriter.visitMethod(ACC_STATIC, name, desc, null, null);
+            methodVisitor.visitCode();
+            int local = 0;
+            for (Type type : Type.getArgumentTypes(desc)) {
+                methodVisitor.visitVarInsn(type.getOpcode(ILOAD), local);
+                local += type.getSize();
+            }
+            methodVisitor.visitInvokeDynamicInsn(name, desc, BOOTSTRAP);
+            Type returnType = Type.getReturnType(desc);
+            methodVisitor.visitInsn(returnType.getOpcode(IRETURN));
+            methodVisitor.visitMaxs(Math.max(local, returnType.getSize()), local);
+            methodVisitor.visitEnd();
+        }
+
+        // HotSwap looks the bodies up from here, as the generated class is a Java 6 one
+        MethodVisitor methodVisitor = classWriter.visitMethod(ACC_STATIC, "lookup", "()Ljava/lang/invoke/MethodHandles$Lookup;", null, null);
+        methodVisitor.visitCode();
+        methodVisitor.visitMethodInsn(INVOKESTATIC, "java/lang/invoke/MethodHandles", "lookup", "()Ljava/lang/invoke/MethodHandles$Lookup;", false);
+        methodVisitor.visitInsn(ARETURN);
+        methodVisitor.visitMaxs(1, 0);
+        methodVisitor.visitEnd();
+
+        classWriter.visitEnd();
+
+        return classWriter.toByteArray();
+    }
+}
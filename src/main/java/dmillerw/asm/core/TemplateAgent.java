@@ -0,0 +1,86 @@
+package dmillerw.asm.core;
+
+import com.google.common.collect.Maps;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.Map;
+
+/**
+ * Applies templates to their targets in place as the targets load, using {@link TemplateWeaver}
+ * <p/>
+ * Useful when the target is created by code you don't control, so a generated subclass would never be used.
+ * Pairs are given as agent arguments, separated by commas:
+ * <pre>
+ * -javaagent:asm-templates-1.2-agent.jar=com.example.Target=com.example.TemplateTarget
+ * </pre>
+ * Use the jar with the agent classifier, which bundles ASM, Guava and Commons IO. The plain jar leaves them to
+ * the application's class path, and can't be used as an agent. The bundled copies aren't relocated, and the agent
+ * jar is appended to the system class path, so an application carrying its own ASM, Guava or Commons IO there
+ * has its copies used by the agent too. Those have to be the versions this library is built against (ASM 5.0.3,
+ * Guava 18.0, Commons IO 2.4), or left off the class path
+ * More pairs can be registered at runtime, as long as the target hasn't loaded yet. Targets that already loaded
+ * are left alone
+ */
+public class TemplateAgent implements ClassFileTransformer {
+
+    private static final Map<String, String> TEMPLATES = Maps.newConcurrentMap();
+
+    private static Instrumentation instrumentation;
+
+    public static void premain(String args, Instrumentation instrumentation) {
+        agentmain(args, instrumentation);
+    }
+
+    public static synchronized void agentmain(String args, Instrumentation instrumentation) {
+        if (args != null) {
+            for (String pair : args.split(",")) {
+                String[] split = pair.trim().split("=");
+                if (split.length != 2) {
+                    throw new IllegalArgumentException("Expected target=template, got " + pair);
+                }
+                register(split[0].trim(), split[1].trim());
+            }
+        }
+
+        if (TemplateAgent.instrumentation == null) {
+            TemplateAgent.instrumentation = instrumentation;
+            instrumentation.addTransformer(new TemplateAgent());
+        }
+    }
+
+    /**
+     * Applies the template to the target when it loads. Both are binary names, so neither class is loaded here
+     */
+    public static void register(String targetName, String templateName) {
+        TEMPLATES.put(targetName.replace(".", "/"), templateName.replace(".", "/"));
+    }
+
+    /**
+     * @return Whether the agent is running in this JVM
+     */
+    public static boolean isInstalled() {
+        return instrumentation != null;
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        if (className == null || classBeingRedefined != null)
+            return null;
+
+        String templateName = TEMPLATES.get(className);
+        if (templateName == null)
+            return null;
+
+        // Exceptions thrown from here are swallowed by the JVM, and the class loads unchanged
+        try {
+            byte[] data = new TemplateWeaver(classfileBuffer, ASMUtils.getBytes(templateName, loader), loader).weave();
+            SubclassGenerator.debug("Applied template " + templateName + " to " + className);
+            return data;
+        } catch (Throwable ex) {
+            SubclassGenerator.debug("Failed to apply template " + templateName + " to " + className + ", loading it unchanged", ex);
+            return null;
+        }
+    }
+}
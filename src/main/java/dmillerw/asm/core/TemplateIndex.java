@@ -0,0 +1,286 @@
+package dmillerw.asm.core;
+
+import dmillerw.asm.annotation.*;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AnnotationNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The annotated members of a template: its fields, and its constructors, overrides and implementations with any
+ * casts already applied to their signatures
+ * <p/>
+ * Templates compiled with {@link dmillerw.asm.processor.TemplateProcessor} on the processor path have their index
+ * written next to their class file, and it's read from there. Templates without one have their annotations read
+ * straight out of their class file instead, as do templates whose index no longer matches their class file, say
+ * when the class was recompiled without the processor.
+ * The index is binary:
+ * <pre>
+ * int magic, byte version
+ * short field count, then per field: UTF name, UTF desc
+ * short method count, then per method: byte kind, byte flags, UTF name, UTF desc, UTF signature
+ * </pre>
+ * The desc is the method's own descriptor, the signature is what it becomes in the generated class. Only the
+ * scanning fallback and the check against the class file touch ASM, so the processor can use this without ASM or
+ * Guava
+ */
+public class TemplateIndex {
+
+    private static final int MAGIC = 0x544D504C;
+    private static final int VERSION = 1;
+
+    public static final int CONSTRUCTOR = 0;
+    public static final int OVERRIDE = 1;
+    public static final int IMPLEMENT = 2;
+
+    public static final int FLAG_PROFILE = 1;
+    public static final int FLAG_STATIC = 2;
+
+    public static class FieldEntry {
+
+        public final String name;
+        public final String desc;
+
+        public FieldEntry(String name, String desc) {
+            this.name = name;
+            this.desc = desc;
+        }
+    }
+
+    public static class MethodEntry {
+
+        public final int kind;
+        public final int flags;
+        public final String name;
+        public final String desc;
+        public final String signature;
+
+        public MethodEntry(int kind, int flags, String name, String desc, String signature) {
+            this.kind = kind;
+            this.flags = flags;
+            this.name = name;
+            this.desc = desc;
+            this.signature = signature;
+        }
+
+        public boolean is(int flag) {
+            return (flags & flag) != 0;
+        }
+    }
+
+    public final List<FieldEntry> fields = new ArrayList<FieldEntry>();
+    public final List<MethodEntry> methods = new ArrayList<MethodEntry>();
+
+    /**
+     * @return Where the index of a template lives, relative to the class path root
+     */
+    public static String getResourceName(String templateType) {
+        return "META-INF/templates/" + templateType + ".idx";
+    }
+
+    /**
+     * @return The index written for the template at build time, or one read from the template's annotations if
+     * there isn't one. Either way, the template class isn't loaded
+     */
+    public static TemplateIndex get(ClassNode templateNode, ClassLoader classLoader) {
+        String templateName = templateNode.name.replace("/", ".");
+        InputStream inputStream = classLoader == null ? ClassLoader.getSystemResourceAsStream(getResourceName(templateNode.name)) : classLoader.getResourceAsStream(getResourceName(templateNode.name));
+
+        if (inputStream != null) {
+            try {
+                try {
+                    TemplateIndex templateIndex = read(inputStream);
+                    if (templateIndex.matches(templateNode)) {
+                        SubclassGenerator.debug("Read template index of " + templateName);
+                        return templateIndex;
+                    }
+                    SubclassGenerator.debug("Template index of " + templateName + " is out of date, scanning instead");
+                } finally {
+                    inputStream.close();
+                }
+            } catch (IOException ex) {
+                SubclassGenerator.debug("Failed to read template index of " + templateName + ", scanning instead: " + ex.getMessage());
+            }
+        }
+
+        return scan(templateNode);
+    }
+
+    /**
+     * @return Whether the index lists exactly the annotated members of the class file, by name and desc, with the
+     * kinds and flags they have there
+     */
+    boolean matches(ClassNode templateNode) {
+        int fieldCount = 0;
+        for (FieldNode fieldNode : templateNode.fields) {
+            if (ASMUtils.getAnnotation(fieldNode.visibleAnnotations, MField.class) != null) {
+                fieldCount++;
+                if (!hasField(fieldNode.name, fieldNode.desc))
+                    return false;
+            }
+        }
+
+        int methodCount = 0;
+        for (MethodNode methodNode : templateNode.methods) {
+            int kind = getKind(methodNode);
+            if (kind < 0)
+                continue;
+
+            methodCount++;
+            MethodEntry methodEntry = getMethod(methodNode.name, methodNode.desc);
+            if (methodEntry == null || methodEntry.kind != kind || methodEntry.flags != getFlags(methodNode))
+                return false;
+        }
+
+        return fieldCount == fields.size() && methodCount == methods.size();
+    }
+
+    private boolean hasField(String name, String desc) {
+        for (FieldEntry fieldEntry : fields) {
+            if (fieldEntry.name.equals(name) && fieldEntry.desc.equals(desc)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private MethodEntry getMethod(String name, String desc) {
+        for (MethodEntry methodEntry : methods) {
+            if (methodEntry.name.equals(name) && methodEntry.desc.equals(desc)) {
+                return methodEntry;
+            }
+        }
+        return null;
+    }
+
+    public static TemplateIndex read(InputStream inputStream) throws IOException {
+        DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(inputStream));
+        if (dataInputStream.readInt() != MAGIC) {
+            throw new IOException("Not a template index");
+        }
+
+        int version = dataInputStream.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported template index version " + version);
+        }
+
+        TemplateIndex templateIndex = new TemplateIndex();
+
+        int fieldCount = dataInputStream.readUnsignedShort();
+        for (int i = 0; i < fieldCount; i++) {
+            templateIndex.fields.add(new FieldEntry(dataInputStream.readUTF(), dataInputStream.readUTF()));
+        }
+
+        int methodCount = dataInputStream.readUnsignedShort();
+        for (int i = 0; i < methodCount; i++) {
+            int kind = dataInputStream.readByte();
+            int flags = dataInputStream.readByte();
+            templateIndex.methods.add(new MethodEntry(kind, flags, dataInputStream.readUTF(), dataInputStream.readUTF(), dataInputStream.readUTF()));
+        }
+
+        return templateIndex;
+    }
+
+    public void write(OutputStream outputStream) throws IOException {
+        DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(outputStream));
+        dataOutputStream.writeInt(MAGIC);
+        dataOutputStream.writeByte(VERSION);
+
+        dataOutputStream.writeShort(fields.size());
+        for (FieldEntry fieldEntry : fields) {
+            dataOutputStream.writeUTF(fieldEntry.name);
+            dataOutputStream.writeUTF(fieldEntry.desc);
+        }
+
+        dataOutputStream.writeShort(methods.size());
+        for (MethodEntry methodEntry : methods) {
+            dataOutputStream.writeByte(methodEntry.kind);
+            dataOutputStream.writeByte(methodEntry.flags);
+            dataOutputStream.writeUTF(methodEntry.name);
+            dataOutputStream.writeUTF(methodEntry.desc);
+            dataOutputStream.writeUTF(methodEntry.signature);
+        }
+
+        dataOutputStream.flush();
+    }
+
+    /**
+     * Builds the index from the annotations of every declared member, as they appear in the class file
+     */
+    public static TemplateIndex scan(ClassNode templateNode) {
+        TemplateIndex templateIndex = new TemplateIndex();
+
+        for (FieldNode fieldNode : templateNode.fields) {
+            if (ASMUtils.getAnnotation(fieldNode.visibleAnnotations, MField.class) != null) {
+                templateIndex.fields.add(new FieldEntry(fieldNode.name, fieldNode.desc));
+            }
+        }
+
+        for (MethodNode methodNode : templateNode.methods) {
+            int kind = getKind(methodNode);
+            if (kind < 0)
+                continue;
+
+            int flags = getFlags(methodNode);
+
+            String signature = methodNode.desc;
+
+            AnnotationNode castParam = ASMUtils.getAnnotation(methodNode.visibleAnnotations, MCastParam.class);
+            if (castParam != null) {
+                signature = castSignature(signature, castParam);
+            }
+
+            // Constructors only ever took the single cast
+            AnnotationNode castParamList = ASMUtils.getAnnotation(methodNode.visibleAnnotations, MCastParamList.class);
+            if (castParamList != null && kind != CONSTRUCTOR) {
+                signature = methodNode.desc;
+                for (AnnotationNode annotationNode : getCastParams(castParamList)) {
+                    signature = castSignature(signature, annotationNode);
+                }
+            }
+
+            templateIndex.methods.add(new MethodEntry(kind, flags, methodNode.name, methodNode.desc, signature));
+        }
+
+        return templateIndex;
+    }
+
+    /**
+     * @return The kind of the method, or -1 if it has none
+     */
+    private static int getKind(MethodNode methodNode) {
+        if (ASMUtils.getAnnotation(methodNode.visibleAnnotations, MConstructor.class) != null) {
+            return CONSTRUCTOR;
+        } else if (ASMUtils.getAnnotation(methodNode.visibleAnnotations, MOverride.class) != null) {
+            return OVERRIDE;
+        } else if (ASMUtils.getAnnotation(methodNode.visibleAnnotations, MImplement.class) != null) {
+            return IMPLEMENT;
+        }
+        return -1;
+    }
+
+    private static int getFlags(MethodNode methodNode) {
+        int flags = 0;
+        if (ASMUtils.getAnnotation(methodNode.visibleAnnotations, MProfile.class) != null) {
+            flags |= FLAG_PROFILE;
+        }
+        if ((methodNode.access & Opcodes.ACC_STATIC) != 0) {
+            flags |= FLAG_STATIC;
+        }
+        return flags;
+    }
+
+    private static String castSignature(String signature, AnnotationNode castParam) {
+        return ASMUtils.castSignature(signature, (Integer) ASMUtils.getValue(castParam, "index"), (String) ASMUtils.getValue(castParam, "cast"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<AnnotationNode> getCastParams(AnnotationNode castParamList) {
+        return (List<AnnotationNode>) ASMUtils.getValue(castParamList, "castParams");
+    }
+}
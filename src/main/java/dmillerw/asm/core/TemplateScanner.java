@@ -0,0 +1,151 @@
+package dmillerw.asm.core;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Finds every {@link Template} subclass among a set of classes, along with the class each one targets, by reading
+ * class headers only. Nothing gets loaded
+ * <p/>
+ * Headers are read in parallel. Templates extending other templates in the same set are found as well, and
+ * inherit their parent's target unless they declare their own
+ */
+public class TemplateScanner {
+
+    private static final String TEMPLATE_TYPE = Type.getInternalName(Template.class);
+
+    public static class Result {
+
+        // Internal names
+        public final String template;
+        public final String target;
+
+        Result(String template, String target) {
+            this.template = template;
+            this.target = target;
+        }
+
+        @Override
+        public String toString() {
+            return "{template: " + template + ", target: " + target + "}";
+        }
+    }
+
+    /**
+     * Scans every class in the jar
+     */
+    public static List<Result> scan(JarBytecodeSource source, int threads) {
+        return scan(source, source.getClassNames(), threads);
+    }
+
+    public static List<Result> scan(final BytecodeSource source, Collection<String> classNames, int threads) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("asm-scanner-%d").build());
+        Map<String, Header> headers = Maps.newHashMap();
+
+        try {
+            List<Future<Header>> futures = Lists.newArrayList();
+            for (final String className : classNames) {
+                futures.add(executor.submit(new Callable<Header>() {
+                    @Override
+                    public Header call() throws Exception {
+                        byte[] data = source.getBytes(className);
+                        return data == null ? null : new Header(new ClassReader(data));
+                    }
+                }));
+            }
+
+            for (Future<Header> future : futures) {
+                Header header = future.get();
+                if (header != null) {
+                    headers.put(header.name, header);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while scanning for templates", ex);
+        } catch (ExecutionException ex) {
+            throw new RuntimeException("Failed to read class header", ex.getCause());
+        } finally {
+            executor.shutdown();
+        }
+
+        List<Result> results = Lists.newArrayList();
+        for (Header header : headers.values()) {
+            if (header.name.equals(TEMPLATE_TYPE))
+                continue;
+
+            String target = null;
+            Header current = header;
+            while (current != null && !current.superName.equals(TEMPLATE_TYPE)) {
+                if (target == null) {
+                    target = current.getTypeArgument();
+                }
+                current = headers.get(current.superName);
+            }
+
+            if (current != null) {
+                results.add(new Result(header.name, target == null ? current.getTypeArgument() : target));
+            }
+        }
+
+        return results;
+    }
+
+    private static class Header {
+
+        final String name;
+        final String superName;
+        final String signature;
+
+        Header(ClassReader classReader) {
+            this.name = classReader.getClassName();
+            this.superName = classReader.getSuperName() == null ? "" : classReader.getSuperName();
+
+            final String[] signature = new String[1];
+            classReader.accept(new ClassVisitor(Opcodes.ASM5) {
+                @Override
+                public void visit(int version, int access, String name, String sig, String superName, String[] interfaces) {
+                    signature[0] = sig;
+                }
+            }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+            this.signature = signature[0];
+        }
+
+        /**
+         * @return The first type argument given to the super class in the generic signature, if it's a class
+         */
+        String getTypeArgument() {
+            if (signature == null)
+                return null;
+
+            int start = signature.indexOf("L" + superName + "<");
+            if (start == -1)
+                return null;
+
+            start += superName.length() + 2;
+            if (signature.charAt(start) != 'L')
+                return null;
+
+            int end = start + 1;
+            while (signature.charAt(end) != ';' && signature.charAt(end) != '<') {
+                end++;
+            }
+
+            return signature.substring(start + 1, end);
+        }
+    }
+}
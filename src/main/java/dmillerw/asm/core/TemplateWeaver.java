@@ -0,0 +1,341 @@
+package dmillerw.asm.core;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import dmillerw.asm.annotation.MConstructor;
+import dmillerw.asm.annotation.MField;
+import dmillerw.asm.annotation.MImplement;
+import dmillerw.asm.annotation.MOverride;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Applies a template directly to the bytes of its target class, instead of generating a subclass
+ * <p/>
+ * Template fields and implemented methods are added to the target. An overridden method keeps its original body
+ * as a private default_ method, and the template body takes its place. Inherited methods get a default_ method
+ * that calls up to the super class. Private template methods are copied as-is. Template constructors are copied as private methods, and called at the end
+ * of every target constructor taking the same parameters
+ * <p/>
+ * Only the bytes of the template are read. Neither class is loaded, so this is safe to run from a
+ * {@link java.lang.instrument.ClassFileTransformer}
+ *
+ * @see TemplateAgent
+ */
+public class TemplateWeaver {
+
+    private static final String CONSTRUCTOR_PREFIX = "_construct_";
+
+    final ClassNode targetNode;
+    final ClassNode templateNode;
+    final ClassLoader classLoader;
+
+    final String targetType;
+    final String templateType;
+
+    // Template method nodes, keyed by the name + desc they get in the target
+    final Map<String, MethodNode> overrideMethods = Maps.newLinkedHashMap();
+    final List<MethodNode> implementMethods = Lists.newArrayList();
+    final List<MethodNode> constructors = Lists.newArrayList();
+    final List<MethodNode> privateMethods = Lists.newArrayList();
+    final List<FieldNode> fields = Lists.newArrayList();
+
+    /**
+     * @param classLoader The loader defining the target, used to resolve common super classes when computing frames
+     */
+    public TemplateWeaver(byte[] targetData, byte[] templateData, ClassLoader classLoader) {
+        this.targetNode = new ClassNode();
+        new ClassReader(targetData).accept(targetNode, 0);
+        this.templateNode = new ClassNode();
+        new ClassReader(templateData).accept(templateNode, 0);
+        this.classLoader = classLoader;
+
+        this.targetType = targetNode.name;
+        this.templateType = templateNode.name;
+
+        gatherTemplateFields();
+        gatherTemplateMethods();
+    }
+
+    private void gatherTemplateFields() {
+        for (FieldNode fieldNode : templateNode.fields) {
+            if (ASMUtils.getAnnotation(fieldNode.visibleAnnotations, MField.class) != null) {
+                fields.add(fieldNode);
+            }
+        }
+    }
+
+    private void gatherTemplateMethods() {
+        for (MethodNode methodNode : templateNode.methods) {
+            if (ASMUtils.getAnnotation(methodNode.visibleAnnotations, MConstructor.class) != null) {
+                constructors.add(methodNode);
+            } else if (ASMUtils.getAnnotation(methodNode.visibleAnnotations, MOverride.class) != null) {
+                if ((methodNode.access & ACC_STATIC) != 0) {
+                    SubclassGenerator.debug("Can't override static method " + methodNode.name + methodNode.desc);
+                    continue;
+                }
+                overrideMethods.put(methodNode.name + ASMUtils.castSignature(methodNode), methodNode);
+            } else if (ASMUtils.getAnnotation(methodNode.visibleAnnotations, MImplement.class) != null) {
+                implementMethods.add(methodNode);
+            } else if ((methodNode.access & ACC_PRIVATE) != 0) {
+                privateMethods.add(methodNode);
+            }
+        }
+    }
+
+    /**
+     * @return The bytes of the target class, with the template applied
+     */
+    public byte[] weave() {
+        for (FieldNode fieldNode : fields) {
+            if (getField(fieldNode.name) != null) {
+                throw new IllegalStateException(targetType + " already has a field named " + fieldNode.name);
+            }
+            targetNode.fields.add(new FieldNode(fieldNode.access, fieldNode.name, fieldNode.desc, null, null));
+        }
+
+        for (Map.Entry<String, MethodNode> entry : overrideMethods.entrySet()) {
+            MethodNode templateMethod = entry.getValue();
+            String desc = entry.getKey().substring(templateMethod.name.length());
+            overrideMethod(templateMethod, desc);
+        }
+
+        for (MethodNode methodNode : implementMethods) {
+            targetNode.methods.add(copyMethod(methodNode.access, methodNode.name, methodNode.desc, methodNode));
+        }
+
+        // The template's own helpers come along, since the copied bodies still call them
+        for (MethodNode methodNode : privateMethods) {
+            if (getMethod(methodNode.name, methodNode.desc) != null) {
+                throw new IllegalStateException(targetType + " already has a method " + methodNode.name + methodNode.desc);
+            }
+            targetNode.methods.add(copyMethod(methodNode.access, methodNode.name, methodNode.desc, methodNode));
+        }
+
+        for (MethodNode methodNode : constructors) {
+            addConstructor(methodNode);
+        }
+
+        ClassWriter classWriter = new FrameWriter(targetNode.version);
+        targetNode.accept(classWriter);
+        return classWriter.toByteArray();
+    }
+
+    private void overrideMethod(MethodNode templateMethod, String desc) {
+        MethodNode original = getMethod(templateMethod.name, desc);
+        int access = original == null ? ACC_PUBLIC : original.access;
+        MethodNode defNode;
+
+        if (original != null) {
+            if ((original.access & (ACC_STATIC | ACC_ABSTRACT | ACC_NATIVE)) != 0) {
+                SubclassGenerator.debug("Can't override static, abstract or native method " + targetType + "." + original.name + desc);
+                return;
+            }
+
+            // The original body moves to a private method, and the template body takes its place
+            targetNode.methods.remove(original);
+            defNode = original;
+            defNode.access = (original.access & ~(ACC_PUBLIC | ACC_PROTECTED | ACC_FINAL)) | ACC_PRIVATE;
+        } else {
+            // Inherited, so the default_ method calls up to the super class
+            defNode = new MethodNode(ACC_PRIVATE, templateMethod.name, desc, null, null);
+            defNode.instructions.add(new VarInsnNode(ALOAD, 0));
+            int local = 1;
+            for (Type type : Type.getArgumentTypes(desc)) {
+                defNode.instructions.add(new VarInsnNode(type.getOpcode(ILOAD), local));
+                local += type.getSize();
+            }
+            defNode.instructions.add(new MethodInsnNode(INVOKESPECIAL, targetNode.superName, templateMethod.name, desc, false));
+            defNode.instructions.add(new InsnNode(Type.getReturnType(desc).getOpcode(IRETURN)));
+        }
+
+        MethodNode override = copyMethod(access, templateMethod.name, desc, templateMethod);
+        defNode.name = "default_" + templateMethod.name;
+
+        targetNode.methods.add(defNode);
+        targetNode.methods.add(override);
+    }
+
+    /**
+     * Copies the template constructor into a private method, and calls it right before every target constructor
+     * with the same parameters returns
+     */
+    private void addConstructor(MethodNode templateMethod) {
+        String name = CONSTRUCTOR_PREFIX + templateMethod.name;
+        String params = templateMethod.desc.substring(0, templateMethod.desc.indexOf(')') + 1);
+        boolean matched = false;
+
+        for (MethodNode methodNode : targetNode.methods) {
+            if (!methodNode.name.equals("<init>") || !methodNode.desc.startsWith(params))
+                continue;
+
+            for (AbstractInsnNode insnNode = methodNode.instructions.getFirst(); insnNode != null; insnNode = insnNode.getNext()) {
+                if (insnNode.getOpcode() != RETURN)
+                    continue;
+
+                InsnList insnList = new InsnList();
+                insnList.add(new VarInsnNode(ALOAD, 0));
+                int local = 1;
+                for (Type type : Type.getArgumentTypes(templateMethod.desc)) {
+                    insnList.add(new VarInsnNode(type.getOpcode(ILOAD), local));
+                    local += type.getSize();
+                }
+                insnList.add(new MethodInsnNode(INVOKESPECIAL, targetType, name, templateMethod.desc, false));
+                methodNode.instructions.insertBefore(insnNode, insnList);
+            }
+            matched = true;
+        }
+
+        if (matched) {
+            targetNode.methods.add(copyMethod(ACC_PRIVATE, name, templateMethod.desc, templateMethod));
+        } else {
+            SubclassGenerator.debug(targetType + " has no constructor matching template constructor " + templateMethod.name + templateMethod.desc);
+        }
+    }
+
+    private MethodNode copyMethod(int access, String name, String desc, MethodNode templateMethod) {
+        MethodNode methodNode = new MethodNode(access, name, desc, null, templateMethod.exceptions.toArray(new String[templateMethod.exceptions.size()]));
+        NodeCopier nodeCopier = new NodeCopier(templateMethod.instructions);
+        methodNode.instructions = copyNodes(templateMethod, nodeCopier);
+
+        for (TryCatchBlockNode tryCatchBlockNode : templateMethod.tryCatchBlocks) {
+            methodNode.tryCatchBlocks.add(new TryCatchBlockNode(nodeCopier.getLabel(tryCatchBlockNode.start), nodeCopier.getLabel(tryCatchBlockNode.end), nodeCopier.getLabel(tryCatchBlockNode.handler), tryCatchBlockNode.type));
+        }
+
+        methodNode.maxStack = templateMethod.maxStack;
+        methodNode.maxLocals = templateMethod.maxLocals;
+        return methodNode;
+    }
+
+    /**
+     * Copies the template instructions, redirecting the same way {@link SubclassGenerator} does. Calls on _super
+     * go to the default_ method of an overridden method, or otherwise to the target's own method. Any other use of
+     * _super is simply the target instance
+     */
+    private InsnList copyNodes(MethodNode methodNode, NodeCopier nodeCopier) {
+        // Atomic fields are only supported in generated subclasses
+        AtomicFields.checkRewritten(templateType, methodNode, Collections.<AbstractInsnNode, InsnList>emptyMap());
+
+        InsnList insnList = new InsnList();
+        Set<AbstractInsnNode> superReceivers = FlowAnalysis.findSuperReceivers(templateType, methodNode);
+
+        for (AbstractInsnNode insnNode = methodNode.instructions.getFirst(); insnNode != null; insnNode = insnNode.getNext()) {
+            if (insnNode instanceof FrameNode) {
+                // Frames are recomputed for the woven class
+                continue;
+            }
+
+            if (insnNode instanceof FieldInsnNode && ((FieldInsnNode) insnNode).owner.equals(templateType)) {
+                FieldInsnNode fieldNode = (FieldInsnNode) insnNode;
+
+                if (fieldNode.name.equals("_super") && fieldNode.getOpcode() == GETFIELD) {
+                    // The instance the field is read from is already the target
+                    continue;
+                }
+
+                nodeCopier.copyTo(ASMUtils.redirect(fieldNode, targetType), insnList);
+            } else if (superReceivers.contains(insnNode) && insnNode instanceof MethodInsnNode) {
+                MethodInsnNode superCall = (MethodInsnNode) insnNode;
+                String name = overrideMethods.containsKey(superCall.name + superCall.desc) ? "default_" + superCall.name : superCall.name;
+                nodeCopier.copyTo(new MethodInsnNode(INVOKESPECIAL, targetType, name, superCall.desc, false), insnList);
+            } else if (insnNode instanceof MethodInsnNode && ((MethodInsnNode) insnNode).owner.equals(templateType)) {
+                nodeCopier.copyTo(ASMUtils.redirect((MethodInsnNode) insnNode, targetType), insnList);
+            } else if (insnNode instanceof TypeInsnNode && ((TypeInsnNode) insnNode).desc.equals(templateType)) {
+                // Casts to the template become casts to the target
+                nodeCopier.copyTo(new TypeInsnNode(insnNode.getOpcode(), targetType), insnList);
+            } else {
+                nodeCopier.copyTo(insnNode, insnList);
+            }
+        }
+
+        return insnList;
+    }
+
+    private MethodNode getMethod(String name, String desc) {
+        for (MethodNode methodNode : targetNode.methods) {
+            if (methodNode.name.equals(name) && methodNode.desc.equals(desc)) {
+                return methodNode;
+            }
+        }
+        return null;
+    }
+
+    private FieldNode getField(String name) {
+        for (FieldNode fieldNode : targetNode.fields) {
+            if (fieldNode.name.equals(name)) {
+                return fieldNode;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Computes frames for class files that need them. Types are resolved from their bytes, found through the
+     * target's loader, so nothing gets loaded while the target itself is loading
+     */
+    private class FrameWriter extends ClassWriter {
+
+        FrameWriter(int version) {
+            super((version & 0xFFFF) >= V1_6 ? COMPUTE_FRAMES : COMPUTE_MAXS);
+        }
+
+        @Override
+        protected String getCommonSuperClass(String type1, String type2) {
+            List<String> supers = getSuperClasses(type1);
+            if (supers.contains(type2)) {
+                return type2;
+            }
+
+            // Interfaces are only ever merged as Object, which the verifier accepts for them
+            for (String type = type2; type != null; type = getSuperName(type)) {
+                if (supers.contains(type)) {
+                    return type;
+                }
+            }
+            return "java/lang/Object";
+        }
+
+        /**
+         * @return The type followed by all of its super classes. An interface is followed by Object alone
+         */
+        private List<String> getSuperClasses(String type) {
+            List<String> supers = Lists.newArrayList();
+            for (; type != null; type = getSuperName(type)) {
+                supers.add(type);
+            }
+            return supers;
+        }
+
+        /**
+         * @return The super class of the type, or null for Object. Interfaces give Object
+         */
+        private String getSuperName(String type) {
+            if (type.equals("java/lang/Object")) {
+                return null;
+            } else if (type.equals(targetType)) {
+                return targetNode.superName;
+            }
+
+            ClassReader classReader;
+            try {
+                classReader = new ClassReader(ASMUtils.getBytes(type, classLoader));
+            } catch (Exception ex) {
+                throw new IllegalStateException("Failed to read " + type.replace('/', '.') + " to compute the frames of " + targetType.replace('/', '.'), ex);
+            }
+
+            if ((classReader.getAccess() & ACC_INTERFACE) != 0) {
+                return "java/lang/Object";
+            }
+            return classReader.getSuperName();
+        }
+    }
+}
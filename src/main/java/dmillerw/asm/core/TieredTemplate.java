@@ -0,0 +1,233 @@
+package dmillerw.asm.core;
+
+import com.google.common.collect.Maps;
+import dmillerw.asm.annotation.MCastParam;
+import dmillerw.asm.annotation.MCastParamList;
+import dmillerw.asm.annotation.MConstructor;
+import dmillerw.asm.annotation.MImplement;
+import dmillerw.asm.annotation.MOverride;
+import org.objectweb.asm.Type;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a template without generating anything until it's actually used
+ * <p/>
+ * While cold, instances are template objects whose _super is a plain instance of the super class, and calls go
+ * through MethodHandles bound to the template's own methods. Once the calls made through {@link #getMethod} add
+ * up to the threshold, the subclass is generated, and every call site switches over to it. Instances created from
+ * then on are instances of the generated class. Instances created before stay as they were, and keep working
+ * <pre>
+ * TieredTemplate&lt;ClassFoo&gt; tiered = TieredTemplate.create(ClassFoo.class, TemplateFoo.class, 1000);
+ * MethodHandle foo = tiered.getMethod("foo", MethodType.methodType(ClassBar.class, ClassBar.class));
+ * Object instance = tiered.newInstance();
+ * ClassBar result = (ClassBar) foo.invoke(instance, bar);
+ * </pre>
+ * Cold instances don't behave exactly like the generated class. Their _super is a separate object that knows
+ * nothing of the template, so when a super class method calls another method on itself, it gets the super class'
+ * version, not the template's override. For example, a super class save() calling getName() saves the original
+ * name from a cold instance, and the overridden one from a hot instance. The same goes for the super class
+ * constructor, and for anything the super class passes this to. Templates whose overrides must be seen from the
+ * super class' own code should be generated up front instead, with {@link SubclassGenerator}
+ * <p/>
+ * The super class needs a no-argument constructor, and only no-argument {@link MConstructor} methods run.
+ * Requires Java 7; nothing else in the library loads this class
+ */
+public class TieredTemplate<T> {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final MethodHandle SUPER_GETTER;
+    private static final MethodHandle IS_INSTANCE;
+    private static final MethodHandle COUNT;
+
+    static {
+        try {
+            SUPER_GETTER = LOOKUP.findGetter(Template.class, "_super", Object.class);
+            IS_INSTANCE = LOOKUP.findVirtual(Class.class, "isInstance", MethodType.methodType(boolean.class, Object.class));
+            COUNT = LOOKUP.findVirtual(TieredTemplate.class, "count", MethodType.methodType(void.class));
+        } catch (Exception ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    public static <T> TieredTemplate<T> create(Class<T> superClass, Class<? extends Template<T>> templateClass, int threshold) {
+        return new TieredTemplate<T>(superClass, templateClass, threshold);
+    }
+
+    final Class<T> superClass;
+    final Class<? extends Template<T>> templateClass;
+    final int threshold;
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    // Keyed by name + the method type, without the receiver
+    private final Map<String, MutableCallSite> callSites = Maps.newHashMap();
+
+    private volatile Class<T> generatedClass;
+
+    private TieredTemplate(Class<T> superClass, Class<? extends Template<T>> templateClass, int threshold) {
+        this.superClass = superClass;
+        this.templateClass = templateClass;
+        this.threshold = threshold;
+    }
+
+    /**
+     * @return A new instance of the generated class if the template is hot, otherwise a new template object
+     */
+    public Object newInstance() {
+        try {
+            Class<T> generatedClass = this.generatedClass;
+            if (generatedClass != null) {
+                return generatedClass.newInstance();
+            }
+
+            Template<T> template = templateClass.newInstance();
+            template._super = superClass.newInstance();
+
+            for (Method method : templateClass.getDeclaredMethods()) {
+                if (method.getAnnotation(MConstructor.class) != null && method.getParameterTypes().length == 0) {
+                    method.setAccessible(true);
+                    method.invoke(template);
+                }
+            }
+
+            return template;
+        } catch (Exception ex) {
+            throw new RuntimeException("Failed to create an instance of " + templateClass.getName(), ex);
+        }
+    }
+
+    /**
+     * @param type The method's type as the generated class declares it, so with any {@link MCastParam} applied,
+     * and without the receiver
+     * @return A handle taking the receiver, as an Object, followed by the arguments. It always calls the current
+     * tier of the receiver. On a cold receiver, a method the template doesn't override runs on _super, where any
+     * calls it makes to overridden methods get the super class' versions
+     */
+    public synchronized MethodHandle getMethod(String name, MethodType type) {
+        String key = name + type.toMethodDescriptorString();
+
+        MutableCallSite callSite = callSites.get(key);
+        if (callSite == null) {
+            MethodType siteType = type.insertParameterTypes(0, Object.class);
+            callSite = new MutableCallSite(siteType);
+
+            MethodHandle cold = getColdHandle(name, type).asType(siteType);
+            if (generatedClass == null) {
+                // Count the call, then make it
+                callSite.setTarget(MethodHandles.foldArguments(cold, COUNT.bindTo(this)));
+            } else {
+                callSite.setTarget(getTieredHandle(name, type, cold));
+            }
+
+            callSites.put(key, callSite);
+        }
+
+        return callSite.dynamicInvoker();
+    }
+
+    /**
+     * @return Whether the subclass has been generated
+     */
+    public boolean isHot() {
+        return generatedClass != null;
+    }
+
+    /**
+     * @return The generated subclass, or null while the template is cold
+     */
+    public Class<T> getGeneratedClass() {
+        return generatedClass;
+    }
+
+    @SuppressWarnings("unused")
+    private void count() {
+        if (calls.incrementAndGet() == threshold) {
+            promote();
+        }
+    }
+
+    /**
+     * Generates the subclass now, and switches every call site over to it
+     */
+    public synchronized void promote() {
+        if (generatedClass != null)
+            return;
+
+        SubclassGenerator.debug("Promoting " + templateClass.getName() + " after " + calls.get() + " calls");
+        generatedClass = SubclassGenerator.generateSubclass(superClass, templateClass);
+
+        for (Map.Entry<String, MutableCallSite> entry : callSites.entrySet()) {
+            MutableCallSite callSite = entry.getValue();
+            MethodType type = callSite.type().dropParameterTypes(0, 1);
+            String name = entry.getKey().substring(0, entry.getKey().indexOf('('));
+
+            callSite.setTarget(getTieredHandle(name, type, getColdHandle(name, type).asType(callSite.type())));
+        }
+
+        MutableCallSite.syncAll(callSites.values().toArray(new MutableCallSite[callSites.size()]));
+    }
+
+    /**
+     * @return A handle calling the generated class' method for instances of it, and the cold handle for the rest
+     */
+    private MethodHandle getTieredHandle(String name, MethodType type, MethodHandle cold) {
+        try {
+            MethodHandle hot = LOOKUP.findVirtual(generatedClass, name, type).asType(cold.type());
+            MethodHandle test = IS_INSTANCE.bindTo(generatedClass);
+            test = MethodHandles.dropArguments(test, 1, type.parameterList());
+            return MethodHandles.guardWithTest(test, hot, cold);
+        } catch (Exception ex) {
+            throw new RuntimeException("Failed to find " + name + type + " in " + generatedClass.getName(), ex);
+        }
+    }
+
+    /**
+     * @return A handle taking a template object, that calls the template's method if it overrides or implements
+     * the method, or the method of its _super otherwise
+     */
+    private MethodHandle getColdHandle(String name, MethodType type) {
+        String desc = type.toMethodDescriptorString();
+
+        try {
+            for (Method method : templateClass.getDeclaredMethods()) {
+                if (!method.getName().equals(name) || (method.getAnnotation(MOverride.class) == null && method.getAnnotation(MImplement.class) == null))
+                    continue;
+
+                if (castSignature(method).equals(desc)) {
+                    method.setAccessible(true);
+                    return LOOKUP.unreflect(method);
+                }
+            }
+
+            MethodHandle handle = LOOKUP.findVirtual(superClass, name, type);
+            return MethodHandles.filterArguments(handle, 0, SUPER_GETTER.asType(MethodType.methodType(superClass, templateClass)));
+        } catch (Exception ex) {
+            throw new RuntimeException("Failed to find " + name + type + " in " + templateClass.getName() + " or " + superClass.getName(), ex);
+        }
+    }
+
+    private static String castSignature(Method method) {
+        String desc = Type.getMethodDescriptor(method);
+
+        MCastParam castParam = method.getAnnotation(MCastParam.class);
+        if (castParam != null) {
+            desc = ASMUtils.castSignature(desc, castParam);
+        }
+
+        MCastParamList castParamList = method.getAnnotation(MCastParamList.class);
+        if (castParamList != null) {
+            for (MCastParam param : castParamList.castParams()) {
+                desc = ASMUtils.castSignature(desc, param);
+            }
+        }
+
+        return desc;
+    }
+}
@@ -0,0 +1,160 @@
+package dmillerw.asm.core;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import org.objectweb.asm.Type;
+
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The concrete classes passed as each reference argument of one override, in a class generated with type
+ * profiling on
+ *
+ * @see SubclassGenerator#setTypeProfiling(boolean)
+ * @see SpecializingFactory
+ */
+public class TypeProfile {
+
+    public static final String TYPE_PROFILE_PREFIX = "_types_";
+
+    // Beyond this many classes per argument, the argument counts as megamorphic and new classes aren't kept
+    static final int MAX_TYPES = 8;
+
+    private static final ConcurrentMap<Class<?>, Map<String, TypeProfile>> PROFILES = new MapMaker().weakKeys().makeMap();
+
+    /**
+     * @return Every type profile of the generated class, keyed by method name and descriptor
+     */
+    public static Map<String, TypeProfile> get(Class<?> generatedClass) {
+        Map<String, TypeProfile> profiles = PROFILES.get(generatedClass);
+        return profiles == null ? Collections.<String, TypeProfile>emptyMap() : profiles;
+    }
+
+    /**
+     * Creates a profile for each field and writes it into the freshly defined class
+     *
+     * @param methods The name and descriptor of the profiled method, keyed by its profile field
+     */
+    static void install(Class<?> generatedClass, Map<String, String> methods) {
+        Map<String, TypeProfile> profiles = Maps.newLinkedHashMap();
+
+        for (Map.Entry<String, String> entry : methods.entrySet()) {
+            String method = entry.getValue();
+            TypeProfile profile = new TypeProfile(method, Type.getArgumentTypes(method.substring(method.indexOf('('))).length);
+            try {
+                Field field = generatedClass.getField(entry.getKey());
+                field.set(null, profile);
+            } catch (Exception ex) {
+                throw new RuntimeException("Failed to install type profile for " + method + " into " + generatedClass.getName(), ex);
+            }
+            profiles.put(method, profile);
+        }
+
+        PROFILES.put(generatedClass, Collections.unmodifiableMap(profiles));
+    }
+
+    final String method;
+
+    // Per argument, how often each class was seen
+    private final List<ConcurrentMap<Class<?>, AtomicLong>> types;
+    // Per argument, how many samples didn't fit in the map
+    private final AtomicLong[] overflow;
+
+    TypeProfile(String method, int arguments) {
+        this.method = method;
+        this.types = Lists.newArrayListWithCapacity(arguments);
+        this.overflow = new AtomicLong[arguments];
+
+        for (int i = 0; i < arguments; i++) {
+            types.add(Maps.<Class<?>, AtomicLong>newConcurrentMap());
+            overflow[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Called by the generated override on entry, for each reference argument. Nulls aren't counted
+     */
+    public void record(int argument, Object value) {
+        if (value == null)
+            return;
+
+        ConcurrentMap<Class<?>, AtomicLong> counts = types.get(argument);
+        AtomicLong count = counts.get(value.getClass());
+        if (count == null) {
+            if (counts.size() >= MAX_TYPES) {
+                overflow[argument].incrementAndGet();
+                return;
+            }
+
+            AtomicLong existing = counts.putIfAbsent(value.getClass(), count = new AtomicLong());
+            if (existing != null) {
+                count = existing;
+            }
+        }
+
+        count.incrementAndGet();
+    }
+
+    /**
+     * @return How many non-null values were seen for the argument
+     */
+    public long getSamples(int argument) {
+        long samples = overflow[argument].get();
+        for (AtomicLong count : types.get(argument).values()) {
+            samples += count.get();
+        }
+        return samples;
+    }
+
+    /**
+     * @return The most samples seen for any argument
+     */
+    public long getSamples() {
+        long samples = 0;
+        for (int i = 0; i < types.size(); i++) {
+            samples = Math.max(samples, getSamples(i));
+        }
+        return samples;
+    }
+
+    /**
+     * @return The class making up at least the given share of the argument's samples, or null if there's none
+     */
+    public Class<?> getDominantType(int argument, double ratio) {
+        long samples = getSamples(argument);
+        if (samples == 0)
+            return null;
+
+        for (Map.Entry<Class<?>, AtomicLong> entry : types.get(argument).entrySet()) {
+            if (entry.getValue().get() >= samples * ratio) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    public void reset() {
+        for (int i = 0; i < types.size(); i++) {
+            types.get(i).clear();
+            overflow[i].set(0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder stringBuilder = new StringBuilder("{method: " + method);
+        for (int i = 0; i < types.size(); i++) {
+            stringBuilder.append(", ").append(i).append(": ").append(types.get(i));
+            if (overflow[i].get() > 0) {
+                stringBuilder.append(" + ").append(overflow[i].get()).append(" more");
+            }
+        }
+        return stringBuilder.append("}").toString();
+    }
+}
@@ -0,0 +1,98 @@
+package dmillerw.asm.core;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Records which (super class, template) pairs get generated during a run, so the next run can generate them
+ * in the background before the application asks for them
+ * <p/>
+ * The manifest is a plain text file, one pair per line: the binary name of the super class, a space, then the
+ * binary name of the template
+ */
+public class WarmupManifest {
+
+    private static File recording;
+    private static final Set<String> recorded = Sets.newHashSet();
+
+    /**
+     * Appends every pair generated through {@link SubclassCache} from now on to the given file. Pairs already in
+     * the file are not written again
+     */
+    public static synchronized void record(File file) throws IOException {
+        recorded.clear();
+        if (file.exists()) {
+            recorded.addAll(Files.readLines(file, Charsets.UTF_8));
+        }
+        recording = file;
+    }
+
+    /**
+     * Starts generating every pair listed in the manifest on a pool of daemon threads. Pairs whose classes can't
+     * be found or fail to generate are skipped, and will simply be generated on request instead
+     *
+     * @return The pool doing the work, already shut down so it exits once the manifest has been replayed
+     */
+    public static ExecutorService replay(File file, final ClassLoader classLoader, int threads) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("asm-warmup-%d").build());
+
+        List<String> lines = file.exists() ? Files.readLines(file, Charsets.UTF_8) : Lists.<String>newArrayList();
+        for (final String line : lines) {
+            final String[] names = line.trim().split(" ");
+            if (names.length != 2)
+                continue;
+
+            executor.execute(new Runnable() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public void run() {
+                    try {
+                        Class<?> superClass = Class.forName(names[0], false, classLoader);
+                        Class<?> templateClass = Class.forName(names[1], false, classLoader);
+                        SubclassCache.pregenerate(superClass, (Class<? extends Template<?>>) templateClass);
+                    } catch (Throwable throwable) {
+                        System.out.println("WARN: Failed to pre-generate " + line + ": " + throwable);
+                    }
+                }
+            });
+        }
+
+        executor.shutdown();
+        return executor;
+    }
+
+    /**
+     * @return How the first request for each pair was served since startup
+     */
+    public static String report() {
+        int warm = SubclassCache.WARM.get();
+        int waited = SubclassCache.WAITED.get();
+        int cold = SubclassCache.COLD.get();
+        return "{warm: " + warm + ", waited: " + waited + ", cold: " + cold + ", total: " + (warm + waited + cold) + "}";
+    }
+
+    static synchronized void generated(Class<?> superClass, Class<?> templateClass) {
+        if (recording == null)
+            return;
+
+        String line = superClass.getName() + " " + templateClass.getName();
+        if (!recorded.add(line))
+            return;
+
+        try {
+            Files.append(line + "\n", recording, Charsets.UTF_8);
+        } catch (IOException ex) {
+            System.out.println("WARN: Failed to write warmup manifest " + recording + ": " + ex);
+        }
+    }
+}
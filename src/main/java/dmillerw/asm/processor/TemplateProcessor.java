@@ -0,0 +1,484 @@
+package dmillerw.asm.processor;
+
+import dmillerw.asm.annotation.*;
+import dmillerw.asm.core.TemplateIndex;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.*;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+
+/**
+ * Checks template annotations while the templates compile, and writes each template's {@link TemplateIndex} next
+ * to its class file, so generating from it doesn't have to reflect over the template
+ * <p/>
+ * Registered as a service, so putting the library on the processor path is enough. Errors here are the ones
+ * the generator would otherwise only hit, or quietly skip, at runtime:
+ * <ul>
+ * <li>Annotated members outside of a {@link dmillerw.asm.core.Template} subclass</li>
+ * <li>More than one of {@link MConstructor}, {@link MOverride} and {@link MImplement} on a method</li>
+ * <li>{@link MConstructor} methods that aren't void, or are static</li>
+ * <li>{@link MCastParam} indices out of range, or pointing at a primitive</li>
+ * <li>{@link MOverride} methods the target class has no overridable method for</li>
+ * <li>{@link MRange} on anything but an integral field, or with min above max</li>
+ * <li>{@link MCache} on void methods, or with a size below 1 or a negative expiry</li>
+ * <li>{@link MGuarded} striped by an argument the method doesn't have</li>
+ * <li>{@link MLazy} on primitive or static fields, or naming an initializer the template doesn't have</li>
+ * <li>{@link MAtomic} on static, lazy or anything but int, long and reference fields, or striped on anything but
+ * a long</li>
+ * <li>{@link MCopy} on fields of a template without it, deep on primitive fields, or with override on a field</li>
+ * <li>{@link MSwappable} naming a variant the template has no instance method of the same descriptor for</li>
+ * </ul>
+ */
+public class TemplateProcessor extends AbstractProcessor {
+
+    private static final String TEMPLATE_CLASS = "dmillerw.asm.core.Template";
+
+    private static final List<Class<?>> ANNOTATIONS = Arrays.<Class<?>>asList(MField.class, MRange.class, MConstructor.class, MOverride.class, MImplement.class, MCastParam.class, MCastParamList.class, MProfile.class, MCache.class, MAsync.class, MGuarded.class, MLazy.class, MAtomic.class, MCopy.class, MSwappable.class);
+
+    private Messager messager;
+    private Elements elements;
+    private Types types;
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        Set<String> names = new HashSet<String>();
+        for (Class<?> annotation : ANNOTATIONS) {
+            names.add(annotation.getName());
+        }
+        return names;
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        messager = processingEnv.getMessager();
+        elements = processingEnv.getElementUtils();
+        types = processingEnv.getTypeUtils();
+
+        // Every template with an annotated member this round
+        Set<TypeElement> templates = new LinkedHashSet<TypeElement>();
+        for (Class<?> annotation : ANNOTATIONS) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(elements.getTypeElement(annotation.getName()))) {
+                templates.add(element instanceof TypeElement ? (TypeElement) element : (TypeElement) element.getEnclosingElement());
+            }
+        }
+
+        for (TypeElement template : templates) {
+            if (!isTemplate(template.asType())) {
+                error(template, template.getQualifiedName() + " has template annotations, but doesn't extend " + TEMPLATE_CLASS);
+                continue;
+            }
+
+            TemplateIndex templateIndex = new TemplateIndex();
+            boolean valid = true;
+
+            for (VariableElement field : ElementFilter.fieldsIn(template.getEnclosedElements())) {
+                valid &= checkField(field, templateIndex);
+            }
+
+            DeclaredType target = getTarget(template.asType());
+            for (ExecutableElement method : ElementFilter.methodsIn(template.getEnclosedElements())) {
+                valid &= checkMethod(method, target, templateIndex);
+            }
+
+            if (valid) {
+                writeIndex(template, templateIndex);
+            }
+        }
+
+        return false;
+    }
+
+    private boolean checkField(VariableElement field, TemplateIndex templateIndex) {
+        boolean mField = field.getAnnotation(MField.class) != null;
+        MRange mRange = field.getAnnotation(MRange.class);
+
+        if (mRange != null) {
+            if (!mField) {
+                warning(field, "@MRange does nothing without @MField");
+            }
+
+            TypeKind kind = field.asType().getKind();
+            if (kind != TypeKind.BYTE && kind != TypeKind.SHORT && kind != TypeKind.CHAR && kind != TypeKind.INT && kind != TypeKind.LONG) {
+                return error(field, "@MRange only applies to integral fields");
+            }
+            if (mRange.min() > mRange.max()) {
+                return error(field, "@MRange min " + mRange.min() + " is above max " + mRange.max());
+            }
+        }
+
+        MLazy mLazy = field.getAnnotation(MLazy.class);
+
+        if (mLazy != null) {
+            if (!mField) {
+                warning(field, "@MLazy does nothing without @MField");
+            }
+            if (field.asType().getKind().isPrimitive() || field.getModifiers().contains(Modifier.STATIC)) {
+                return error(field, "@MLazy only applies to instance fields holding references");
+            }
+            if (!hasInitializer((TypeElement) field.getEnclosingElement(), mLazy.value(), field.asType())) {
+                return error(field, "@MLazy initializer " + mLazy.value() + "() returning " + field.asType() + " not found");
+            }
+        }
+
+        MAtomic mAtomic = field.getAnnotation(MAtomic.class);
+
+        if (mAtomic != null) {
+            if (!mField) {
+                warning(field, "@MAtomic does nothing without @MField");
+            }
+
+            TypeKind kind = field.asType().getKind();
+            if (field.getModifiers().contains(Modifier.STATIC) || mLazy != null) {
+                return error(field, "@MAtomic only applies to instance fields that aren't lazy");
+            }
+            if (kind.isPrimitive() && kind != TypeKind.INT && kind != TypeKind.LONG) {
+                return error(field, "@MAtomic only applies to int, long and reference fields");
+            }
+            if (mAtomic.striped() && kind != TypeKind.LONG) {
+                return error(field, "@MAtomic striped only applies to long fields");
+            }
+        }
+
+        MCopy mCopy = field.getAnnotation(MCopy.class);
+
+        if (mCopy != null) {
+            if (!mField || field.getModifiers().contains(Modifier.STATIC)) {
+                warning(field, "@MCopy only applies to instance @MField fields");
+            } else if (field.getEnclosingElement().getAnnotation(MCopy.class) == null) {
+                warning(field, "@MCopy on a field does nothing unless the template has @MCopy");
+            } else if (mCopy.value() == MCopy.Mode.DEEP && field.asType().getKind().isPrimitive()) {
+                warning(field, "@MCopy DEEP on a primitive field copies it as it is");
+            } else if (mCopy.override()) {
+                warning(field, "@MCopy override only applies to templates");
+            }
+        }
+
+        if (mField) {
+            templateIndex.fields.add(new TemplateIndex.FieldEntry(field.getSimpleName().toString(), getDescriptor(field.asType())));
+        }
+
+        return true;
+    }
+
+    /**
+     * @return Whether the template declares a method of that name with no parameters, returning exactly the type.
+     * The generator matches the descriptor, so a subtype won't do
+     */
+    private boolean hasInitializer(TypeElement template, String name, TypeMirror type) {
+        for (ExecutableElement method : ElementFilter.methodsIn(template.getEnclosedElements())) {
+            if (method.getSimpleName().contentEquals(name) && method.getParameters().isEmpty() && types.isSameType(types.erasure(method.getReturnType()), types.erasure(type))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Whether the template declares an instance method of that name with exactly the descriptor
+     */
+    private boolean hasVariant(TypeElement template, String name, String desc) {
+        for (ExecutableElement method : ElementFilter.methodsIn(template.getEnclosedElements())) {
+            if (method.getSimpleName().contentEquals(name) && !method.getModifiers().contains(Modifier.STATIC) && getDescriptor(method).equals(desc)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean checkMethod(ExecutableElement method, DeclaredType target, TemplateIndex templateIndex) {
+        int kind = -1;
+        int count = 0;
+        if (method.getAnnotation(MConstructor.class) != null) {
+            kind = TemplateIndex.CONSTRUCTOR;
+            count++;
+        }
+        if (method.getAnnotation(MOverride.class) != null) {
+            kind = TemplateIndex.OVERRIDE;
+            count++;
+        }
+        if (method.getAnnotation(MImplement.class) != null) {
+            kind = TemplateIndex.IMPLEMENT;
+            count++;
+        }
+
+        MCastParam mCastParam = method.getAnnotation(MCastParam.class);
+        MCastParamList mCastParamList = method.getAnnotation(MCastParamList.class);
+        boolean profile = method.getAnnotation(MProfile.class) != null;
+        boolean isStatic = method.getModifiers().contains(Modifier.STATIC);
+
+        if (count == 0) {
+            if (mCastParam != null || mCastParamList != null || profile) {
+                warning(method, "@MCastParam, @MCastParamList and @MProfile do nothing without @MConstructor, @MOverride or @MImplement");
+            }
+            return true;
+        } else if (count > 1) {
+            return error(method, "Only one of @MConstructor, @MOverride and @MImplement can be used on a method");
+        }
+
+        if (kind == TemplateIndex.CONSTRUCTOR) {
+            if (method.getReturnType().getKind() != TypeKind.VOID) {
+                return error(method, "@MConstructor methods must return void");
+            }
+            if (isStatic) {
+                return error(method, "@MConstructor methods can't be static");
+            }
+            if (mCastParamList != null) {
+                warning(method, "@MCastParamList is ignored on @MConstructor methods");
+            }
+        }
+
+        String desc = getDescriptor(method);
+        String signature = desc;
+
+        if (mCastParam != null) {
+            signature = castSignature(method, signature, mCastParam);
+            if (signature == null)
+                return false;
+        }
+
+        // Same as the generator: a list replaces the single cast, and constructors only take the single cast
+        if (mCastParamList != null && kind != TemplateIndex.CONSTRUCTOR) {
+            signature = desc;
+            for (MCastParam castParam : mCastParamList.castParams()) {
+                signature = castSignature(method, signature, castParam);
+                if (signature == null)
+                    return false;
+            }
+        }
+
+        if (kind == TemplateIndex.OVERRIDE) {
+            if (isStatic) {
+                return error(method, "@MOverride methods can't be static");
+            }
+            if (target != null && !hasOverridableMethod(target, method.getSimpleName().toString(), signature)) {
+                return error(method, target + " has no overridable method " + method.getSimpleName() + signature);
+            }
+        }
+
+        if (profile && isStatic) {
+            warning(method, "Static methods can't be profiled, @MProfile is ignored");
+        }
+
+        MCache mCache = method.getAnnotation(MCache.class);
+        if (mCache != null) {
+            if (kind != TemplateIndex.OVERRIDE) {
+                warning(method, "@MCache only applies to @MOverride methods, it's ignored");
+            } else if (method.getReturnType().getKind() == TypeKind.VOID) {
+                return error(method, "@MCache methods can't return void");
+            } else if (mCache.maxSize() <= 0) {
+                return error(method, "@MCache maxSize must be positive, was " + mCache.maxSize());
+            } else if (mCache.expireAfter() < 0) {
+                return error(method, "@MCache expireAfter can't be negative, was " + mCache.expireAfter());
+            }
+        }
+
+        if (method.getAnnotation(MAsync.class) != null && kind != TemplateIndex.OVERRIDE) {
+            warning(method, "@MAsync only applies to @MOverride methods, it's ignored");
+        }
+
+        MGuarded mGuarded = method.getAnnotation(MGuarded.class);
+        if (mGuarded != null) {
+            if (kind != TemplateIndex.OVERRIDE) {
+                warning(method, "@MGuarded only applies to @MOverride methods, it's ignored");
+            } else if (mGuarded.value() == MGuarded.Mode.STRIPED && (mGuarded.key() < 0 || mGuarded.key() >= method.getParameters().size())) {
+                return error(method, "@MGuarded key " + mGuarded.key() + " is out of range, the method has " + method.getParameters().size() + " parameters");
+            }
+        }
+
+        MSwappable mSwappable = method.getAnnotation(MSwappable.class);
+        if (mSwappable != null) {
+            if (kind != TemplateIndex.OVERRIDE) {
+                warning(method, "@MSwappable only applies to @MOverride methods, it's ignored");
+            } else {
+                for (String variant : mSwappable.value()) {
+                    if (!hasVariant((TypeElement) method.getEnclosingElement(), variant, desc)) {
+                        return error(method, "@MSwappable variant " + variant + desc + " not found");
+                    }
+                }
+            }
+        }
+
+        int flags = 0;
+        if (profile) {
+            flags |= TemplateIndex.FLAG_PROFILE;
+        }
+        if (isStatic) {
+            flags |= TemplateIndex.FLAG_STATIC;
+        }
+
+        templateIndex.methods.add(new TemplateIndex.MethodEntry(kind, flags, method.getSimpleName().toString(), desc, signature));
+        return true;
+    }
+
+    /**
+     * Applies a cast the way ASMUtils.castSignature does, reporting casts it would silently ignore
+     *
+     * @return The cast signature, or null if the cast is invalid
+     */
+    private String castSignature(ExecutableElement method, String signature, MCastParam castParam) {
+        List<String> params = splitParams(signature);
+        String returnType = signature.substring(signature.indexOf(')') + 1);
+        int index = castParam.index();
+
+        if (index < -1 || index >= params.size()) {
+            error(method, "@MCastParam index " + index + " is out of range, the method has " + params.size() + " parameters");
+            return null;
+        }
+
+        String sig = index == -1 ? returnType : params.get(index);
+        if (sig.length() == 1) {
+            error(method, "@MCastParam index " + index + " points to a primitive or void, which can't be cast");
+            return null;
+        }
+        if (castParam.cast().isEmpty()) {
+            error(method, "@MCastParam cast is empty");
+            return null;
+        }
+
+        String cast = castParam.cast().replace(".", "/");
+        sig = sig.contains("[") ? "[L" + cast + ";" : "L" + cast + ";";
+
+        if (index == -1) {
+            returnType = sig;
+        } else {
+            params.set(index, sig);
+        }
+
+        StringBuilder stringBuilder = new StringBuilder("(");
+        for (String param : params) {
+            stringBuilder.append(param);
+        }
+        return stringBuilder.append(')').append(returnType).toString();
+    }
+
+    private static List<String> splitParams(String signature) {
+        List<String> params = new ArrayList<String>();
+
+        int i = 1;
+        while (signature.charAt(i) != ')') {
+            int start = i;
+            while (signature.charAt(i) == '[') {
+                i++;
+            }
+            i = signature.charAt(i) == 'L' ? signature.indexOf(';', i) + 1 : i + 1;
+            params.add(signature.substring(start, i));
+        }
+
+        return params;
+    }
+
+    /**
+     * Walks the target's classes like the generator does. Interfaces aren't searched, and neither are final,
+     * static or private methods, which can't be overridden
+     */
+    private boolean hasOverridableMethod(DeclaredType target, String name, String signature) {
+        TypeMirror current = target;
+        while (current.getKind() == TypeKind.DECLARED) {
+            TypeElement typeElement = (TypeElement) ((DeclaredType) current).asElement();
+
+            for (ExecutableElement method : ElementFilter.methodsIn(typeElement.getEnclosedElements())) {
+                if (method.getSimpleName().contentEquals(name) && getDescriptor(method).equals(signature)) {
+                    Set<Modifier> modifiers = method.getModifiers();
+                    return !modifiers.contains(Modifier.FINAL) && !modifiers.contains(Modifier.STATIC) && !modifiers.contains(Modifier.PRIVATE);
+                }
+            }
+
+            current = typeElement.getSuperclass();
+        }
+        return false;
+    }
+
+    private boolean isTemplate(TypeMirror type) {
+        return getTemplateType(type) != null;
+    }
+
+    /**
+     * @return The class the template targets, or null if it's a type variable or missing
+     */
+    private DeclaredType getTarget(TypeMirror type) {
+        DeclaredType templateType = getTemplateType(type);
+        if (templateType == null || templateType.getTypeArguments().isEmpty())
+            return null;
+
+        TypeMirror target = templateType.getTypeArguments().get(0);
+        return target.getKind() == TypeKind.DECLARED ? (DeclaredType) target : null;
+    }
+
+    private DeclaredType getTemplateType(TypeMirror type) {
+        while (type.getKind() == TypeKind.DECLARED) {
+            TypeElement typeElement = (TypeElement) ((DeclaredType) type).asElement();
+            if (typeElement.getQualifiedName().contentEquals(TEMPLATE_CLASS)) {
+                return (DeclaredType) type;
+            }
+            type = typeElement.getSuperclass();
+        }
+        return null;
+    }
+
+    private String getDescriptor(ExecutableElement method) {
+        StringBuilder stringBuilder = new StringBuilder("(");
+        for (VariableElement parameter : method.getParameters()) {
+            stringBuilder.append(getDescriptor(parameter.asType()));
+        }
+        return stringBuilder.append(')').append(getDescriptor(method.getReturnType())).toString();
+    }
+
+    private String getDescriptor(TypeMirror type) {
+        switch (type.getKind()) {
+            case BOOLEAN: return "Z";
+            case BYTE: return "B";
+            case SHORT: return "S";
+            case CHAR: return "C";
+            case INT: return "I";
+            case LONG: return "J";
+            case FLOAT: return "F";
+            case DOUBLE: return "D";
+            case VOID: return "V";
+            case ARRAY: return "[" + getDescriptor(((ArrayType) type).getComponentType());
+            case DECLARED: return "L" + elements.getBinaryName((TypeElement) ((DeclaredType) type).asElement()).toString().replace(".", "/") + ";";
+            default: return getDescriptor(types.erasure(type));
+        }
+    }
+
+    private void writeIndex(TypeElement template, TemplateIndex templateIndex) {
+        String templateType = elements.getBinaryName(template).toString().replace(".", "/");
+
+        try {
+            FileObject fileObject = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", TemplateIndex.getResourceName(templateType), template);
+            OutputStream outputStream = fileObject.openOutputStream();
+            try {
+                templateIndex.write(outputStream);
+            } finally {
+                outputStream.close();
+            }
+        } catch (IOException ex) {
+            messager.printMessage(Diagnostic.Kind.WARNING, "Failed to write template index of " + templateType + ": " + ex.getMessage(), template);
+        }
+    }
+
+    private boolean error(Element element, String msg) {
+        messager.printMessage(Diagnostic.Kind.ERROR, msg, element);
+        return false;
+    }
+
+    private void warning(Element element, String msg) {
+        messager.printMessage(Diagnostic.Kind.WARNING, msg, element);
+    }
+}
@@ -0,0 +1,33 @@
+package dmillerw.asm.test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timing and result keeping shared by the benchmarks in this package
+ */
+final class Benchmarks {
+
+    // Written once a benchmark is done, so the work that produced the value can't be optimized away
+    private static volatile Object sink;
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Prints the time per operation since the start, and the operations per second
+     *
+     * @param operation What one iteration does, with its plural after, such as "copy" and "copies"
+     */
+    static void report(String name, long start, int iterations, String operation, String operations) {
+        long elapsed = System.nanoTime() - start;
+        System.out.println(name + ": " + String.format("%.2f", (double) elapsed / iterations) + " ns per " + operation + ", " + (iterations * TimeUnit.SECONDS.toNanos(1) / Math.max(1, elapsed)) + " " + operations + "/s");
+    }
+
+    static void consume(Object value) {
+        sink = value;
+    }
+
+    static void consume(long value) {
+        sink = value;
+    }
+}
@@ -0,0 +1,144 @@
+package dmillerw.asm.test;
+
+import dmillerw.asm.annotation.MConstructor;
+import dmillerw.asm.annotation.MCopy;
+import dmillerw.asm.annotation.MField;
+import dmillerw.asm.core.Copyable;
+import dmillerw.asm.core.SubclassGenerator;
+import dmillerw.asm.core.Template;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * Copies the same state through the generated copy method, Object.clone, reflection and a serialization round
+ * trip, and prints the throughput of each. The clone and reflective copies deep copy the array by hand, as the
+ * generated copy does
+ */
+public class CopyBenchmark {
+
+    private static final int ITERATIONS = 2000000;
+    private static final int SERIALIZED_ITERATIONS = 50000;
+
+    public static class Entity implements Cloneable, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Entity clone() {
+            try {
+                return (Entity) super.clone();
+            } catch (CloneNotSupportedException ex) {
+                throw new AssertionError(ex);
+            }
+        }
+    }
+
+    @MCopy
+    public static class TemplateEntity extends Template<Entity> {
+
+        @MField public boolean alive;
+        @MField public int id;
+        @MField public long ticks;
+        @MField public double x;
+        @MField public double y;
+        @MField public double z;
+        @MField public String name;
+        @MField @MCopy(MCopy.Mode.DEEP) public int[] inventory;
+
+        @MConstructor
+        public void init() {
+            alive = true;
+            id = 42;
+            ticks = 1L << 40;
+            x = 1.5;
+            y = 64;
+            z = -3.25;
+            name = "entity";
+            inventory = new int[] {1, 2, 3, 4, 5, 6, 7, 8};
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args) throws Exception {
+        Class<Entity> clazz = new SubclassGenerator<Entity>(Entity.class, TemplateEntity.class)
+                .setClassName(Entity.class.getName() + "_COPY")
+                .generateSubclass();
+        Entity entity = clazz.newInstance();
+
+        Field inventory = clazz.getField("inventory");
+        Field[] fields = getInstanceFields(clazz);
+
+        Object sink = null;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                sink = ((Copyable<Entity>) entity).copy();
+            }
+            Benchmarks.report("Generated", start, ITERATIONS, "copy", "copies");
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                Entity copy = entity.clone();
+                inventory.set(copy, ((int[]) inventory.get(copy)).clone());
+                sink = copy;
+            }
+            Benchmarks.report("Object.clone", start, ITERATIONS, "copy", "copies");
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                sink = copyReflective(entity, clazz, fields);
+            }
+            Benchmarks.report("Reflective", start, ITERATIONS, "copy", "copies");
+
+            start = System.nanoTime();
+            for (int i = 0; i < SERIALIZED_ITERATIONS; i++) {
+                sink = copySerialized(entity);
+            }
+            Benchmarks.report("Serialized", start, SERIALIZED_ITERATIONS, "copy", "copies");
+        }
+
+        Benchmarks.consume(sink);
+    }
+
+    private static Field[] getInstanceFields(Class<?> clazz) {
+        Field[] fields = clazz.getDeclaredFields();
+        int count = 0;
+        for (Field field : fields) {
+            if (!Modifier.isStatic(field.getModifiers())) {
+                field.setAccessible(true);
+                fields[count++] = field;
+            }
+        }
+        Field[] instanceFields = new Field[count];
+        System.arraycopy(fields, 0, instanceFields, 0, count);
+        return instanceFields;
+    }
+
+    private static Object copyReflective(Object object, Class<?> clazz, Field[] fields) throws Exception {
+        Object copy = clazz.newInstance();
+        for (Field field : fields) {
+            Object value = field.get(object);
+            field.set(copy, value instanceof int[] ? ((int[]) value).clone() : value);
+        }
+        return copy;
+    }
+
+    private static Object copySerialized(Object object) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream output = new ObjectOutputStream(bytes);
+        output.writeObject(object);
+        output.close();
+
+        // The generated class is only visible through its own loader
+        final ClassLoader classLoader = object.getClass().getClassLoader();
+        ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())) {
+            @Override
+            protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+                return Class.forName(desc.getName(), false, classLoader);
+            }
+        };
+        return input.readObject();
+    }
+}
@@ -0,0 +1,91 @@
+package dmillerw.asm.test;
+
+import dmillerw.asm.annotation.MField;
+import dmillerw.asm.annotation.MImplement;
+import dmillerw.asm.annotation.MOverride;
+import dmillerw.asm.core.SubclassGenerator;
+import dmillerw.asm.core.Template;
+
+/**
+ * Calls the same template through a class generated as usual and one generated with
+ * {@link SubclassGenerator#setDevirtualize(boolean)}, and prints the time per call of each. The first rounds
+ * show the interpreter and C1, where final methods and INVOKESPECIAL helpers are bound directly; later rounds
+ * show C2, where class hierarchy analysis can inline both once it knows no subclass is loaded
+ */
+public class DevirtualizeBenchmark {
+
+    private static final int ITERATIONS = 20000000;
+    private static final int WARMUP_ITERATIONS = 20000;
+
+    public static class Entity {
+
+        public int update(int tick) {
+            return tick;
+        }
+    }
+
+    public static class TemplateEntity extends Template<Entity> {
+
+        @MField public int x;
+        @MField public int y;
+
+        @MOverride
+        public int update(int tick) {
+            move(tick);
+            return _super.update(tick) + distance();
+        }
+
+        @MImplement
+        public void move(int tick) {
+            x += tick & 3;
+            y -= tick & 1;
+        }
+
+        @MImplement
+        public int distance() {
+            return Math.abs(x) + Math.abs(y);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Entity plain = new SubclassGenerator<Entity>(Entity.class, TemplateEntity.class)
+                .setClassName(Entity.class.getName() + "_PLAIN")
+                .generateSubclass()
+                .newInstance();
+        Entity devirtualized = new SubclassGenerator<Entity>(Entity.class, TemplateEntity.class)
+                .setClassName(Entity.class.getName() + "_FINAL")
+                .setDevirtualize(true)
+                .generateSubclass()
+                .newInstance();
+
+        long sink = 0;
+
+        long start = System.nanoTime();
+        sink += run(plain, WARMUP_ITERATIONS);
+        Benchmarks.report("Plain (cold)", start, WARMUP_ITERATIONS, "call", "calls");
+
+        start = System.nanoTime();
+        sink += run(devirtualized, WARMUP_ITERATIONS);
+        Benchmarks.report("Devirtualized (cold)", start, WARMUP_ITERATIONS, "call", "calls");
+
+        for (int round = 0; round < 5; round++) {
+            start = System.nanoTime();
+            sink += run(plain, ITERATIONS);
+            Benchmarks.report("Plain", start, ITERATIONS, "call", "calls");
+
+            start = System.nanoTime();
+            sink += run(devirtualized, ITERATIONS);
+            Benchmarks.report("Devirtualized", start, ITERATIONS, "call", "calls");
+        }
+
+        Benchmarks.consume(sink);
+    }
+
+    private static long run(Entity entity, int iterations) {
+        long sum = 0;
+        for (int i = 0; i < iterations; i++) {
+            sum += entity.update(i);
+        }
+        return sum;
+    }
+}
@@ -1,5 +1,6 @@
 package dmillerw.asm.test;
 
+import dmillerw.asm.core.MethodProfile;
 import dmillerw.asm.core.SubclassGenerator;
 
 public class Main {
@@ -13,5 +14,6 @@ public class Main {
         ClassFoo foo2 = SubclassGenerator.generateSubclass(ClassFoo.class, TemplateFoo.class).newInstance();
         foo2.foo(classBar);
         foo2.echo();
+        System.out.println(MethodProfile.get(foo2.getClass()).get("echo()V"));
     }
 }
@@ -0,0 +1,102 @@
+package dmillerw.asm.test;
+
+import dmillerw.asm.annotation.MField;
+import dmillerw.asm.annotation.MOverride;
+import dmillerw.asm.core.ProxyFactory;
+import dmillerw.asm.core.Template;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Counts the calls to an interface through a proxy generated by {@link ProxyFactory} and through a
+ * java.lang.reflect.Proxy doing the same, and prints the time per call of each next to a call on the target itself.
+ * The reflective proxy boxes the arguments into an array and goes through Method.invoke, the generated one passes
+ * them straight on
+ */
+public class ProxyBenchmark {
+
+    private static final int ITERATIONS = 20000000;
+    private static final int WARMUP_ITERATIONS = 20000;
+
+    public interface Counter {
+
+        int add(int value, int delta);
+    }
+
+    public static class SimpleCounter implements Counter {
+
+        @Override
+        public int add(int value, int delta) {
+            return value + delta;
+        }
+    }
+
+    public static class TemplateCounter extends Template<Counter> {
+
+        @MField public int calls;
+
+        @MOverride
+        public int add(int value, int delta) {
+            calls++;
+            return _super.add(value, delta);
+        }
+    }
+
+    public static class CountingHandler implements InvocationHandler {
+
+        private final Counter target;
+        public int calls;
+
+        public CountingHandler(Counter target) {
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            calls++;
+            return method.invoke(target, args);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Counter direct = new SimpleCounter();
+        Counter generated = ProxyFactory.create(Counter.class, TemplateCounter.class).newProxy(new SimpleCounter());
+        Counter reflective = (Counter) Proxy.newProxyInstance(Counter.class.getClassLoader(), new Class<?>[] {Counter.class}, new CountingHandler(new SimpleCounter()));
+
+        long sink = 0;
+
+        long start = System.nanoTime();
+        sink += run(generated, WARMUP_ITERATIONS);
+        Benchmarks.report("Generated (cold)", start, WARMUP_ITERATIONS, "call", "calls");
+
+        start = System.nanoTime();
+        sink += run(reflective, WARMUP_ITERATIONS);
+        Benchmarks.report("Reflective (cold)", start, WARMUP_ITERATIONS, "call", "calls");
+
+        for (int round = 0; round < 5; round++) {
+            start = System.nanoTime();
+            sink += run(direct, ITERATIONS);
+            Benchmarks.report("Direct", start, ITERATIONS, "call", "calls");
+
+            start = System.nanoTime();
+            sink += run(generated, ITERATIONS);
+            Benchmarks.report("Generated", start, ITERATIONS, "call", "calls");
+
+            start = System.nanoTime();
+            sink += run(reflective, ITERATIONS);
+            Benchmarks.report("Reflective", start, ITERATIONS, "call", "calls");
+        }
+
+        Benchmarks.consume(sink);
+    }
+
+    private static long run(Counter counter, int iterations) {
+        long sum = 0;
+        for (int i = 0; i < iterations; i++) {
+            sum += counter.add(i, i & 7);
+        }
+        return sum;
+    }
+}
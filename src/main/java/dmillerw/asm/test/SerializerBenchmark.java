@@ -0,0 +1,130 @@
+package dmillerw.asm.test;
+
+import dmillerw.asm.annotation.MConstructor;
+import dmillerw.asm.annotation.MField;
+import dmillerw.asm.core.BufferSerializable;
+import dmillerw.asm.core.FieldLayout;
+import dmillerw.asm.core.SubclassGenerator;
+import dmillerw.asm.core.Template;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes and reads back the same state through the generated serializer and through reflection, and prints the
+ * throughput of each
+ */
+public class SerializerBenchmark {
+
+    private static final int ITERATIONS = 2000000;
+
+    public static class Entity {
+
+    }
+
+    public static class TemplateEntity extends Template<Entity> {
+
+        @MField public boolean alive;
+        @MField public int id;
+        @MField public long ticks;
+        @MField public float yaw;
+        @MField public double x;
+        @MField public double y;
+        @MField public double z;
+        @MField public String name;
+
+        @MConstructor
+        public void init() {
+            alive = true;
+            id = 42;
+            ticks = 1L << 40;
+            yaw = 90F;
+            x = 1.5;
+            y = 64;
+            z = -3.25;
+            name = "entity";
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+
+        Field[] fields = TemplateEntity.class.getFields();
+        TemplateEntity template = new TemplateEntity();
+        template.init();
+
+        for (FieldLayout layout : new FieldLayout[] {FieldLayout.INSTANCE, FieldLayout.PACKED}) {
+            Entity entity = new SubclassGenerator<Entity>(Entity.class, TemplateEntity.class)
+                    .setClassName(Entity.class.getName() + "_" + layout)
+                    .setFieldLayout(layout)
+                    .setGenerateSerializer(true)
+                    .generateSubclass()
+                    .newInstance();
+            BufferSerializable serializable = (BufferSerializable) entity;
+
+            for (int round = 0; round < 3; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < ITERATIONS; i++) {
+                    buffer.clear();
+                    serializable.writeTo(buffer);
+                    buffer.flip();
+                    serializable.readFrom(buffer);
+                }
+                Benchmarks.report("Generated (" + layout + ")", start, ITERATIONS, "round trip", "round trips");
+            }
+        }
+
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                buffer.clear();
+                writeReflective(template, fields, buffer);
+                buffer.flip();
+                readReflective(template, fields, buffer);
+            }
+            Benchmarks.report("Reflective", start, ITERATIONS, "round trip", "round trips");
+        }
+    }
+
+    private static void writeReflective(Object object, Field[] fields, ByteBuffer buffer) throws Exception {
+        for (Field field : fields) {
+            Object value = field.get(object);
+            if (value instanceof Boolean) {
+                buffer.put((byte) ((Boolean) value ? 1 : 0));
+            } else if (value instanceof Integer) {
+                buffer.putInt((Integer) value);
+            } else if (value instanceof Long) {
+                buffer.putLong((Long) value);
+            } else if (value instanceof Float) {
+                buffer.putFloat((Float) value);
+            } else if (value instanceof Double) {
+                buffer.putDouble((Double) value);
+            } else if (value instanceof String) {
+                byte[] bytes = ((String) value).getBytes("UTF-8");
+                buffer.putInt(bytes.length);
+                buffer.put(bytes);
+            }
+        }
+    }
+
+    private static void readReflective(Object object, Field[] fields, ByteBuffer buffer) throws Exception {
+        for (Field field : fields) {
+            Class<?> type = field.getType();
+            if (type == boolean.class) {
+                field.set(object, buffer.get() != 0);
+            } else if (type == int.class) {
+                field.set(object, buffer.getInt());
+            } else if (type == long.class) {
+                field.set(object, buffer.getLong());
+            } else if (type == float.class) {
+                field.set(object, buffer.getFloat());
+            } else if (type == double.class) {
+                field.set(object, buffer.getDouble());
+            } else if (type == String.class) {
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                field.set(object, new String(bytes, "UTF-8"));
+            }
+        }
+    }
+}
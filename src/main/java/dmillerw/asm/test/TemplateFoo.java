@@ -3,6 +3,7 @@ package dmillerw.asm.test;
 import dmillerw.asm.annotation.MCastParam;
 import dmillerw.asm.annotation.MCastParamList;
 import dmillerw.asm.annotation.MOverride;
+import dmillerw.asm.annotation.MProfile;
 import dmillerw.asm.core.Template;
 
 public class TemplateFoo extends Template<ClassFoo> {
@@ -17,7 +18,9 @@ public class TemplateFoo extends Template<ClassFoo> {
         return bar;
     }
 
+    // Void and without arguments, the tightest stack a profile wrapper gets
     @MOverride
+    @MProfile
     public void echo() {
         System.out.println("ECHOOO!");
     }
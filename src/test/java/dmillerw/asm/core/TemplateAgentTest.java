@@ -0,0 +1,67 @@
+package dmillerw.asm.core;
+
+import dmillerw.asm.annotation.MField;
+import dmillerw.asm.annotation.MImplement;
+import dmillerw.asm.annotation.MOverride;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs with the agent jar given to -javaagent by the build. The target is only ever named by string until its
+ * pair is registered, so it loads woven
+ */
+public class TemplateAgentTest {
+
+    private static final String TARGET_NAME = "dmillerw.asm.core.TemplateAgentTest$Target";
+
+    public static class Target {
+
+        public int value(int tick) {
+            return tick;
+        }
+    }
+
+    public static class TemplateTarget extends Template<Target> {
+
+        @MField public int calls;
+
+        @MOverride
+        public int value(int tick) {
+            calls++;
+            // Merges two list types, which frame computation resolves from their bytes
+            List<Integer> ticks = (tick & 1) == 0 ? new ArrayList<Integer>() : new LinkedList<Integer>();
+            ticks.add(tick);
+            return _super.value(ticks.get(0)) * 10 + calls;
+        }
+
+        @MImplement
+        public int getCalls() {
+            return calls;
+        }
+    }
+
+    @Test
+    public void testWeave() throws Exception {
+        assertTrue("The agent isn't installed", TemplateAgent.isInstalled());
+        TemplateAgent.register(TARGET_NAME, TARGET_NAME.replace("$Target", "$TemplateTarget"));
+
+        Class<?> targetClass = Class.forName(TARGET_NAME);
+        Object target = targetClass.newInstance();
+        Method value = targetClass.getMethod("value", int.class);
+
+        assertEquals(21, value.invoke(target, 2));
+        assertEquals(32, value.invoke(target, 3));
+        assertEquals(2, targetClass.getMethod("getCalls").invoke(target));
+
+        Field calls = targetClass.getField("calls");
+        assertEquals(2, calls.getInt(target));
+    }
+}